@@ -0,0 +1,52 @@
+package edu.washington.cs.knowitall.kbp2014.multir.slotfiller;
+
+import java.util.concurrent.LinkedBlockingQueue;
+
+import edu.stanford.nlp.ling.CoreAnnotations.DocIDAnnotation;
+import edu.stanford.nlp.pipeline.Annotation;
+
+/**
+ * A pool of Chinese segmentation/NER pipelines, so that documents can be
+ * annotated on several threads: a StanfordCoreNLP pipeline is not safe to use
+ * from two threads at once. Pipelines are created on first demand, up to
+ * size; a thread annotating a document borrows one and gives it back after.
+ */
+public class ChinesePipelinePool {
+
+	private final int size;
+	private final LinkedBlockingQueue<StanfordChineseAnnotatorHelperMethods> idle = new LinkedBlockingQueue<>();
+	private int created = 0;
+
+	public ChinesePipelinePool(int size){
+		this.size = size;
+	}
+
+	private StanfordChineseAnnotatorHelperMethods borrow() throws InterruptedException{
+		StanfordChineseAnnotatorHelperMethods helper = idle.poll();
+		if(helper != null) return helper;
+		synchronized(this){
+			if(created < size){
+				created++;
+				System.out.println("ChinesePipelinePool: creating pipeline " + created + " of " + size);
+				return new StanfordChineseAnnotatorHelperMethods();
+			}
+		}
+		return idle.take();
+	}
+
+	public Annotation annotate(String docName, String rawDoc) throws InterruptedException{
+		StanfordChineseAnnotatorHelperMethods helper = borrow();
+		try{
+			Annotation document = new Annotation(rawDoc);
+			helper.getChinesePipeline().annotate(document);
+			document.set(DocIDAnnotation.class, docName);
+			return document;
+		}
+		finally{
+			idle.add(helper);
+		}
+	}
+
+	public int getSize(){return size;}
+
+}
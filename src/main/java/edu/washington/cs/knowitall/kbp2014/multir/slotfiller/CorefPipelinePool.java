@@ -0,0 +1,62 @@
+package edu.washington.cs.knowitall.kbp2014.multir.slotfiller;
+
+import java.util.concurrent.LinkedBlockingQueue;
+
+import edu.stanford.nlp.ling.CoreAnnotations.DocIDAnnotation;
+import edu.stanford.nlp.pipeline.Annotation;
+
+/**
+ * A pool of coref pipelines (StanfordAnnotatorHelperMethods), so that
+ * documents can be coref annotated on several threads, as ChinesePipelinePool
+ * does for the Chinese pipeline. The pool starts with the helper it is given,
+ * usually the driver's, so a pool of size 1 loads no more pipelines; the rest
+ * are created on first demand, up to size.
+ */
+public class CorefPipelinePool {
+
+	private final int size;
+	private final StanfordAnnotatorHelperMethods first;
+	private final LinkedBlockingQueue<StanfordAnnotatorHelperMethods> idle = new LinkedBlockingQueue<>();
+	private int created = 1;
+
+	public CorefPipelinePool(StanfordAnnotatorHelperMethods first, int size){
+		this.first = first;
+		this.size = Math.max(1, size);
+		idle.add(first);
+	}
+
+	private StanfordAnnotatorHelperMethods borrow() throws InterruptedException{
+		StanfordAnnotatorHelperMethods helper = idle.poll();
+		if(helper != null) return helper;
+		synchronized(this){
+			if(created < size){
+				created++;
+				System.out.println("CorefPipelinePool: creating pipeline " + created + " of " + size);
+				return new StanfordAnnotatorHelperMethods();
+			}
+		}
+		return idle.take();
+	}
+
+	public Annotation annotate(String docName, String rawDoc) throws InterruptedException{
+		StanfordAnnotatorHelperMethods helper = borrow();
+		try{
+			Annotation document = new Annotation(rawDoc);
+			helper.getCorefPipeline().annotate(document);
+			document.set(DocIDAnnotation.class, docName);
+			return document;
+		}
+		finally{
+			idle.add(helper);
+		}
+	}
+
+	/**
+	 * The helper the pool was made with, for the methods which only read an
+	 * annotation.
+	 */
+	public StanfordAnnotatorHelperMethods getFirst(){return first;}
+
+	public int getSize(){return size;}
+
+}
@@ -0,0 +1,270 @@
+package edu.washington.cs.knowitall.kbp2014.multir.slotfiller;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import edu.washington.multirframework.data.Argument;
+
+/**
+ * Explain trace of an extraction run: for each extraction, the relation, the
+ * score and the top k features by absolute weight, captured in the same pass
+ * which scores the instance (see MultiModelMultirExtractor.setExplainTrace).
+ *
+ * The trace is written in blocks of blockSize rows, each column stored
+ * contiguously; the query, document and relation columns are dictionary
+ * coded within the block. Features are stored by id; main() dumps a trace as
+ * tab separated text, with feature names from the model's mapping file.
+ */
+public class ExplainTrace {
+
+	public static final int MAGIC = 0x4B425054;
+	public static final int VERSION = 1;
+	public static final int DEFAULT_K = 10;
+
+	private final int blockSize = 4096;
+	private final int k;
+	private final DataOutputStream out;
+
+	// the current block, by column
+	private final List<String> queryIds = new ArrayList<>();
+	private final List<String> docIds = new ArrayList<>();
+	private final List<String> rels = new ArrayList<>();
+	private final List<String> arg1s = new ArrayList<>();
+	private final List<String> arg2s = new ArrayList<>();
+	private int[] sentNums;
+	private double[] scores;
+	private int[] featureCounts;
+	private int[] featureIds;
+	private float[] featureWeights;
+	private int rows = 0;
+	private int numFeatures = 0;
+
+	// top k of the row being recorded
+	private final int[] topIds;
+	private final float[] topWeights;
+
+	// k is at most 127, the feature count of a row is stored in a byte
+	public ExplainTrace(String fileName, int k) throws IOException {
+		this.k = Math.min(k, 127);
+		out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fileName), 1 << 16));
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(this.k);
+		sentNums = new int[blockSize];
+		scores = new double[blockSize];
+		featureCounts = new int[blockSize];
+		featureIds = new int[blockSize * this.k];
+		featureWeights = new float[blockSize * this.k];
+		topIds = new int[this.k];
+		topWeights = new float[this.k];
+	}
+
+	public ExplainTrace(String fileName) throws IOException {
+		this(fileName, DEFAULT_K);
+	}
+
+	/**
+	 * The (up to) k features with the largest absolute weight, in decreasing
+	 * order, into ids and weights; returns how many.
+	 */
+	public static int topK(Map<Integer,Double> featureScores, int k, int[] ids, float[] weights) {
+		int n = 0;
+		for (Map.Entry<Integer,Double> entry : featureScores.entrySet()) {
+			float w = entry.getValue().floatValue();
+			float a = Math.abs(w);
+			if (n == k && a <= Math.abs(weights[n - 1])) continue;
+			int i = (n < k) ? n++ : n - 1;
+			while (i > 0 && Math.abs(weights[i - 1]) < a) {
+				ids[i] = ids[i - 1];
+				weights[i] = weights[i - 1];
+				i--;
+			}
+			ids[i] = entry.getKey();
+			weights[i] = w;
+		}
+		return n;
+	}
+
+	public synchronized void record(String queryId, String docId, Integer sentNum, Argument arg1, Argument arg2,
+			String rel, double score, Map<Integer,Double> featureScores) throws IOException {
+		int n = (featureScores == null) ? 0 : topK(featureScores, k, topIds, topWeights);
+		queryIds.add(queryId);
+		docIds.add(docId);
+		rels.add(rel);
+		arg1s.add(arg1.getArgName());
+		arg2s.add(arg2.getArgName());
+		sentNums[rows] = (sentNum == null) ? -1 : sentNum;
+		scores[rows] = score;
+		featureCounts[rows] = n;
+		System.arraycopy(topIds, 0, featureIds, numFeatures, n);
+		System.arraycopy(topWeights, 0, featureWeights, numFeatures, n);
+		numFeatures += n;
+		rows++;
+		if (rows == blockSize) writeBlock();
+	}
+
+	private void writeCoded(List<String> column) throws IOException {
+		Map<String,Integer> codes = new HashMap<>();
+		List<String> dictionary = new ArrayList<>();
+		int[] coded = new int[column.size()];
+		for (int i = 0; i < column.size(); i++) {
+			String value = String.valueOf(column.get(i));
+			Integer code = codes.get(value);
+			if (code == null) {
+				code = dictionary.size();
+				codes.put(value, code);
+				dictionary.add(value);
+			}
+			coded[i] = code;
+		}
+		out.writeInt(dictionary.size());
+		for (String value : dictionary) out.writeUTF(value);
+		for (int code : coded) out.writeInt(code);
+	}
+
+	private void writeStrings(List<String> column) throws IOException {
+		for (String value : column) out.writeUTF(String.valueOf(value));
+	}
+
+	private void writeBlock() throws IOException {
+		if (rows == 0) return;
+		out.writeInt(rows);
+		writeCoded(queryIds);
+		writeCoded(docIds);
+		writeCoded(rels);
+		writeStrings(arg1s);
+		writeStrings(arg2s);
+		for (int i = 0; i < rows; i++) out.writeInt(sentNums[i]);
+		for (int i = 0; i < rows; i++) out.writeDouble(scores[i]);
+		for (int i = 0; i < rows; i++) out.writeByte(featureCounts[i]);
+		for (int i = 0; i < numFeatures; i++) out.writeInt(featureIds[i]);
+		for (int i = 0; i < numFeatures; i++) out.writeFloat(featureWeights[i]);
+		queryIds.clear();
+		docIds.clear();
+		rels.clear();
+		arg1s.clear();
+		arg2s.clear();
+		rows = 0;
+		numFeatures = 0;
+	}
+
+	public synchronized void close() throws IOException {
+		writeBlock();
+		out.writeInt(0);
+		out.close();
+	}
+
+	// --------------------------------------------------------------------
+	// Reading
+	// --------------------------------------------------------------------
+
+	/**
+	 * Feature names by id from a model's mapping file: the number of
+	 * relations, the relations, the number of features, the features, each
+	 * written by Mappings as id, tab, name, in no particular order.
+	 */
+	public static String[] featureNames(String modelFilePath) throws IOException {
+		BufferedReader br = new BufferedReader(new FileReader(new File(modelFilePath + "/mapping")));
+		try {
+			int numRels = Integer.parseInt(br.readLine().trim());
+			for (int i = 0; i < numRels; i++) br.readLine();
+			int numFeatures = Integer.parseInt(br.readLine().trim());
+			String[] names = new String[numFeatures];
+			for (int i = 0; i < numFeatures; i++) {
+				String line = br.readLine();
+				int tab = line.indexOf('\t');
+				names[Integer.parseInt(line.substring(0, tab).trim())] = line.substring(tab + 1);
+			}
+			return names;
+		} finally {
+			br.close();
+		}
+	}
+
+	private static String[] readCoded(DataInputStream in, int rows) throws IOException {
+		String[] dictionary = new String[in.readInt()];
+		for (int i = 0; i < dictionary.length; i++) dictionary[i] = in.readUTF();
+		String[] column = new String[rows];
+		for (int i = 0; i < rows; i++) column[i] = dictionary[in.readInt()];
+		return column;
+	}
+
+	private static String[] readStrings(DataInputStream in, int rows) throws IOException {
+		String[] column = new String[rows];
+		for (int i = 0; i < rows; i++) column[i] = in.readUTF();
+		return column;
+	}
+
+	/**
+	 * Write the trace as text, one extraction per line: query id, doc id,
+	 * sentence, arg1, arg2, relation, score, then feature and weight pairs.
+	 */
+	public static void dump(String traceFileName, String[] names, PrintStream ps) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(traceFileName), 1 << 16));
+		try {
+			if (in.readInt() != MAGIC) throw new IOException("Not an explain trace: " + traceFileName);
+			if (in.readInt() != VERSION) throw new IOException("Unknown explain trace version: " + traceFileName);
+			in.readInt();
+			int rows;
+			while ((rows = in.readInt()) > 0) {
+				String[] queryIds = readCoded(in, rows);
+				String[] docIds = readCoded(in, rows);
+				String[] rels = readCoded(in, rows);
+				String[] arg1s = readStrings(in, rows);
+				String[] arg2s = readStrings(in, rows);
+				int[] sentNums = new int[rows];
+				for (int i = 0; i < rows; i++) sentNums[i] = in.readInt();
+				double[] scores = new double[rows];
+				for (int i = 0; i < rows; i++) scores[i] = in.readDouble();
+				int[] counts = new int[rows];
+				int total = 0;
+				for (int i = 0; i < rows; i++) { counts[i] = in.readByte(); total += counts[i]; }
+				int[] ids = new int[total];
+				for (int i = 0; i < total; i++) ids[i] = in.readInt();
+				float[] weights = new float[total];
+				for (int i = 0; i < total; i++) weights[i] = in.readFloat();
+
+				int f = 0;
+				for (int i = 0; i < rows; i++) {
+					StringBuilder sb = new StringBuilder();
+					sb.append(queryIds[i]).append('\t').append(docIds[i]).append('\t').append(sentNums[i]).append('\t')
+						.append(arg1s[i]).append('\t').append(arg2s[i]).append('\t').append(rels[i]).append('\t').append(scores[i]);
+					for (int j = 0; j < counts[i]; j++, f++) {
+						int id = ids[f];
+						String name = (names != null && id >= 0 && id < names.length) ? names[id] : String.valueOf(id);
+						sb.append('\t').append(name).append('\t').append(weights[f]);
+					}
+					ps.println(sb.toString());
+				}
+			}
+		} catch (EOFException e) {
+			// a trace whose run did not close it: everything up to the last whole block
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Args: traceFile [modelFilePath]
+	 */
+	public static void main(String[] args) throws IOException {
+		String[] names = (args.length > 1) ? featureNames(args[1]) : null;
+		PrintStream ps = new PrintStream(new BufferedOutputStream(System.out, 1 << 16), false, "UTF-8");
+		dump(args[0], names, ps);
+		ps.flush();
+	}
+}
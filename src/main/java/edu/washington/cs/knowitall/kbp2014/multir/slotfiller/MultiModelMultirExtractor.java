@@ -5,13 +5,14 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
 import java.util.HashMap;
 //import java.util.TreeMap;
-import java.util.Comparator;
-import java.util.Collections;
 
 import edu.stanford.nlp.ling.CoreAnnotations;
 import edu.stanford.nlp.ling.CoreLabel;
@@ -28,7 +29,6 @@ import edu.washington.multirframework.corpus.CorpusInformationSpecification.Sent
 import edu.washington.multirframework.corpus.SentOffsetInformation.SentStartOffset;
 import edu.washington.multirframework.data.Argument;
 import edu.washington.multirframework.featuregeneration.FeatureGenerator;
-import edu.washington.multirframework.multiralgorithm.Mappings;
 
 public abstract class MultiModelMultirExtractor {
 
@@ -37,29 +37,108 @@ public abstract class MultiModelMultirExtractor {
 	protected ArgumentIdentification ai;
 	protected FeatureGenerator fg;
 	
+	// explain mode: when set, extract() records each extraction's top features, see ExplainTrace
+	protected ExplainTrace explainTrace;
+	// feature names by model file path, for printFeaturesTrace
+	private Map<String,String[]> featureNamesByModel = new HashMap<>();
+	// the models by index in modelFilePaths, loaded once, on first use or in the warm-up (see Warmup),
+	// with the relation names from their mapping files
+	private DocumentExtractor[] documentExtractors;
+	private String[][] modelRelations;
+	private Object[] modelLocks;
+	
 	public MultiModelMultirExtractor(){
 		sigs = new ArrayList<>();
 		modelFilePaths = new ArrayList<>();
 		ai = null;
 		fg = null;
+		explainTrace = null;
+	}
+	
+	public void setExplainTrace(ExplainTrace explainTrace){
+		this.explainTrace = explainTrace;
+	}
+	
+	/**
+	 * Score the instance once; in explain mode with the feature scores, which
+	 * come from the same feature generation.
+	 */
+	private Pair<Triple<String,Double,Double>,Map<Integer,Double>> score(DocumentExtractor de, Argument arg1, Argument arg2,
+			CoreMap s, Annotation doc, boolean withFeatureScores){
+		if(withFeatureScores) return de.extractFromSententialInstanceWithFeatureScores(arg1, arg2, s, doc);
+		return new Pair<Triple<String,Double,Double>,Map<Integer,Double>>(de.extractFromSententialInstance(arg1, arg2, s, doc), null);
+	}
+	
+	/**
+	 * An extraction as stored in the StageCache: the Extraction constructor's
+	 * arguments, with the index of its sentence.
+	 */
+	static class CachedExtraction implements Serializable {
+		private static final long serialVersionUID = 1L;
+		int sentIndex;
+		String arg1Name, arg2Name;
+		int arg1Start, arg1End, arg2Start, arg2End;
+		String rel;
+		double score;
+		String docName;
+		Integer sentNum;
+		String senText;
+		
+		Extraction toExtraction(){
+			return new Extraction(new Argument(arg1Name,arg1Start,arg1End),new Argument(arg2Name,arg2Start,arg2End),rel,score,
+					null,null,null,null,docName,sentNum,null,null,senText);
+		}
+	}
+	
+	/**
+	 * The StageCache key of the model's extractions from the document, or null
+	 * when not caching: without the annotation's key, or in explain mode, which
+	 * needs the feature scores.
+	 */
+	private String extractionKey(String docKey, int modelIndex, KBPQuery q){
+		if(docKey == null || explainTrace != null || !StageCache.enabled()) return null;
+		String modelFilePath = modelFilePaths.get(modelIndex);
+		return StageCache.sha1(docKey, q.entityType().toString(), modelFilePath,
+				StageCache.fileVersion(modelFilePath+"/mapping", modelFilePath+"/model", modelFilePath+"/params"),
+				StageCache.classVersion(MultiModelMultirExtractor.class, getClass()),
+				fg.getClass().getName(), ai.getClass().getName(), sigs.get(modelIndex).getClass().getName());
 	}
 	
 	//public List<Extraction> extract(Annotation doc, String queryType) throws IOException{
 	public List<Extraction> extract(Annotation doc, KBPQuery q) throws IOException{
-		List<Extraction> extractions = new ArrayList<>();
 		
 		//System.out.println("MMME: getting sigModelPairs");
 
 		//List<Pair<SententialInstanceGeneration,DocumentExtractor>> sigModelPairs = getSigModelPairs(queryType);
 		//List<Pair<SententialInstanceGeneration,DocumentExtractor>> sigModelPairs = getSigModelPairs(q);
-		List<Pair<SententialInstanceGeneration,DocumentExtractor>> sigModelPairs = getSigModelPairsColdStartPERLOC(q);
+		List<Integer> modelIndices = getModelIndicesColdStartPERLOC(q);
+		
+		// each model's extractions from the StageCache, or computed below
+		String docKey = doc.get(StageKeyAnnotation.class);
+		List<String> keys = new ArrayList<>();
+		List<List<CachedExtraction>> cachedByModel = new ArrayList<>();
+		List<List<CachedExtraction>> computedByModel = new ArrayList<>();
+		boolean anyMissing = false;
+		for(int modelIndex : modelIndices){
+			String key = extractionKey(docKey, modelIndex, q);
+			@SuppressWarnings("unchecked")
+			List<CachedExtraction> cached = (List<CachedExtraction>) StageCache.getOrNull("extraction", key);
+			keys.add(key);
+			cachedByModel.add(cached);
+			computedByModel.add(cached == null ? new ArrayList<CachedExtraction>() : null);
+			if(cached == null) anyMissing = true;
+		}
 		
 		//System.out.println("MMME Num sigModelPairs: " + sigModelPairs.size());
 		
 		List<CoreMap> sentences = doc.get(CoreAnnotations.SentencesAnnotation.class);
-		for(CoreMap s : sentences){
+		for(int sentIndex = 0; anyMissing && sentIndex < sentences.size(); sentIndex++){
+			CoreMap s = sentences.get(sentIndex);
 			
+			long stageStart = Metrics.startTimer();
 			List<Argument> arguments = ai.identifyArguments(doc,s);
+			Metrics.stopTimer(Metrics.ArgumentIdentification(), stageStart);
+			Metrics.increment("sentences");
 			
 			//System.out.println("MMME arguments identified: " + arguments.size());
 			//for(Argument arg : arguments){
@@ -74,46 +153,70 @@ public abstract class MultiModelMultirExtractor {
 		      int sentStartOffset = 0;
 		      if(tokens.size() > 0) sentStartOffset = tokens.get(0).beginPosition();
 		      
-			  for(Pair<SententialInstanceGeneration,DocumentExtractor> sigModelPair : sigModelPairs){
-				DocumentExtractor de = sigModelPair.second;
-				SententialInstanceGeneration sig = sigModelPair.first;
+			  for(int m = 0; m < modelIndices.size(); m++){
+				List<CachedExtraction> modelExtractions = computedByModel.get(m);
+				if(modelExtractions == null) continue;
+				int modelIndex = modelIndices.get(m);
+				DocumentExtractor de = loadModel(modelIndex);
+				SententialInstanceGeneration sig = sigs.get(modelIndex);
+				stageStart = Metrics.startTimer();
 				List<Pair<Argument,Argument>> sententialPairs = sig.generateSententialInstances(arguments, s);
+				Metrics.stopTimer(Metrics.InstanceGeneration(), stageStart);
+				Metrics.increment("sentential-instances", sententialPairs.size());
 				for(Pair<Argument,Argument> sententialPair : sententialPairs){
-					Triple<String,Double,Double> result = de.extractFromSententialInstance(sententialPair.first, sententialPair.second, s, doc);
+					stageStart = Metrics.startTimer();
+					Pair<Triple<String,Double,Double>,Map<Integer,Double>> scored =
+							score(de, sententialPair.first, sententialPair.second, s, doc, explainTrace != null);
+					Metrics.stopTimer(Metrics.FeatureGenerationAndScoring(), stageStart);
+					Triple<String,Double,Double> result = scored.first;
 					String rel = result.first;
 					double score = result.third;
 					if(!rel.equals("NA")){
 						//add new extraction
 						Argument arg1 = sententialPair.first;
 						Argument arg2 = sententialPair.second;
-						arg1 = new Argument(arg1.getArgName(),sentStartOffset+arg1.getStartOffset(),sentStartOffset+arg1.getEndOffset());
-						arg2 = new Argument(arg2.getArgName(),sentStartOffset+arg2.getStartOffset(),sentStartOffset+arg2.getEndOffset());
 						//arg1 = new Argument(arg1.getArgName(),s.get(SentStartOffset.class)+arg1.getStartOffset(),s.get(SentStartOffset.class)+arg1.getEndOffset());
 						//arg2 = new Argument(arg2.getArgName(),s.get(SentStartOffset.class)+arg2.getStartOffset(),s.get(SentStartOffset.class)+arg2.getEndOffset());
-						String arg1Link = null;
-						String arg2Link = null;
-						String arg1BestMention = null;
-						String arg2BestMention = null;
-						String docName = doc.get(DocIDAnnotation.class);
+						CachedExtraction e = new CachedExtraction();
+						e.sentIndex = sentIndex;
+						e.arg1Name = arg1.getArgName();
+						e.arg1Start = sentStartOffset+arg1.getStartOffset();
+						e.arg1End = sentStartOffset+arg1.getEndOffset();
+						e.arg2Name = arg2.getArgName();
+						e.arg2Start = sentStartOffset+arg2.getStartOffset();
+						e.arg2End = sentStartOffset+arg2.getEndOffset();
+						e.rel = rel;
+						e.score = score;
+						e.docName = doc.get(DocIDAnnotation.class);
 						//String docName = doc.get(SentDocName.class);
-						Integer sentNum = s.get(SentGlobalID.class);
-						Integer arg1BestMentionSentNum = null;
-						Integer arg2BestMentionSentNum = null;
-
-						senText.replace("\n", " ");
-                        senText.replace("\r", " ");
+						e.sentNum = s.get(SentGlobalID.class);
+						e.senText = senText;
+						modelExtractions.add(e);
 						
-						Extraction e = new Extraction(arg1,arg2,rel,score,
-								arg1Link,arg2Link,arg1BestMention,arg2BestMention,
-								docName,sentNum,arg1BestMentionSentNum,arg2BestMentionSentNum,senText);
-						extractions.add(e);
+						if(explainTrace != null) explainTrace.record(q.id(), e.docName, e.sentNum,
+								new Argument(e.arg1Name,e.arg1Start,e.arg1End), new Argument(e.arg2Name,e.arg2Start,e.arg2End),
+								rel, score, scored.second);
 						
-						System.out.println("Extraction: " + arg1 + " " + arg2 + " " + rel + " " + docName + " " + score);
+						if(RunLog.debugEnabled()) RunLog.debug("Extraction: " + e.arg1Name + " " + e.arg2Name + " " + rel + " " + e.docName + " " + score);
 					}
 				}
 			  }
 			} //restrict sentence length	  
 		}
+		
+		// store the computed models' extractions, then gather all in sentence order, as computed
+		List<CachedExtraction> all = new ArrayList<>();
+		for(int m = 0; m < modelIndices.size(); m++){
+			List<CachedExtraction> modelExtractions = computedByModel.get(m);
+			if(modelExtractions != null) StageCache.put("extraction", keys.get(m), (ArrayList<CachedExtraction>) modelExtractions);
+			else modelExtractions = cachedByModel.get(m);
+			all.addAll(modelExtractions);
+		}
+		Collections.sort(all, new Comparator<CachedExtraction>(){
+			public int compare(CachedExtraction a, CachedExtraction b){return Integer.compare(a.sentIndex, b.sentIndex);}
+		});
+		List<Extraction> extractions = new ArrayList<>(all.size());
+		for(CachedExtraction e : all) extractions.add(e.toExtraction());
 		//System.out.println("MMME EXTRACT: " + extractions.size());
 		
 		return extractions;
@@ -165,37 +268,61 @@ public abstract class MultiModelMultirExtractor {
 		return extractions;
 	}*/
 	
-	private List<Pair<SententialInstanceGeneration,DocumentExtractor>> getSigModelPairsColdStartPERLOC(KBPQuery q) throws IOException{
-		List<Pair<SententialInstanceGeneration,DocumentExtractor>> sigModelPairs = new ArrayList<>();
+	public int getNumModels(){return sigs.size();}
+	
+	private synchronized void initModels(){
+		if(documentExtractors == null){
+			documentExtractors = new DocumentExtractor[sigs.size()];
+			modelRelations = new String[sigs.size()][];
+			modelLocks = new Object[sigs.size()];
+			for(int i = 0; i < modelLocks.length; i++) modelLocks[i] = new Object();
+		}
+	}
+	
+	/**
+	 * The i-th model, loaded on first call; models can be loaded concurrently.
+	 */
+	public DocumentExtractor loadModel(int i) throws IOException{
+		initModels();
+		synchronized(modelLocks[i]){
+			if(documentExtractors[i] == null){
+				String modelFilePath = modelFilePaths.get(i);
+				BufferedReader br = new BufferedReader(new FileReader(new File(modelFilePath+"/mapping")));
+				try{
+					int numRels = Integer.parseInt(br.readLine().trim());
+					String[] relations = new String[numRels];
+					for(int j = 0; j < numRels; j++) relations[j] = br.readLine().trim();
+					modelRelations[i] = relations;
+				}
+				finally{
+					br.close();
+				}
+				documentExtractors[i] = new DocumentExtractor(modelFilePath,fg,ai,sigs.get(i));
+			}
+			return documentExtractors[i];
+		}
+	}
+	
+	/**
+	 * The indices of the models with a relation for the query's entity type.
+	 */
+	private List<Integer> getModelIndicesColdStartPERLOC(KBPQuery q) throws IOException{
+		List<Integer> modelIndices = new ArrayList<>();
+		
+		//The gpe relations are per relations reversed
+		String queryEntityType = q.entityType().toString().toLowerCase();
+		if(queryEntityType.contains("gpe")) queryEntityType="per";
 		
 		for(int i =0; i < sigs.size(); i++){
-			String modelFilePath = modelFilePaths.get(i);
-			BufferedReader br = new BufferedReader(new FileReader(new File(modelFilePath+"/mapping")));
-			String firstLine = br.readLine();
-			Integer numRels = Integer.parseInt(firstLine.trim());
-			
-			//The gpe relations are per relations reversed
-			String queryEntityType = q.entityType().toString().toLowerCase();
-            if(queryEntityType.contains("gpe")) {
-            	//System.out.println("Setting queryEntityType to per");
-            	queryEntityType="per";}
-            //System.out.println("MMME queryEntityType: " + queryEntityType);
-            
-			for(int j =0; j < numRels; j++){
-				String nextRel = br.readLine().trim();
-				//if(nextRel.contains(queryType.toLowerCase())){				
-				if(nextRel.contains(queryEntityType)){
-					//System.out.println("MMME: getting de");
-					DocumentExtractor de = new DocumentExtractor(modelFilePath,fg,ai,sigs.get(i));
-					//System.out.println("MMME: got de");
-					Pair<SententialInstanceGeneration,DocumentExtractor> newPair = new Pair<>(sigs.get(i),de);
-					sigModelPairs.add(newPair);
+			loadModel(i);
+			for(String rel : modelRelations[i]){
+				if(rel.contains(queryEntityType)){
+					modelIndices.add(i);
 					break;
 				}
 			}
-			br.close();
 		}
-		return sigModelPairs;
+		return modelIndices;
 	}
 	
 	//private List<Pair<SententialInstanceGeneration,DocumentExtractor>> getSigModelPairs(String queryType) throws IOException{
@@ -340,31 +467,15 @@ public abstract class MultiModelMultirExtractor {
 		//return false;
 	}
 	
-	class Feature{
-		  Double weight;
-		  String name;
-	
-		  public Feature(Double featureWeight, String featureName) {
-			    weight = featureWeight;
-			    name = featureName;
-			}
-		  
-		  public Double getWeight() {
-			  return weight;
-		  }
-		  public String getName() {
-			  return name;
-		  }
-		  
-    }
-
-	class MyComparator implements Comparator<Feature>{
-      public int compare(Feature feature1, Feature feature2){
-    	  Double wtDiff = Math.abs(feature1.getWeight()) - Math.abs(feature2.getWeight()); 
-          int wtDiffPosNeg = (int)Math.floor(wtDiff) + (int)Math.ceil(wtDiff); 
-    	  return wtDiffPosNeg;
-	  }
-    }
+	private String[] featureNames(SententialInstanceGeneration sig) throws IOException{
+		String modelFilePath = modelFilePaths.get(sigs.indexOf(sig));
+		String[] names = featureNamesByModel.get(modelFilePath);
+		if(names == null){
+			names = ExplainTrace.featureNames(modelFilePath);
+			featureNamesByModel.put(modelFilePath, names);
+		}
+		return names;
+	}
 	
 	public void printFeaturesTrace(Annotation doc, KBPQuery q, PrintStream outputStreamTrace) throws IOException{
 
@@ -392,86 +503,29 @@ public abstract class MultiModelMultirExtractor {
 					
 					Argument arg1 = sententialPair.first;
 					Argument arg2 = sententialPair.second;
-					//result Triple<>(relation, conf, parse.score)
-					Triple<String,Double,Double> result = de.extractFromSententialInstance(arg1, arg2, s, doc);
+					//result Triple<>(relation, conf, parse.score), scored once with the feature scores
+					Pair<Triple<String,Double,Double>,Map<Integer,Double>> scored = score(de, arg1, arg2, s, doc, true);
+					Triple<String,Double,Double> result = scored.first;
 					String rel = result.first;
 					double score = result.third;
 					
 					if(!rel.equals("NA")){
 						
-					  // get features and weights	
-						
-					  String arg1ID = null;
-				      String arg2ID = null;
-						
-					  List<String> features = 
-								fg.generateFeatures(arg1.getStartOffset(), arg1.getEndOffset(), 
-										arg2.getStartOffset(), arg2.getEndOffset(), 
-										arg1ID,arg2ID, s, doc);	
-					  
-					  Mappings mapping = de.getMapping();
-					  Map<Integer,Double> featureMap = de.extractFromSententialInstanceWithFeatureScores(arg1, arg2, s, doc).second;	
-					  //Map<Integer,Map<Integer,Double>> featureMap = de.extractFromSententialInstanceWithAllFeatureScores(sententialPair.first, sententialPair.second, s, doc).second;
-					  //Map<Integer,Map<Integer,Double>> featureMap = de.extractFromSententialInstanceWithAllFeatureScoresIgnoreNA(sententialPair.first, sententialPair.second, s, doc).second;
-					  
-					  
 					  // print to trace file
 				      outputStreamTrace.print(q.name() + "\t" + q.id() + "\t" + arg1.getArgName() + "\t" + arg2.getArgName() + "\t"
 								+ rel + "\t" + score + "\t" + sentenceText + "\t");					
 
-				      //for (String feature : features) {
-				    //	 int featureID = mapping.getFeatureID(feature, false); 
-				    //     if(featureID >= 0){
-				    //       outputStreamTrace.println(featureID + "\t" + feature + "\t" + featureMap.get(featureID) + "\t"); 
-				    //     }				    	  
-				    //  }
-				      
-				      // Make FeatureID to Feature Map
-				      HashMap<Integer,String> ftid2ft = new HashMap<Integer,String>();
-				      for (String feature : features) {
-				        int featureID = mapping.getFeatureID(feature, false); 
-				        ftid2ft.put(featureID, feature);
-				      }
-				      
-				      // Make TreeMap, the keys are sorted, key = feature weight, value = feature string
-				      //TreeMap<Double,String> sortedFtWts = new TreeMap<Double,String>();
-				      //for (Integer featureID : featureMap.keySet()) {sortedFtWts.put(featureMap.get(featureID),ftid2ft.get(featureID));}
-
-				      //Print Features Sorted by Feature Weight
-				      //for (Double key : .keySet()) {
-				      
-					  List<Feature> featuresWts = new ArrayList<Feature>();
-					  
-					  for (Integer featureID : featureMap.keySet()) {						
-					    featuresWts.add(new Feature(featureMap.get(featureID), ftid2ft.get(featureID)));					  
-			          }
-
-					  Collections.sort(featuresWts, new MyComparator());
-					  Collections.reverse(featuresWts);
-				      
-					  for(int i = 0; i < featuresWts.size(); i++) {
-						  outputStreamTrace.print(featuresWts.get(i).getName() + "\t" + featuresWts.get(i).getWeight() + "\t");
+					  //Print Features Sorted by absolute Feature Weight
+					  Map<Integer,Double> featureMap = scored.second;
+					  String[] names = featureNames(sig);
+					  int[] ids = new int[featureMap.size()];
+					  float[] weights = new float[featureMap.size()];
+					  int n = ExplainTrace.topK(featureMap, featureMap.size(), ids, weights);
+					  for(int i = 0; i < n; i++) {
+						  String name = (ids[i] >= 0 && ids[i] < names.length) ? names[ids[i]] : null;
+						  outputStreamTrace.print(name + "\t" + weights[i] + "\t");
 					  } 					  
 					  outputStreamTrace.println();
-				      
-				      //
-				      // Make Reverse Map
-				      //
-				      //HashMap<String, Character> reversedHashMap = new HashMap<String, Character>();
-				      //for (String key : myHashMap.keySet()){
-				      //    reversedHashMap.add(myHashMap.get(key), key);
-				      //}
-				      //outputStreamTrace.println();
-				      //for (Integer featureId : featureMap.keySet()) {outputStreamTrace.println(featureId + "\t" + featureMap.get(featureId) + "\t");}
-					  //for (String feature : features) {outputStreamTrace.println(feature + "\t");}
-					  //for (Integer featureId : featureMap.keySet()) {outputStreamTrace.println(featureId + "\t" + featureMap.get(featureId) + "\t");}
-					  //for (Integer key : featureMap.keySet()) {
-					  //  for(Integer key2: featureMap.get(key).keySet()){outputStreamTrace.print("key: " + featureMap.get(key).get(key2) + "\t");}
-					  //  outputStreamTrace.print("\t");
-					  //}
-					  
-					  //outputStreamTrace.print(features.size() + "\t" + featureMap.size());
-					  //outputStreamTrace.println();
 					}
 				   
 				}
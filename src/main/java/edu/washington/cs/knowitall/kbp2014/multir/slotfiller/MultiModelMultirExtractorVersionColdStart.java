@@ -39,7 +39,8 @@ public class MultiModelMultirExtractorVersionColdStart extends MultiModelMultirE
 		
 		//modelFilePaths.add("/projects/WebWare6/Multir/KBP2014/KBPModel1/Models/PERDATE-Model");
 		//modelFilePaths.add("/projects/WebWare6/Multir/KBP2014/KBPModel1/Models/PERLOC-Model");
-		modelFilePaths.add("/projects/WebWare6/KBP_2015/multir/model");
+		// -Dkbp.model.path overrides the model, e.g. with ThroughputBenchmark's stand-in
+		modelFilePaths.add(System.getProperty("kbp.model.path", "/projects/WebWare6/KBP_2015/multir/model"));
 		//modelFilePaths.add("/projects/WebWare6/Multir/KBP2014/KBPModel1/Models/PERNUM-Model");
 		//modelFilePaths.add("/projects/WebWare6/Multir/KBP2014/KBPModel1/Models/PERORG-Model");
 		//modelFilePaths.add("/projects/WebWare6/Multir/KBP2014/KBPModel1/Models/PEROTHER-Model");
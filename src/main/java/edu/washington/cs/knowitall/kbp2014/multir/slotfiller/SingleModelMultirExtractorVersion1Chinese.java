@@ -29,6 +29,11 @@ public class SingleModelMultirExtractorVersion1Chinese {  //extends MultiModelMu
 	protected String modelFilePath;
 	protected ArgumentIdentification ai;
 	protected FeatureGenerator fg;
+	// loaded from modelFilePath on first use and shared by all calls and threads;
+	// scoring only reads the model
+	private DocumentExtractor de;
+	// longer sentences are skipped
+	protected int maxSentenceLength = 200;
 	
 	public SingleModelMultirExtractorVersion1Chinese(){
 
@@ -49,6 +54,15 @@ public class SingleModelMultirExtractorVersion1Chinese {  //extends MultiModelMu
 	    fg = InstanceFeatureGenerator.getInstance();
 	    
 	}
+	
+	public synchronized DocumentExtractor getDocumentExtractor() throws IOException{
+		if(de == null) de = new DocumentExtractor(modelFilePath, fg, ai, sig);
+		return de;
+	}
+	
+	public void setMaxSentenceLength(int maxSentenceLength){
+		this.maxSentenceLength = maxSentenceLength;
+	}
 		
 	public List<Extraction> extract(Annotation doc, KBPQuery q) throws IOException{
 		
@@ -56,7 +70,7 @@ public class SingleModelMultirExtractorVersion1Chinese {  //extends MultiModelMu
 				
 		List<CoreMap> sentences = doc.get(CoreAnnotations.SentencesAnnotation.class);
 		
-		DocumentExtractor de = new DocumentExtractor(modelFilePath, fg, ai, sig);
+		DocumentExtractor de = getDocumentExtractor();
 		
 		String docID = doc.get(DocIDAnnotation.class);
 		//int sentenceCount = 0;
@@ -65,9 +79,9 @@ public class SingleModelMultirExtractorVersion1Chinese {  //extends MultiModelMu
 	    	
 	      String senText = s.get(CoreAnnotations.TextAnnotation.class);
 	      
-	      if(senText.length() < 200){
+	      if(senText.length() < maxSentenceLength){
 
-	      System.out.println("Sentence: " + docID + " " + s); 	
+	      if(RunLog.traceEnabled()) RunLog.trace("Sentence: " + docID + " " + s); 	
           
 	      //Beijing=deathplace
 	      //sentenceCount = sentenceCount + 1;
@@ -93,7 +107,7 @@ public class SingleModelMultirExtractorVersion1Chinese {  //extends MultiModelMu
 					Argument arg1 = sententialPair.first;
 					Argument arg2 = sententialPair.second;
 					
-					System.out.println("Relation: " + rel + " Score: " + score + " " + sententialPair.first + " " + sententialPair.second);
+					if(RunLog.debugEnabled()) RunLog.debug("Relation: " + rel + " Score: " + score + " " + sententialPair.first + " " + sententialPair.second);
 					
 					//These offsets look good.
 					//System.out.println("arg1: " + arg1.getArgName());
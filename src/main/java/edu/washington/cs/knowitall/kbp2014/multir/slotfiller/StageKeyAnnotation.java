@@ -0,0 +1,13 @@
+package edu.washington.cs.knowitall.kbp2014.multir.slotfiller;
+
+import edu.stanford.nlp.ling.CoreAnnotation;
+
+/**
+ * The StageCache key a document's annotation was stored under, which the
+ * later stages' keys are made from.
+ */
+public class StageKeyAnnotation implements CoreAnnotation<String> {
+
+	public Class<String> getType(){return String.class;}
+
+}
@@ -45,6 +45,9 @@ public class StanfordAnnotatorHelperMethods {
 	
 	//private final  StanfordCoreNLP suTimePipeline;
 	private final  StanfordCoreNLP corefPipeline;
+	// two-phase annotation, see TwoPhaseAnnotation: created on first use
+	private StanfordCoreNLP lightPipeline;
+	private StanfordCoreNLP parseCorefPipeline;
 	//private final StanfordCoreNLP chinesePipeline;
 	private Map<String,Annotation> corefAnnotationMap;
 	private Map<String,Annotation> suTimeAnnotationMap;
@@ -100,6 +103,35 @@ public class StanfordAnnotatorHelperMethods {
 	//public StanfordCoreNLP getChinesePipeline(){return chinesePipeline;}
 	public StanfordCoreNLP getCorefPipeline(){return corefPipeline;}
 	
+	/**
+	 * The annotators of the coref pipeline up to ner, for finding the sentences
+	 * which need the parse and dcoref annotators.
+	 */
+	public synchronized StanfordCoreNLP getLightPipeline(){
+		if(lightPipeline == null){
+			Properties lightProps = new Properties();
+			lightProps.put("annotators", "tokenize, cleanxml, ssplit, pos, lemma, ner");
+			lightProps.put("clean.allowflawedxml", "true");
+			lightProps.put("ner.useSUTime", "false");
+			lightPipeline = new StanfordCoreNLP(lightProps);
+		}
+		return lightPipeline;
+	}
+	
+	/**
+	 * The parse and dcoref annotators of the coref pipeline, run on an annotation
+	 * which the light pipeline has already tokenized, split and tagged.
+	 */
+	public synchronized StanfordCoreNLP getParseCorefPipeline(){
+		if(parseCorefPipeline == null){
+			Properties parseCorefProps = new Properties();
+			parseCorefProps.put("annotators", "parse, dcoref");
+			parseCorefProps.put("ner.useSUTime", "false");
+			parseCorefPipeline = new StanfordCoreNLP(parseCorefProps, false);
+		}
+		return parseCorefPipeline;
+	}
+	
 	public static void main(String[] args) throws FileNotFoundException, IOException{
 		StanfordAnnotatorHelperMethods sh = new StanfordAnnotatorHelperMethods();
 		//Annotation annotation = new Annotation("John Smith ate lunch.");
@@ -0,0 +1,97 @@
+package edu.washington.cs.knowitall.kbp2014.multir.slotfiller
+
+import edu.stanford.nlp.ling.CoreAnnotations.{SentencesAnnotation, TokensAnnotation}
+import edu.stanford.nlp.pipeline.Annotation
+
+import scala.collection.JavaConverters._
+
+/*
+ * Estimates the heap retained by an annotated document, so the driver can
+ * admit documents into its processing window only while the projected heap
+ * stays under a budget.
+ *
+ * Before a document is annotated only its length is known, so admission uses
+ * bytesPerChar; once it is annotated the window's estimate is revised with
+ * bytesPerToken. Both start from defaults, which count as priorChars chars /
+ * priorTokens tokens of evidence, and are calibrated by measuring every
+ * sampleEvery-th document: the used heap after a full gc, before and after
+ * annotating it. Documents are annotated one at a time, so the difference is
+ * the document's annotation (plus noise from anything cached on the way).
+ *
+ * The budget is -Dkbp.heap.budget, a fraction of the max heap (default 0.75).
+ */
+object AnnotationMemoryEstimator {
+
+  val defaultBytesPerChar = 1500.0
+  val defaultBytesPerToken = 8000.0
+  val priorChars = 100000.0
+  val priorTokens = 20000.0
+  val sampleEvery = 20
+
+  val budgetFraction = Option(System.getProperty("kbp.heap.budget")).map(_.toDouble).getOrElse(0.75)
+
+  def budgetBytes: Long = (Runtime.getRuntime().maxMemory() * budgetFraction).toLong
+
+  def usedBytes: Long = Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory()
+
+  // sums over the samples, seeded with the defaults
+  private var sampledChars = priorChars
+  private var sampledTokens = priorTokens
+  private var sampledBytesForChars = priorChars * defaultBytesPerChar
+  private var sampledBytesForTokens = priorTokens * defaultBytesPerToken
+  private var numSamples = 0
+  private var numDocs = 0
+
+  def bytesPerChar: Double = synchronized { sampledBytesForChars / sampledChars }
+  def bytesPerToken: Double = synchronized { sampledBytesForTokens / sampledTokens }
+
+  def predictFromChars(chars: Int): Long = (chars * bytesPerChar).toLong
+  def predictFromTokens(tokens: Int): Long = (tokens * bytesPerToken).toLong
+
+  def numTokens(document: Annotation): Int = {
+    val tokens = document.get(classOf[TokensAnnotation])
+    if(tokens != null) tokens.size
+    else Option(document.get(classOf[SentencesAnnotation])).map(_.asScala.map(_.get(classOf[TokensAnnotation]).size).sum).getOrElse(0)
+  }
+
+  /*
+   * Whether the next document is sampled; counts documents.
+   */
+  def nextIsSample(): Boolean = synchronized {
+    numDocs += 1
+    numDocs % sampleEvery == 1
+  }
+
+  def measuredUsedBytes: Long = {
+    System.gc()
+    usedBytes
+  }
+
+  def calibrate(chars: Int, tokens: Int, actualBytes: Long){
+    if(actualBytes <= 0) return
+    synchronized {
+      sampledChars += chars
+      sampledTokens += tokens
+      sampledBytesForChars += actualBytes
+      sampledBytesForTokens += actualBytes
+      numSamples += 1
+    }
+    println("Annotation memory: chars: " + chars + " tokens: " + tokens + " predicted: " + predictFromChars(chars) +
+      " (from tokens: " + predictFromTokens(tokens) + ") actual: " + actualBytes)
+    Metrics.increment("annotation-memory-samples")
+  }
+
+  /*
+   * Whether a document with the given predicted size fits, with windowBytes
+   * already predicted for the documents held in the window and baselineBytes
+   * used when the window was started.
+   */
+  def admit(baselineBytes: Long, windowBytes: Long, predictedBytes: Long): Boolean =
+    baselineBytes + windowBytes + predictedBytes <= budgetBytes
+
+  def report: String = synchronized {
+    "Annotation memory: samples: " + numSamples + " bytes/char: " + bytesPerChar.toLong +
+      " bytes/token: " + bytesPerToken.toLong + " budget: " + budgetBytes
+  }
+
+}
@@ -0,0 +1,170 @@
+package edu.washington.cs.knowitall.kbp2014.multir.slotfiller
+
+import java.io._
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.atomic.AtomicLong
+
+/*
+ * Asynchronous, buffered output.
+ *
+ * Writers put chunks of bytes (normally whole lines) in a bounded ring buffer
+ * and return; a background thread drains the buffer in batches into a
+ * BufferedOutputStream. When the buffer is full writers block, so nothing is
+ * dropped. flush() returns once everything written before it is on the
+ * underlying stream, and close() flushes and stops the writer thread.
+ *
+ * printStream is a PrintStream on the sink, for code written against one
+ * (OutputFormatter, System.out); each println becomes one chunk.
+ */
+class AsyncSink(underlying: OutputStream, capacity: Int = AsyncSink.defaultCapacity, name: String = "async-sink") {
+
+  private val buffer = new ArrayBlockingQueue[Array[Byte]](capacity)
+  private val out = new BufferedOutputStream(underlying, 1 << 16)
+  private val enqueued = new AtomicLong
+  private val written = new AtomicLong
+  @volatile private var closed = false
+
+  private val writer = new Thread(name) {
+    override def run(){
+      val batch = new java.util.ArrayList[Array[Byte]](capacity)
+      try{
+        while(!closed || !buffer.isEmpty){
+          val first = buffer.poll(100, java.util.concurrent.TimeUnit.MILLISECONDS)
+          if(first != null){
+            batch.add(first)
+            buffer.drainTo(batch)
+            out.synchronized {
+              var i = 0
+              while(i < batch.size){ out.write(batch.get(i)); i += 1 }
+              if(buffer.isEmpty) out.flush()
+            }
+            written.addAndGet(batch.size)
+            batch.clear()
+            AsyncSink.this.synchronized { AsyncSink.this.notifyAll() }
+          }
+        }
+      }catch{
+        case e: InterruptedException => ()
+        case e: IOException => e.printStackTrace(System.err)
+      }
+    }
+  }
+  writer.setDaemon(true)
+  writer.start()
+
+  def write(bytes: Array[Byte]){
+    if(closed) throw new IllegalStateException(name + " is closed")
+    enqueued.incrementAndGet()
+    buffer.put(bytes)
+  }
+
+  def println(line: String){ write((line + AsyncSink.lineSeparator).getBytes("UTF-8")) }
+
+  /*
+   * Wait until everything written so far is on the underlying stream.
+   */
+  def flush(){
+    val target = enqueued.get
+    synchronized {
+      while(written.get < target && writer.isAlive) wait(100)
+    }
+    out.synchronized { out.flush() }
+  }
+
+  def close(){
+    if(!closed){
+      flush()
+      closed = true
+      writer.join()
+      out.synchronized { out.close() }
+    }
+  }
+
+  /*
+   * Collects what is printed up to a flush (which PrintStream does on each
+   * println with autoflush) and writes it to the sink as one chunk.
+   */
+  private class ChunkOutputStream extends OutputStream {
+    private val chunk = new ByteArrayOutputStream()
+    override def write(b: Int){ chunk.write(b) }
+    override def write(b: Array[Byte], off: Int, len: Int){ chunk.write(b, off, len) }
+    override def flush(){
+      if(chunk.size > 0){
+        AsyncSink.this.write(chunk.toByteArray)
+        chunk.reset()
+      }
+    }
+    override def close(){ flush() }
+  }
+
+  lazy val printStream: PrintStream = new PrintStream(new ChunkOutputStream, true, "UTF-8")
+
+}
+
+object AsyncSink {
+
+  val defaultCapacity = 8192
+
+  val lineSeparator = System.getProperty("line.separator")
+
+  def toFile(fileName: String): AsyncSink = new AsyncSink(new FileOutputStream(fileName), defaultCapacity, "async-sink " + fileName)
+
+}
+
+/*
+ * Run log with verbosity levels, written through an AsyncSink on stdout.
+ *
+ * The level is -Dkbp.log.level: quiet, info, debug (default; per extraction
+ * lines) or trace (per sentence lines). install() also routes System.out and
+ * Scala's println through the sink, so console output keeps its order; the
+ * sink is flushed at shutdown.
+ */
+object RunLog {
+
+  val Quiet = 0
+  val Info = 1
+  val Debug = 2
+  val Trace = 3
+
+  val level: Int = Option(System.getProperty("kbp.log.level")).map(_.toLowerCase) match {
+    case Some("quiet") => Quiet
+    case Some("info") => Info
+    case Some("trace") => Trace
+    case _ => Debug
+  }
+
+  private val stdout = new FileOutputStream(FileDescriptor.out)
+
+  lazy val sink: AsyncSink = {
+    val s = new AsyncSink(stdout, AsyncSink.defaultCapacity, "run-log")
+    Runtime.getRuntime().addShutdownHook(new Thread(){ override def run(){ s.flush() } })
+    s
+  }
+
+  private var installed = false
+
+  def install(){
+    synchronized {
+      if(!installed){
+        System.setOut(sink.printStream)
+        Console.setOut(sink.printStream)
+        installed = true
+      }
+    }
+  }
+
+  def enabled(messageLevel: Int): Boolean = messageLevel <= level
+
+  def infoEnabled(): Boolean = enabled(Info)
+  def debugEnabled(): Boolean = enabled(Debug)
+  def traceEnabled(): Boolean = enabled(Trace)
+
+  def log(messageLevel: Int, message: String){ if(enabled(messageLevel)) sink.println(message) }
+
+  def info(message: String){ log(Info, message) }
+  def debug(message: String){ log(Debug, message) }
+  def trace(message: String){ log(Trace, message) }
+
+  def flush(){ sink.flush() }
+
+}
@@ -0,0 +1,174 @@
+package edu.washington.cs.knowitall.kbp2014.multir.slotfiller
+
+import java.io.{DataInputStream, DataOutputStream}
+
+import scala.collection.mutable
+
+import edu.washington.multirframework.data.Argument
+
+/*
+ * Append-only, columnar store of a query group's filtered candidates, in
+ * place of concatenating Seq[Candidate] per document.
+ *
+ * A row is one candidate: the argument offsets, score and candidate id in
+ * primitive arrays, and the argument names, relation, docid and sentence as
+ * ids into dictionaries, so each distinct string (a sentence's text
+ * especially, shared by all of its candidates) is stored once.
+ *
+ * Rows can be filtered and grouped by relation without making Candidates;
+ * candidates(rows) makes fresh Candidates, e.g. per query, since the KBP
+ * relation substitution changes them in place. The extractions made have no
+ * sentence number or links, as the extractors give them for Solr annotated
+ * documents.
+ *
+ * writeTo and CandidateBuffer.read store a buffer column by column, for
+ * ExtractionStore.
+ */
+class CandidateBuffer {
+
+  class Dictionary {
+    private val ids = mutable.HashMap[String, Int]()
+    private val values = mutable.ArrayBuffer[String]()
+    def id(value: String): Int = ids.getOrElseUpdate(value, { values += value; values.size - 1 })
+    def apply(id: Int): String = values(id)
+    def size: Int = values.size
+  }
+
+  private val strings = new Dictionary
+  private val sentences = new Dictionary
+
+  private var capacity = 64
+  private var ids = new Array[Int](capacity)
+  private var scores = new Array[Double](capacity)
+  private var relations = new Array[Int](capacity)
+  private var docs = new Array[Int](capacity)
+  private var sentenceIds = new Array[Int](capacity)
+  private var arg1Names = new Array[Int](capacity)
+  private var arg1Starts = new Array[Int](capacity)
+  private var arg1Ends = new Array[Int](capacity)
+  private var arg2Names = new Array[Int](capacity)
+  private var arg2Starts = new Array[Int](capacity)
+  private var arg2Ends = new Array[Int](capacity)
+
+  private var numRows = 0
+
+  def size: Int = numRows
+
+  private def grow(){
+    capacity *= 2
+    ids = java.util.Arrays.copyOf(ids, capacity)
+    scores = java.util.Arrays.copyOf(scores, capacity)
+    relations = java.util.Arrays.copyOf(relations, capacity)
+    docs = java.util.Arrays.copyOf(docs, capacity)
+    sentenceIds = java.util.Arrays.copyOf(sentenceIds, capacity)
+    arg1Names = java.util.Arrays.copyOf(arg1Names, capacity)
+    arg1Starts = java.util.Arrays.copyOf(arg1Starts, capacity)
+    arg1Ends = java.util.Arrays.copyOf(arg1Ends, capacity)
+    arg2Names = java.util.Arrays.copyOf(arg2Names, capacity)
+    arg2Starts = java.util.Arrays.copyOf(arg2Starts, capacity)
+    arg2Ends = java.util.Arrays.copyOf(arg2Ends, capacity)
+  }
+
+  def +=(candidate: Candidate): CandidateBuffer = {
+    if(numRows == capacity) grow()
+    val extr = candidate.extr
+    val arg1 = extr.getArg1()
+    val arg2 = extr.getArg2()
+    ids(numRows) = candidate.id
+    scores(numRows) = extr.getScore()
+    relations(numRows) = strings.id(extr.getRel())
+    docs(numRows) = strings.id(extr.getDocName())
+    sentenceIds(numRows) = sentences.id(extr.getSentence())
+    arg1Names(numRows) = strings.id(arg1.getArgName())
+    arg1Starts(numRows) = arg1.getStartOffset()
+    arg1Ends(numRows) = arg1.getEndOffset()
+    arg2Names(numRows) = strings.id(arg2.getArgName())
+    arg2Starts(numRows) = arg2.getStartOffset()
+    arg2Ends(numRows) = arg2.getEndOffset()
+    numRows += 1
+    this
+  }
+
+  def ++=(candidates: Seq[Candidate]): CandidateBuffer = {
+    candidates.foreach(this += _)
+    this
+  }
+
+  def candidateId(row: Int): Int = ids(row)
+  def relation(row: Int): String = strings(relations(row))
+  def score(row: Int): Double = scores(row)
+  def docid(row: Int): String = strings(docs(row))
+
+  def rows: Range = 0 until numRows
+
+  def filter(p: Int => Boolean): IndexedSeq[Int] = rows.filter(p)
+
+  def rowsByRelation: Map[String, IndexedSeq[Int]] = rows.groupBy(relation)
+
+  def candidate(row: Int): Candidate = {
+    val arg1 = new Argument(strings(arg1Names(row)), arg1Starts(row), arg1Ends(row))
+    val arg2 = new Argument(strings(arg2Names(row)), arg2Starts(row), arg2Ends(row))
+    new Candidate(ids(row), new Extraction(arg1, arg2, relation(row), scores(row), null, null, null, null,
+      docid(row), null, null, null, sentences(sentenceIds(row))))
+  }
+
+  def candidates(rows: Seq[Int]): Seq[Candidate] = rows.map(candidate)
+
+  def toCandidates: Seq[Candidate] = candidates(rows)
+
+  // --------------------------------------------------------------------
+  // Storage: the dictionaries, then each column
+  // --------------------------------------------------------------------
+
+  private def writeDictionary(out: DataOutputStream, dictionary: Dictionary){
+    out.writeInt(dictionary.size)
+    for(id <- 0 until dictionary.size){
+      // as bytes, since a sentence may be longer than writeUTF allows
+      val bytes = dictionary(id).getBytes("UTF-8")
+      out.writeInt(bytes.length)
+      out.write(bytes)
+    }
+  }
+
+  private def readDictionary(in: DataInputStream, dictionary: Dictionary){
+    for(i <- 0 until in.readInt()){
+      val bytes = new Array[Byte](in.readInt())
+      in.readFully(bytes)
+      dictionary.id(new String(bytes, "UTF-8"))
+    }
+  }
+
+  def writeTo(out: DataOutputStream){
+    writeDictionary(out, strings)
+    writeDictionary(out, sentences)
+    out.writeInt(numRows)
+    for(column <- Seq(ids, relations, docs, sentenceIds, arg1Names, arg1Starts, arg1Ends, arg2Names, arg2Starts, arg2Ends)){
+      for(row <- rows) out.writeInt(column(row))
+    }
+    for(row <- rows) out.writeDouble(scores(row))
+  }
+
+  private def readFrom(in: DataInputStream){
+    readDictionary(in, strings)
+    readDictionary(in, sentences)
+    numRows = in.readInt()
+    while(capacity < numRows) grow()
+    for(column <- Seq(ids, relations, docs, sentenceIds, arg1Names, arg1Starts, arg1Ends, arg2Names, arg2Starts, arg2Ends)){
+      for(row <- rows) column(row) = in.readInt()
+    }
+    for(row <- rows) scores(row) = in.readDouble()
+  }
+
+  def summary: String = "rows: " + numRows + " strings: " + strings.size + " sentences: " + sentences.size
+
+}
+
+object CandidateBuffer {
+
+  def read(in: DataInputStream): CandidateBuffer = {
+    val buffer = new CandidateBuffer
+    buffer.readFrom(in)
+    buffer
+  }
+
+}
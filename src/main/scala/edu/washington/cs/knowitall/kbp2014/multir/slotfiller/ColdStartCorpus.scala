@@ -1,24 +1,35 @@
 package edu.washington.cs.knowitall.kbp2014.multir.slotfiller
 
+import java.io.File
+
+/*
+ * The cold start document collection, as a DocidSet memory-mapped from the
+ * prebuilt resource (DocidSet document_collection_2014.txt document_collection_2014.docids),
+ * or, without it, built from the document list into a temporary file.
+ */
 object ColdStartCorpus {
-  
+
   private val coldStartCorpusResourcePath = "/edu/washington/cs/knowitall/kbp2014/multir/slotfiller/document_collection_2014.txt"
-  
-  private val coldStartURL = getClass().getResource(coldStartCorpusResourcePath)
-  require(coldStartURL != null, "Could not find resource: " + coldStartCorpusResourcePath)
+  private val coldStartDocidSetResourcePath = "/edu/washington/cs/knowitall/kbp2014/multir/slotfiller/document_collection_2014.docids"
+
+  // whether the prebuilt DocidSet is there, so documents is only mapped, not built
+  def prebuilt: Boolean = getClass().getResource(coldStartDocidSetResourcePath) != null
+
+  lazy val documents: DocidSet = {
+    val docidSetURL = getClass().getResource(coldStartDocidSetResourcePath)
+    if(docidSetURL != null) DocidSet.map(new File(docidSetURL.getPath()))
+    else{
+      val coldStartURL = getClass().getResource(coldStartCorpusResourcePath)
+      require(coldStartURL != null, "Could not find resource: " + coldStartCorpusResourcePath)
 
-    
-  private val docSet =  scala.collection.mutable.Set[String]()
+      val file = File.createTempFile("document_collection_2014", ".docids")
+      file.deleteOnExit()
+      // read in document list lines with latin encoding so as not to get errors.
+      val source = scala.io.Source.fromFile(coldStartURL.getPath())(scala.io.Codec.ISO8859)
+      try{ DocidSet.build(source.getLines.map(_.trim), file) }
+      finally{ source.close() }
+      DocidSet.map(file)
+    }
+  }
 
-  // read in document list lines with latin encoding so as not to get errors.
-  scala.io.Source.fromFile(coldStartURL.getPath())(scala.io.Codec.ISO8859).getLines.foreach(line => {
-    
-      val name = line.trim
-      
-      if(!docSet.contains(name)) docSet.add(name)
-        
-    })
-    
-  lazy val documents = docSet.toSet
-  
 }
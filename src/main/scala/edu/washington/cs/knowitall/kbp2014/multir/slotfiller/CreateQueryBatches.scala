@@ -88,32 +88,19 @@ object CreateQueryBatches {
     //et.foreach(d => println(d))
     //qn.foreach(d => println(d))     
     
-    var querySet: Set[String] = Set()
-    var sameQueries : List[List[KBPQuery]] = List()
+    val queryPlan = QueryPlanner.plan(queries)
+    val sameQueries = queryPlan.groups
     
-    println("querySet size: " + querySet.size)
+    println("sameQueries size: " + sameQueries.size)
     
-    for(query <- queries){
-      //val qnlc = query.name.trim.toLowerCase
-      val qnlc = query.name
-      
-      if(!querySet.contains(qnlc)){
-        querySet += qnlc   
-        //get all matching queries
-        val matchingQueries = queries.filter(q => qnlc.equals(q.name))
-        sameQueries = sameQueries ++ List(matchingQueries)        
-      } 
-    }
+    val numDocsByQueryID = queryNumDocs.map(d => (d.queryID, d.numDocs)).toMap
     
-    println("querySet size: " + querySet.size)
-    //querySet.toList.sorted.foreach(q => println(q))
-    println("sameQueries size: " + sameQueries.size)
     var sqcount = 0
     var totDocs = 0
     
     sameQueries.foreach(s => {
-      val qname = sameQueries(sqcount)(0).name
-      val numDocs = queryNumDocs.filter(d => d.queryID ==sameQueries(sqcount)(0).id)(0).numDocs
+      val qname = s.firstQuery.name
+      val numDocs = numDocsByQueryID(s.firstQuery.id)
       if(numDocs > 500)
         totDocs += 500
       else  
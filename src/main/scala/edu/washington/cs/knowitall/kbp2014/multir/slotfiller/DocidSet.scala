@@ -0,0 +1,269 @@
+package edu.washington.cs.knowitall.kbp2014.multir.slotfiller
+
+import java.io._
+import java.nio.{ByteBuffer, ByteOrder}
+import java.nio.channels.FileChannel
+import java.nio.charset.Charset
+
+import scala.util.hashing.MurmurHash3
+
+/*
+ * A compact, read-only set of docids, memory-mapped from a binary file built
+ * once from a document list (DocidSet.build, or main below).
+ *
+ * The docids are sorted and front-coded in blocks of blockSize: the first
+ * docid of a block is stored whole, each following one as the length of the
+ * prefix it shares with the one before and the rest of its bytes. contains
+ * binary searches the blocks' first docids and scans one block. A Bloom
+ * filter in front answers most docids which are not in the set without
+ * touching the blocks.
+ *
+ * File layout (big endian):
+ *   int magic, int count, int blockSize, int numBlocks, int bloomWords, int numHashes
+ *   long[bloomWords] Bloom filter bits
+ *   int[numBlocks] block offsets, from the start of the data
+ *   data: per docid varint lengths and ISO-8859-1 bytes
+ */
+class DocidSet private (buffer: ByteBuffer) extends Iterable[String] {
+
+  import DocidSet._
+
+  require(buffer.getInt(0) == magic, "not a docid set file")
+
+  private val count = buffer.getInt(4)
+  private val blockSize = buffer.getInt(8)
+  private val numBlocks = buffer.getInt(12)
+  private val bloomWords = buffer.getInt(16)
+  private val numHashes = buffer.getInt(20)
+  private val offsetsStart = headerBytes + bloomWords * 8
+  private val dataStart = offsetsStart + numBlocks * 4
+
+  private class Cursor(var pos: Int){
+    def varint(): Int = {
+      var value = 0
+      var shift = 0
+      var b = 0x80
+      while((b & 0x80) != 0){
+        b = buffer.get(pos) & 0xff
+        pos += 1
+        value |= (b & 0x7f) << shift
+        shift += 7
+      }
+      value
+    }
+  }
+
+  private def blockStart(block: Int): Int = dataStart + buffer.getInt(offsetsStart + block * 4)
+
+  private def blockCount(block: Int): Int = math.min(blockSize, count - block * blockSize)
+
+  private def mightContain(docid: String): Boolean = {
+    val bits = bloomWords * 64L
+    val h1 = docid.hashCode
+    val h2 = MurmurHash3.stringHash(docid)
+    var i = 0
+    var found = true
+    while(found && i < numHashes){
+      val bit = (((h1 + i.toLong * h2) % bits) + bits) % bits
+      found = (buffer.getLong(headerBytes + (bit >>> 6).toInt * 8) & (1L << (bit & 63))) != 0
+      i += 1
+    }
+    found
+  }
+
+  // unsigned byte order, which for ISO-8859-1 is the docids' String order
+  private def compareAt(pos: Int, len: Int, key: Array[Byte]): Int = {
+    var i = 0
+    val n = math.min(len, key.length)
+    while(i < n){
+      val c = (buffer.get(pos + i) & 0xff) - (key(i) & 0xff)
+      if(c != 0) return c
+      i += 1
+    }
+    len - key.length
+  }
+
+  private def compareFirst(block: Int, key: Array[Byte]): Int = {
+    val c = new Cursor(blockStart(block))
+    val len = c.varint()
+    compareAt(c.pos, len, key)
+  }
+
+  /*
+   * Decode the block's docids in turn, calling f with the bytes and length of
+   * each, until f returns false.
+   */
+  private def foreachInBlock(block: Int)(f: (Array[Byte], Int) => Boolean){
+    val c = new Cursor(blockStart(block))
+    var current = new Array[Byte](64)
+    var len = 0
+    var i = 0
+    var more = true
+    while(more && i < blockCount(block)){
+      val prefix = if(i == 0) 0 else c.varint()
+      val suffix = c.varint()
+      len = prefix + suffix
+      if(len > current.length) current = java.util.Arrays.copyOf(current, len * 2)
+      var j = 0
+      while(j < suffix){
+        current(prefix + j) = buffer.get(c.pos + j)
+        j += 1
+      }
+      c.pos += suffix
+      more = f(current, len)
+      i += 1
+    }
+  }
+
+  def contains(docid: String): Boolean = {
+    if(count == 0 || !mightContain(docid)) false
+    else{
+      val key = docid.getBytes(latin1)
+      // the last block whose first docid is <= key
+      var lo = 0
+      var hi = numBlocks - 1
+      while(lo < hi){
+        val mid = (lo + hi + 1) >>> 1
+        if(compareFirst(mid, key) <= 0) lo = mid else hi = mid - 1
+      }
+      var found = false
+      foreachInBlock(lo)((bytes, len) => {
+        val c = compare(bytes, len, key)
+        found = c == 0
+        c < 0
+      })
+      found
+    }
+  }
+
+  override def size: Int = count
+
+  def iterator: Iterator[String] = (0 until numBlocks).iterator.flatMap(block => {
+    val docids = new Array[String](blockCount(block))
+    var i = 0
+    foreachInBlock(block)((bytes, len) => {
+      docids(i) = new String(bytes, 0, len, latin1)
+      i += 1
+      true
+    })
+    docids.iterator
+  })
+
+}
+
+object DocidSet {
+
+  val magic = 0x44434944
+  val headerBytes = 24
+  val defaultBlockSize = 16
+  // about 1% false positives
+  val bloomBitsPerDocid = 10
+  val defaultNumHashes = 7
+
+  val latin1 = Charset.forName("ISO-8859-1")
+
+  private def compare(a: Array[Byte], len: Int, key: Array[Byte]): Int = {
+    var i = 0
+    val n = math.min(len, key.length)
+    while(i < n){
+      val c = (a(i) & 0xff) - (key(i) & 0xff)
+      if(c != 0) return c
+      i += 1
+    }
+    len - key.length
+  }
+
+  private def writeVarint(out: DataOutputStream, value: Int){
+    var v = value
+    while((v & ~0x7f) != 0){
+      out.writeByte((v & 0x7f) | 0x80)
+      v >>>= 7
+    }
+    out.writeByte(v)
+  }
+
+  /*
+   * Sort the docids and write the set to file.
+   */
+  def build(docids: Iterator[String], file: File, blockSize: Int = defaultBlockSize){
+    val sorted = docids.toArray.distinct.sorted
+    val bytes = sorted.map(_.getBytes(latin1))
+
+    val bloomWords = math.max(1, (sorted.length.toLong * bloomBitsPerDocid / 64 + 1).toInt)
+    val bloom = new Array[Long](bloomWords)
+    val bits = bloomWords * 64L
+    for(docid <- sorted){
+      val h1 = docid.hashCode
+      val h2 = MurmurHash3.stringHash(docid)
+      for(i <- 0 until defaultNumHashes){
+        val bit = (((h1 + i.toLong * h2) % bits) + bits) % bits
+        bloom((bit >>> 6).toInt) |= 1L << (bit & 63)
+      }
+    }
+
+    val numBlocks = (sorted.length + blockSize - 1) / blockSize
+    val offsets = new Array[Int](numBlocks)
+    val data = new ByteArrayOutputStream()
+    val dataOut = new DataOutputStream(data)
+    for(i <- 0 until bytes.length){
+      if(i % blockSize == 0){
+        offsets(i / blockSize) = dataOut.size()
+        writeVarint(dataOut, bytes(i).length)
+        dataOut.write(bytes(i))
+      }
+      else{
+        val previous = bytes(i - 1)
+        var prefix = 0
+        while(prefix < previous.length && prefix < bytes(i).length && previous(prefix) == bytes(i)(prefix)) prefix += 1
+        writeVarint(dataOut, prefix)
+        writeVarint(dataOut, bytes(i).length - prefix)
+        dataOut.write(bytes(i), prefix, bytes(i).length - prefix)
+      }
+    }
+    dataOut.flush()
+
+    val out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16))
+    try{
+      out.writeInt(magic)
+      out.writeInt(sorted.length)
+      out.writeInt(blockSize)
+      out.writeInt(numBlocks)
+      out.writeInt(bloomWords)
+      out.writeInt(defaultNumHashes)
+      bloom.foreach(out.writeLong)
+      offsets.foreach(out.writeInt)
+      data.writeTo(out)
+    }
+    finally{ out.close() }
+  }
+
+  /*
+   * Memory-map a set written by build.
+   */
+  def map(file: File): DocidSet = {
+    val in = new RandomAccessFile(file, "r")
+    try{
+      val buffer = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, in.length())
+      buffer.order(ByteOrder.BIG_ENDIAN)
+      new DocidSet(buffer)
+    }
+    finally{ in.close() }
+  }
+
+  /*
+   * Build the set from a document list, one docid per line (read as
+   * ISO-8859-1, as ColdStartCorpus reads it).
+   *
+   * Args: documentListFile docidSetFile
+   */
+  def main(Args: Array[String]){
+    val startTime = System.currentTimeMillis()
+    val source = scala.io.Source.fromFile(Args(0))(scala.io.Codec.ISO8859)
+    try{ build(source.getLines.map(_.trim).filter(_.nonEmpty), new File(Args(1))) }
+    finally{ source.close() }
+    val set = map(new File(Args(1)))
+    println("DocidSet: " + set.size + " docids, " + new File(Args(1)).length() + " bytes, millis: " +
+      (System.currentTimeMillis() - startTime))
+  }
+
+}
@@ -0,0 +1,103 @@
+package edu.washington.cs.knowitall.kbp2014.multir.slotfiller
+
+import scala.collection.mutable
+
+/*
+ * Orders a query's relevant documents so the ones most likely to give answers
+ * are annotated first, under a per-query document and time budget.
+ *
+ * The score is cheap, from the raw document only: how often the query's
+ * aliases occur, hits in the headline or title, the source genre by docid
+ * prefix (newswire, then newsgroups "eng-", then forums "bolt", as in
+ * RelevantDocs), divided by a length factor, since long documents cost the
+ * most to annotate.
+ *
+ * Which documents are processed depends on the score: raw documents are
+ * fetched and scored from a candidate pool of up to maxFetched, larger than
+ * maxDocs, newswire first, and only until half the query's time budget is
+ * spent, so fetching cannot use up the budget; the maxDocs best scored are
+ * kept and the drivers process them best first, stopping at the deadline when
+ * a time budget is set. Only the kept documents hold on to their raw text
+ * (for annotation), so the drivers should release each one once it has been
+ * processed.
+ *
+ *   -Dkbp.query.maxDocs      documents processed per query, default 500 (the former cap)
+ *   -Dkbp.query.maxFetched   documents fetched and scored per query, default 4 x maxDocs
+ *   -Dkbp.query.millis       time budget per query, default 0, none
+ */
+object DocumentPrioritizer {
+
+  val maxDocs = Integer.getInteger("kbp.query.maxDocs", 500).intValue
+  val maxFetched = Integer.getInteger("kbp.query.maxFetched", 4 * maxDocs).intValue
+  val maxMillis = java.lang.Long.getLong("kbp.query.millis", 0L).longValue
+
+  case class RankedDoc(docid: String, rawDoc: String, score: Double)
+
+  def genreWeight(docid: String): Double = {
+    if(docid.startsWith("bolt")) 0.5
+    else if(docid.startsWith("eng-")) 0.75
+    else 1.0
+  }
+
+  private val headlinePattern = "(?is)<(headline|title)>(.*?)</\\1>".r
+
+  def headlines(rawDoc: String): String = headlinePattern.findAllMatchIn(rawDoc).map(_.group(2)).mkString(" ")
+
+  def countOccurrences(text: String, alias: String): Int = {
+    var count = 0
+    var i = if(alias.isEmpty) -1 else text.indexOf(alias)
+    while(i >= 0){
+      count += 1
+      i = text.indexOf(alias, i + alias.length)
+    }
+    count
+  }
+
+  def score(docid: String, rawDoc: String, aliases: Set[String]): Double = {
+    val mentions = aliases.toSeq.map(countOccurrences(rawDoc, _)).sum
+    val headline = headlines(rawDoc)
+    val headlineHits = aliases.count(headline.contains(_))
+    genreWeight(docid) * (1.0 + math.log1p(mentions) + 2.0 * headlineHits) / math.sqrt(1.0 + rawDoc.length / 10000.0)
+  }
+
+  /*
+   * Fetch and score the documents, returning the best keep of them, highest
+   * score first; no more are fetched after fetchDeadline. Only the best keep
+   * so far are held while fetching, in a heap with the worst on top.
+   */
+  def rank(documents: Set[String], aliases: Set[String], fetch: String => String, fetchDeadline: Long = Long.MaxValue,
+      keep: Int = maxDocs): List[RankedDoc] = {
+    val startTime = System.currentTimeMillis()
+    val toFetch = documents.toList.sortBy(d => (-genreWeight(d), d)).take(maxFetched)
+    val best = mutable.PriorityQueue[RankedDoc]()(Ordering.by[RankedDoc, Double](-_.score))
+    var numFetched = 0
+    val remaining = toFetch.iterator
+    while(remaining.hasNext && System.currentTimeMillis() < fetchDeadline){
+      val docid = remaining.next()
+      try{
+        val rawDoc = Metrics.time(Metrics.DocFetch){ fetch(docid) }
+        numFetched += 1
+        best.enqueue(RankedDoc(docid, rawDoc, score(docid, rawDoc, aliases)))
+        if(best.size > keep) best.dequeue()
+      }catch{
+        case e: Exception => {
+          e.printStackTrace()
+          println("EXCEPTION: fetching " + docid)
+        }
+      }
+    }
+    val ranked = best.toList.sortBy(-_.score)
+    if(System.currentTimeMillis() >= fetchDeadline){
+      println("DocumentPrioritizer: fetch deadline")
+      Metrics.increment("fetch-deadline-stops")
+    }
+    println("DocumentPrioritizer: relevant: " + documents.size + " fetched: " + numFetched + " of " + toFetch.size + " kept: " + ranked.size +
+      " millis: " + (System.currentTimeMillis() - startTime))
+    ranked
+  }
+
+  def deadline(startTime: Long): Long = if(maxMillis > 0) startTime + maxMillis else Long.MaxValue
+
+  def fetchDeadline(startTime: Long): Long = if(maxMillis > 0) startTime + maxMillis / 2 else Long.MaxValue
+
+}
@@ -120,72 +120,35 @@ object ExtractSingleSystemQueryOutput {
     //  System.out.println(s"Input file $inOutputFileName doesn't exist!  " + s"Exiting...")
     //  sys.exit(1)
     //} 
-    //---------------------
-    // Multir
-    //---------------------
-    var multirCount = 0
-    var notMultirCount = 0
-    Source.fromFile(inOutputFileName_multir).getLines().foreach(line => {
-      try{
-        val tokens = line.trim.split("\t")
-        tokens.size match {
-          case s if s == 8 => {                        
-            if(round2QueryIDsMultir.contains(tokens(0))){   
-              //outStreamMultir.println(line)
-              multirCount += 1
-            }
-            else if(round2QueryIDsImplie.contains(tokens(0)) || round2QueryIDsOpenie.contains(tokens(0))) notMultirCount += 1
-          }
-          case _ =>   
-        }
-      }catch{
-        case e: Exception =>
-      }  
-    })   
-    //---------------------
-    // Implie
-    //---------------------
-    var implieCount = 0
-    var notImplieCount = 0
-    Source.fromFile(inOutputFileName_implie).getLines().foreach(line => {
-      try{
-        val tokens = line.trim.split("\t")
-        tokens.size match {
-          case s if s == 8 => {                        
-            if(round2QueryIDsImplie.contains(tokens(0))){   
-              //outStreamImplie.println(line)
-              implieCount += 1
-            }
-            else if(round2QueryIDsMultir.contains(tokens(0)) || round2QueryIDsOpenie.contains(tokens(0))) notImplieCount += 1
-          }
-          case _ =>   
-        }
-      }catch{
-        case e: Exception =>
-      }  
-    })   
-    //---------------------
-    // Openie
-    //---------------------
-    var openieCount = 0
-    var notOpenieCount = 0
-    Source.fromFile(inOutputFileName_openie).getLines().foreach(line => {
-      try{
-        val tokens = line.trim.split("\t")
-        tokens.size match {
-          case s if s == 8 => {                        
-            if(round2QueryIDsOpenie.contains(tokens(0))){   
-              //outStreamOpenie.println(line)
-              openieCount += 1
-            }
-            else if(round2QueryIDsImplie.contains(tokens(0)) || round2QueryIDsMultir.contains(tokens(0))) notOpenieCount += 1
-          }
-          case _ =>   
-        }
-      }catch{
-        case e: Exception =>
-      }  
-    })       
+    // One pass over each system's output, the three files are read in parallel.
+    // A line is counted for its own system if its query id came from that system's
+    // round1 output, else for "not" that system if it came from another system's.
+    val multirIDs = round2QueryIDsMultir.toSet
+    val implieIDs = round2QueryIDsImplie.toSet
+    val openieIDs = round2QueryIDsOpenie.toSet
+    
+    val multirFilter = new KBPOutputPipeline.QueryFilter(multirIDs)
+    val notMultirCounter = new KBPOutputPipeline.QueryCounter((implieIDs ++ openieIDs) -- multirIDs)
+    val implieFilter = new KBPOutputPipeline.QueryFilter(implieIDs)
+    val notImplieCounter = new KBPOutputPipeline.QueryCounter((multirIDs ++ openieIDs) -- implieIDs)
+    val openieFilter = new KBPOutputPipeline.QueryFilter(openieIDs)
+    val notOpenieCounter = new KBPOutputPipeline.QueryCounter((implieIDs ++ multirIDs) -- openieIDs)
+    
+    // Output files are not written, set Some(outFileName_<system>) to write them
+    KBPOutputPipeline.run(List(
+      KBPOutputPipeline.PipelineTask(inOutputFileName_multir, None,
+        List(new KBPOutputPipeline.RequireColumns(8), notMultirCounter, multirFilter)),
+      KBPOutputPipeline.PipelineTask(inOutputFileName_implie, None,
+        List(new KBPOutputPipeline.RequireColumns(8), notImplieCounter, implieFilter)),
+      KBPOutputPipeline.PipelineTask(inOutputFileName_openie, None,
+        List(new KBPOutputPipeline.RequireColumns(8), notOpenieCounter, openieFilter))))
+    
+    val multirCount = multirFilter.kept.get
+    val notMultirCount = notMultirCounter.count.get
+    val implieCount = implieFilter.kept.get
+    val notImplieCount = notImplieCounter.count.get
+    val openieCount = openieFilter.kept.get
+    val notOpenieCount = notOpenieCounter.count.get
     
     
     // ---------------------------------------
@@ -0,0 +1,104 @@
+package edu.washington.cs.knowitall.kbp2014.multir.slotfiller
+
+import java.io._
+
+import scala.collection.parallel.ForkJoinTaskSupport
+
+/*
+ * Replays filterResults, the KBP relation substitution and SelectBestAnswers
+ * from an ExtractionStore, for many filter configurations in parallel,
+ * writing each configuration's answers as the run would have.
+ *
+ * A configuration is a score threshold, with ":exact" to drop the coref
+ * match, e.g. 1900000 (the run's), 4000000, 7500000:exact.
+ *
+ * args: extraction store, query file, round id, output directory, run id,
+ * configurations...
+ */
+object ExtractionReplay {
+
+  case class ReplayConfig(threshold: Double, coref: Boolean){
+    def name: String = threshold.toLong + (if(coref) "" else "-exact")
+  }
+
+  def parseConfig(spec: String): ReplayConfig = spec.split(":") match {
+    case Array(threshold) => ReplayConfig(threshold.toDouble, true)
+    case Array(threshold, "exact") => ReplayConfig(threshold.toDouble, false)
+    case _ => throw new IllegalArgumentException("Bad replay configuration: " + spec)
+  }
+
+  /*
+   * The best answers of the group's queries under the configuration,
+   * filtering with the group's first query, as the run did.
+   */
+  def replay(group: ExtractionStore.StoredGroup, firstQuery: KBPQuery, queries: Seq[KBPQuery], config: ReplayConfig): Seq[(KBPQuery, Map[Slot, Seq[Candidate]])] = {
+    val buffer = group.candidates
+    val relevantRows = buffer.filter(row => {
+      val coref = config.coref && group.entityMatches(row) == ExtractionStore.Coref
+      FilterExtractionResults.satisfiesFilters(buffer.candidate(row), firstQuery, _ => coref, config.threshold)
+    })
+    for(query <- queries) yield {
+      // fresh candidates per query, since the substitution changes them
+      val kbpAllRelevantCandidates = FilterExtractionResults.substituteKBPRelationsColdStart(buffer.candidates(relevantRows), query)
+      val bestAnswers = query.slotsToFill.map(slot =>
+        ( slot, SelectBestAnswers.reduceToMaxResults(slot, kbpAllRelevantCandidates.filter(_.extr.getRel() == slot.name)) )).toMap
+      (query, bestAnswers)
+    }
+  }
+
+  def main(args: Array[String]){
+
+    val storeFile = args(0)
+    val queriesFile = args(1)
+    val roundID = args(2)
+    val outputDir = new File(args(3))
+    val runID = args(4)
+    val configs = args.drop(5).map(parseConfig).toList
+    require(configs.nonEmpty, "No replay configurations")
+    outputDir.mkdirs()
+
+    val queriesById = KBPQuery.parseKBPQueries(queriesFile, roundID).map(q => (q.id, q)).toMap
+
+    val outputs = configs.map(config => {
+      val stream = new PrintStream(new BufferedOutputStream(new FileOutputStream(new File(outputDir, "replay-" + config.name + ".txt")), 1 << 16))
+      (config, stream, OutputFormatter.formattedAnswersOnly(stream, runID), new java.util.concurrent.atomic.AtomicLong)
+    })
+
+    val numThreads = math.min(configs.size, Runtime.getRuntime().availableProcessors())
+    val taskSupport = new ForkJoinTaskSupport(new scala.concurrent.forkjoin.ForkJoinPool(numThreads))
+
+    val startTime = System.currentTimeMillis()
+    var numGroups = 0
+
+    // groups in the run's order; each configuration's output is written by one task at a time
+    for(group <- ExtractionStore.read(storeFile)){
+      numGroups += 1
+      val queries = group.relevantSlotQueryNames.flatMap({ case (id, name) =>
+        // with the name the run resolved the query to
+        queriesById.get(id).map(query => { query.name = name; query })
+      })
+      if(queries.size < group.relevantSlotQueryNames.size) println("Queries missing from " + queriesFile + " for " + group.queryId)
+      // the query the run filtered with, which need not be one of those answered
+      val firstQuery = queriesById.get(group.queryId).map(query => { query.name = group.queryName; query })
+      if(firstQuery.isEmpty) println("First query missing from " + queriesFile + ": " + group.queryId)
+
+      for(firstQuery <- firstQuery; if(queries.nonEmpty)){
+        val parOutputs = outputs.par
+        parOutputs.tasksupport = taskSupport
+        parOutputs.foreach({ case (config, stream, outFmt, numAnswers) =>
+          for((query, bestAnswers) <- replay(group, firstQuery, queries, config)){
+            numAnswers.addAndGet(bestAnswers.values.map(_.size).sum)
+            outFmt.printAnswers(bestAnswers, query)
+          }
+        })
+      }
+    }
+
+    println("Replayed " + numGroups + " query groups, " + configs.size + " configurations, millis: " + (System.currentTimeMillis() - startTime))
+    for((config, stream, outFmt, numAnswers) <- outputs){
+      stream.close()
+      println(config.name + "\tanswers: " + numAnswers.get)
+    }
+  }
+
+}
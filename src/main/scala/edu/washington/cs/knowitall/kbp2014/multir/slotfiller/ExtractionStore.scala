@@ -0,0 +1,125 @@
+package edu.washington.cs.knowitall.kbp2014.multir.slotfiller
+
+import java.io._
+
+import scala.collection.mutable
+
+import edu.stanford.nlp.pipeline.Annotation
+
+/*
+ * Store of every extraction before filtering, for tuning the filters and the
+ * answer selection without rerunning annotation and extraction: -Dkbp.extraction.store=<file>
+ * in RunKBP2015MultirExtractor writes it, ExtractionReplay replays it.
+ *
+ * The file has one block per processed query group: the id and (resolved) name
+ * of the group's first query, which the filter ran with, the ids and names of
+ * the queries answered from the group, then the
+ * group's extractions as a CandidateBuffer (docid, sentence, arguments,
+ * relation and score by column, strings stored once), then one
+ * byte per extraction for how its first argument matched the query: exactly,
+ * in the same coref chain, or not. The coref check is the one part of the
+ * filter which needs the document annotation, so it is stored, and is only
+ * run where there is no exact match, as in filterResults.
+ *
+ * A group's block is written when the group finishes; a group which fails is
+ * not written, as the run printed no answers for it.
+ */
+class ExtractionStore(fileName: String) {
+
+  import ExtractionStore._
+
+  private val out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fileName), 1 << 16))
+  out.writeInt(MAGIC)
+  out.writeInt(VERSION)
+
+  private var group: QueryPlanner.QueryGroup = null
+  private var buffer = new CandidateBuffer
+  private val entityMatches = mutable.ArrayBuffer[Byte]()
+
+  def beginGroup(queryGroup: QueryPlanner.QueryGroup) = synchronized {
+    group = queryGroup
+    buffer = new CandidateBuffer
+    entityMatches.clear()
+  }
+
+  def entityMatch(candidate: Candidate, query: KBPQuery, document: Option[Annotation]): Byte = {
+    if(FilterExtractionResults.satisfiesEntityExactMatchFilter(candidate, query)) Exact
+    else if(FilterExtractionResults.satisfiesEntityFilter(document)(query)(candidate)) Coref
+    else NoMatch
+  }
+
+  /*
+   * Records the candidates and returns those which pass filterResults, with
+   * the same coref checks.
+   */
+  def recordAndFilter(candidates: Seq[Candidate], query: KBPQuery, document: Option[Annotation]): Seq[Candidate] = {
+    val matches = candidates.map(entityMatch(_, query, document))
+    synchronized {
+      buffer ++= candidates
+      entityMatches ++= matches
+    }
+    candidates.zip(matches).filter({ case (candidate, m) =>
+      FilterExtractionResults.satisfiesFilters(candidate, query, _ => m == Coref, FilterExtractionResults.scoreThreshold)
+    }).map(_._1)
+  }
+
+  def endGroup() = synchronized {
+    if(group != null){
+      out.writeBoolean(true)
+      out.writeUTF(group.firstQuery.id)
+      out.writeUTF(group.firstQuery.name)
+      out.writeInt(group.relevantSlotQueries.size)
+      group.relevantSlotQueries.foreach(q => { out.writeUTF(q.id); out.writeUTF(q.name) })
+      buffer.writeTo(out)
+      out.write(entityMatches.toArray)
+      println("ExtractionStore: " + group.firstQuery.id + " " + buffer.summary)
+      group = null
+    }
+  }
+
+  def close() = synchronized {
+    out.writeBoolean(false)
+    out.close()
+  }
+
+}
+
+object ExtractionStore {
+
+  val MAGIC = 0x4B425045
+  val VERSION = 2
+
+  val NoMatch: Byte = 0
+  val Exact: Byte = 1
+  val Coref: Byte = 2
+
+  case class StoredGroup(queryId: String, queryName: String, relevantSlotQueryNames: Seq[(String, String)],
+      candidates: CandidateBuffer, entityMatches: Array[Byte])
+
+  /*
+   * The stored query groups, read one at a time.
+   */
+  def read(fileName: String): Iterator[StoredGroup] = {
+    val in = new DataInputStream(new BufferedInputStream(new FileInputStream(fileName), 1 << 16))
+    require(in.readInt() == MAGIC, "Not an extraction store: " + fileName)
+    require(in.readInt() == VERSION, "Unknown extraction store version: " + fileName)
+    new Iterator[StoredGroup] {
+      private var more = in.readBoolean()
+      if(!more) in.close()
+      def hasNext = more
+      def next(): StoredGroup = {
+        if(!more) throw new NoSuchElementException
+        val queryId = in.readUTF()
+        val queryName = in.readUTF()
+        val relevantSlotQueryNames = (0 until in.readInt()).map(i => (in.readUTF(), in.readUTF()))
+        val candidates = CandidateBuffer.read(in)
+        val entityMatches = new Array[Byte](candidates.size)
+        in.readFully(entityMatches)
+        more = in.readBoolean()
+        if(!more) in.close()
+        StoredGroup(queryId, queryName, relevantSlotQueryNames, candidates, entityMatches)
+      }
+    }
+  }
+
+}
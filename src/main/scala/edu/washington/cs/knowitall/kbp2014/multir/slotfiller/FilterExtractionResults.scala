@@ -49,12 +49,16 @@ object FilterExtractionResults {
     }        
   }
   
-  def satisfiesThresholdFilter(candidate: Candidate): Boolean = {
+  // Threshold of 7.5 mil established by Stephen's analysis, KBP2014
+  //val scoreThreshold = 7500000.0
+  //val scoreThreshold = 4000000.0
+  val scoreThreshold = 1900000.0
 
-    // Threshold of 7.5 mil established by Stephen's analysis, KBP2014
-    //if(candidate.extr.getScore() > 7500000) true else false
-    //if(candidate.extr.getScore() > 4000000) true else false
-    if(candidate.extr.getScore() > 1900000) true else false
+  def satisfiesThresholdFilter(candidate: Candidate): Boolean = satisfiesThresholdFilter(candidate, scoreThreshold)
+
+  def satisfiesThresholdFilter(candidate: Candidate, threshold: Double): Boolean = {
+
+    if(candidate.extr.getScore() > threshold) true else false
   }
   
   def wrapWithCandidate(extrs: Seq[Extraction]): Seq[Candidate] = {
@@ -578,7 +582,7 @@ object FilterExtractionResults {
   return null;
 }*/
   
-  private def satisfiesEntityFilter(document: Option[Annotation])(kbpQuery: KBPQuery)(candidate: Candidate): Boolean = {
+  def satisfiesEntityFilter(document: Option[Annotation])(kbpQuery: KBPQuery)(candidate: Candidate): Boolean = {
 
     kbpQuery.entityType match {
 
@@ -813,7 +817,15 @@ object FilterExtractionResults {
   //
   def filterResults(unfiltered: Seq[Candidate], kbpQuery: KBPQuery, document: Option[Annotation]): Seq[Candidate] = {
 
-    def combinedFilter(candidate: Candidate) = (
+    unfiltered filter (satisfiesFilters(_, kbpQuery, satisfiesEntityFilter(document)(kbpQuery), scoreThreshold))
+  }
+
+  /*
+   * The filterResults filter, with the coref check and the threshold given,
+   * so ExtractionReplay can rerun it from an ExtractionStore, without the
+   * document annotations.
+   */
+  def satisfiesFilters(candidate: Candidate, kbpQuery: KBPQuery, corefMatch: Candidate => Boolean, threshold: Double): Boolean = (
       //satisfiesLengthFilter(candidate) &&
       //satisfiesArg2BeginsFilter(candidate) &&
       //satisfiesRelFilter(candidate) &&
@@ -822,11 +834,8 @@ object FilterExtractionResults {
       //satisfiesSlotFilter(candidate) &&
       //satisfiesLocationStoplist(candidate) &&
       //satisfiesSemanticFilter(candidate) &&
-      (satisfiesEntityExactMatchFilter(candidate, kbpQuery) || satisfiesEntityFilter(document)(kbpQuery)(candidate)) &&  
-      satisfiesThresholdFilter(candidate))
-
-    unfiltered filter combinedFilter
-  }
+      (satisfiesEntityExactMatchFilter(candidate, kbpQuery) || corefMatch(candidate)) &&  
+      satisfiesThresholdFilter(candidate, threshold))
 
   def filterResultsChinese(unfiltered: Seq[Candidate], kbpQuery: KBPQuery, document: Option[Annotation]): Seq[Candidate] = {
 
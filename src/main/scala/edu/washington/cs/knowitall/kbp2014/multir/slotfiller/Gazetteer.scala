@@ -0,0 +1,368 @@
+package edu.washington.cs.knowitall.kbp2014.multir.slotfiller
+
+import java.io._
+import java.nio.{ByteBuffer, ByteOrder, CharBuffer, IntBuffer}
+import java.nio.channels.FileChannel
+import java.nio.file.{Paths, Files}
+
+import scala.collection.mutable
+
+/*
+ * Compact location gazetteer built from the NELL locations and the Tipster
+ * gazetteer resources.
+ *
+ * The two text resources are compiled offline (see main) into one binary file:
+ * a sorted string table of the lowercased names, a flag byte per name and three
+ * primitive arrays with the NELL city, state-or-province and country probabilities
+ * (NaN where NELL has no probability). The file is memory-mapped when loaded,
+ * so loading takes milliseconds, and lookups are a binary search over the
+ * mapped names which lowercases and trims the query char by char, so the
+ * is-city / is-country / assignLocation lookups don't allocate.
+ *
+ * Layout (big endian):
+ *   int magic, int version, int numNames, int numChars
+ *   int[numNames+1]  name offsets into the chars
+ *   char[numChars]   the names, sorted as by String.compareTo
+ *   byte[numNames]   flags, padded to a multiple of 8 bytes
+ *   double[numNames] city probability
+ *   double[numNames] state-or-province probability
+ *   double[numNames] country probability
+ */
+object Gazetteer {
+
+  val magic = 0x4B425047
+  val version = 1
+
+  // flag bits
+  val TipsterCity = 1
+  val TipsterStateOrProvince = 2
+  val TipsterCountry = 4
+  val NellCity = 8
+  val NellStateOrProvince = 16
+  val NellCountry = 32
+  val Nell = 64
+
+  private val gazetteerResourcePath = "/edu/washington/cs/knowitall/kbp2014/multir/slotfiller/locationGazetteer.bin"
+
+  /*
+   * The compiled gazetteer, from the kbp.gazetteer system property if set,
+   * otherwise from the resource path. None if it hasn't been compiled, in which
+   * case NellData and TipsterData fall back to reading the text resources.
+   */
+  lazy val default: Option[Gazetteer] = {
+    val fileName = Option(System.getProperty("kbp.gazetteer")) match {
+      case Some(f) => Some(f)
+      case None => Option(getClass().getResource(gazetteerResourcePath)).map(url => url.getPath())
+    }
+    fileName match {
+      case Some(f) if Files.exists(Paths.get(f)) => {
+        val startTime = System.currentTimeMillis()
+        val gazetteer = load(f)
+        println("Loaded gazetteer " + f + " names: " + gazetteer.size + " millis: " + (System.currentTimeMillis() - startTime))
+        Some(gazetteer)
+      }
+      case _ => None
+    }
+  }
+
+  def load(fileName: String): Gazetteer = {
+    val channel = new RandomAccessFile(fileName, "r").getChannel()
+    try{
+      val buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())
+      new Gazetteer(buffer)
+    }
+    finally{
+      // the mapping stays valid after the channel is closed
+      channel.close()
+    }
+  }
+
+  // ------------------------------------------------------------------------
+  // Compiling the text resources
+  // ------------------------------------------------------------------------
+  private class Entry {
+    var flags = 0
+    var cityProbability = Double.NaN
+    var stateOrProvinceProbability = Double.NaN
+    var countryProbability = Double.NaN
+  }
+
+  def compile(nellFileName: String, tipsterFileName: String, outFileName: String){
+
+    val entries = mutable.HashMap[String, Entry]()
+
+    val nellSource = scala.io.Source.fromFile(nellFileName)(scala.io.Codec.UTF8)
+    try{
+      nellSource.getLines.foreach(line => {
+        val nellData = NellData.parseLine(line)
+        val entry = entries.getOrElseUpdate(nellData.name, new Entry)
+        entry.flags |= Nell
+        // a repeated name keeps the probabilities of its last line, as in NellData
+        entry.cityProbability = nellData.cityProbability.getOrElse(Double.NaN)
+        entry.stateOrProvinceProbability = nellData.stateOrProvinceProbability.getOrElse(Double.NaN)
+        entry.countryProbability = nellData.countryProbability.getOrElse(Double.NaN)
+        if(nellData.cityProbability.isDefined) entry.flags |= NellCity
+        if(nellData.stateOrProvinceProbability.isDefined) entry.flags |= NellStateOrProvince
+        if(nellData.countryProbability.isDefined) entry.flags |= NellCountry
+      })
+    }
+    finally{
+      nellSource.close()
+    }
+
+    // read in tipster lines with latin encoding so as not to get errors.
+    val tipsterSource = scala.io.Source.fromFile(tipsterFileName)(scala.io.Codec.ISO8859)
+    try{
+      tipsterSource.getLines.foreach(line => {
+        TipsterData.parseLine(line).foreach({ case (name, locationType) =>
+          locationType match {
+            case "CITY" => entries.getOrElseUpdate(name, new Entry).flags |= TipsterCity
+            case "PROVINCE" => entries.getOrElseUpdate(name, new Entry).flags |= TipsterStateOrProvince
+            case "COUNTRY" => entries.getOrElseUpdate(name, new Entry).flags |= TipsterCountry
+            case _ => {}
+          }
+        })
+      })
+    }
+    finally{
+      tipsterSource.close()
+    }
+
+    val names = entries.keys.toArray.sorted
+    val numNames = names.size
+    val numChars = names.map(_.length).sum
+
+    val out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(outFileName), 1 << 16))
+    try{
+      out.writeInt(magic)
+      out.writeInt(version)
+      out.writeInt(numNames)
+      out.writeInt(numChars)
+
+      var offset = 0
+      for(name <- names){
+        out.writeInt(offset)
+        offset += name.length
+      }
+      out.writeInt(offset)
+
+      for(name <- names) out.writeChars(name)
+      for(name <- names) out.writeByte(entries(name).flags)
+      for(i <- 0 until padding(numNames, numChars)) out.writeByte(0)
+
+      for(name <- names) out.writeDouble(entries(name).cityProbability)
+      for(name <- names) out.writeDouble(entries(name).stateOrProvinceProbability)
+      for(name <- names) out.writeDouble(entries(name).countryProbability)
+    }
+    finally{
+      out.close()
+    }
+
+    println("Compiled gazetteer " + outFileName + " names: " + numNames)
+  }
+
+  private def flagsPosition(numNames: Int, numChars: Int): Int = 16 + 4 * (numNames + 1) + 2 * numChars
+
+  private def padding(numNames: Int, numChars: Int): Int = {
+    val end = flagsPosition(numNames, numChars) + numNames
+    (8 - end % 8) % 8
+  }
+
+  /*
+   * Gazetteer [nell locations file] [tipster gazetteer file] [output file]
+   *
+   * With no arguments, compiles the NellData and TipsterData resources into
+   * locationGazetteer.bin in the current directory.
+   */
+  def main(args: Array[String]) {
+
+    val (nellFileName, tipsterFileName, outFileName) =
+      if(args.length == 3) (args(0), args(1), args(2))
+      else if(args.length == 0) (NellData.nellFileName, TipsterData.tipsterFileName, "locationGazetteer.bin")
+      else {
+        println("Usage: Gazetteer [nellLocationsFile tipsterGazetteerFile outFile]")
+        return
+      }
+
+    compile(nellFileName, tipsterFileName, outFileName)
+
+    val gazetteer = load(outFileName)
+    println("Loaded names: " + gazetteer.size)
+  }
+
+}
+
+/*
+ * Lookups in a compiled gazetteer file.
+ * Names are matched after lowercasing and, where the NellData lookup did, trimming.
+ */
+class Gazetteer(buffer: ByteBuffer) {
+
+  import Gazetteer._
+
+  buffer.order(ByteOrder.BIG_ENDIAN)
+  require(buffer.getInt(0) == magic, "Not a gazetteer file")
+  require(buffer.getInt(4) == version, "Unsupported gazetteer version: " + buffer.getInt(4))
+
+  val size = buffer.getInt(8)
+  private val numChars = buffer.getInt(12)
+
+  private val offsets: IntBuffer = slice(16).asIntBuffer()
+  private val chars: CharBuffer = slice(16 + 4 * (size + 1)).asCharBuffer()
+  private val flagsStart = 16 + 4 * (size + 1) + 2 * numChars
+  private val probabilitiesStart = {
+    val end = flagsStart + size
+    end + (8 - end % 8) % 8
+  }
+
+  private def slice(position: Int): ByteBuffer = {
+    val duplicate = buffer.duplicate()
+    duplicate.position(position)
+    duplicate.slice().order(ByteOrder.BIG_ENDIAN)
+  }
+
+  // ------------------------------------------------------------------------
+  // Finding a name
+  // ------------------------------------------------------------------------
+
+  /*
+   * Compare the stored name i with str(from until to), lowercasing str.
+   */
+  private def compare(i: Int, str: String, from: Int, to: Int): Int = {
+    val end = offsets.get(i + 1)
+    var p = offsets.get(i)
+    var q = from
+    while(p < end && q < to){
+      val c1 = chars.get(p)
+      val c2 = Character.toLowerCase(str.charAt(q))
+      if(c1 != c2) return c1 - c2
+      p += 1
+      q += 1
+    }
+    (end - p) - (to - q)
+  }
+
+  /*
+   * The index of the lowercased name, or -1 if it isn't in the gazetteer.
+   * With trim, leading and trailing whitespace is ignored as with String.trim.
+   */
+  def indexOf(str: String, trim: Boolean = true): Int = {
+    if(str == null) return -1
+    var from = 0
+    var to = str.length
+    if(trim){
+      while(from < to && str.charAt(from) <= ' ') from += 1
+      while(to > from && str.charAt(to - 1) <= ' ') to -= 1
+    }
+    var low = 0
+    var high = size - 1
+    while(low <= high){
+      val mid = (low + high) >>> 1
+      val c = compare(mid, str, from, to)
+      if(c < 0) low = mid + 1
+      else if(c > 0) high = mid - 1
+      else return mid
+    }
+    -1
+  }
+
+  def name(i: Int): String = {
+    val start = offsets.get(i)
+    val end = offsets.get(i + 1)
+    val sb = new StringBuilder(end - start)
+    var p = start
+    while(p < end){
+      sb.append(chars.get(p))
+      p += 1
+    }
+    sb.toString
+  }
+
+  def flags(i: Int): Int = if(i < 0) 0 else buffer.get(flagsStart + i)
+
+  def cityProbability(i: Int): Double = buffer.getDouble(probabilitiesStart + 8 * i)
+  def stateOrProvinceProbability(i: Int): Double = buffer.getDouble(probabilitiesStart + 8 * (size + i))
+  def countryProbability(i: Int): Double = buffer.getDouble(probabilitiesStart + 8 * (2 * size + i))
+
+  // ------------------------------------------------------------------------
+  // NELL probabilities, same semantics as NellData.highestProbabilityIs*
+  // ------------------------------------------------------------------------
+  private def maxProbability(i: Int): Double = {
+    var max = Double.NegativeInfinity
+    val city = cityProbability(i)
+    val state = stateOrProvinceProbability(i)
+    val country = countryProbability(i)
+    if(!city.isNaN && city > max) max = city
+    if(!state.isNaN && state > max) max = state
+    if(!country.isNaN && country > max) max = country
+    max
+  }
+
+  private def orZero(p: Double): Double = if(p.isNaN) 0.0 else p
+
+  def highestProbabilityIsCity(i: Int): Boolean = orZero(cityProbability(i)) >= maxProbability(i)
+  def highestProbabilityIsStateOrProvince(i: Int): Boolean = orZero(stateOrProvinceProbability(i)) >= maxProbability(i)
+  def highestProbabilityIsCountry(i: Int): Boolean = orZero(countryProbability(i)) >= maxProbability(i)
+
+  private def toOption(p: Double): Option[Double] = if(p.isNaN) None else Some(p)
+
+  /*
+   * The NELL data for a name, the one lookup here which allocates (the result).
+   */
+  def getNellData(str: String): Option[NellData] = {
+    val i = indexOf(str)
+    if(i >= 0 && (flags(i) & Nell) != 0){
+      Some(new NellData(name(i), toOption(cityProbability(i)),
+        toOption(stateOrProvinceProbability(i)), toOption(countryProbability(i))))
+    }
+    else None
+  }
+
+  // ------------------------------------------------------------------------
+  // Same semantics as the LocationHelper methods, with untrimmed lookups
+  // ------------------------------------------------------------------------
+  private def containsCity(str: String): Boolean = {
+    var i = 0
+    while(i + 4 <= str.length){
+      if(str.regionMatches(true, i, "city", 0, 4)) return true
+      i += 1
+    }
+    false
+  }
+
+  def isCity(str: String): Boolean = (flags(indexOf(str, false)) & (TipsterCity | NellCity)) != 0
+
+  def isStateOrProvince(str: String): Boolean = {
+    val f = flags(indexOf(str, false))
+    (f & TipsterStateOrProvince) != 0 || ((f & NellStateOrProvince) != 0 && !containsCity(str))
+  }
+
+  def isCountry(str: String): Boolean = {
+    val f = flags(indexOf(str, false))
+    (f & TipsterCountry) != 0 || ((f & NellCountry) != 0 && !containsCity(str))
+  }
+
+  /*
+   * LocationHelper.assignLocationMultipleDatabases for a location name:
+   * NELL's most probable type if the name is in NELL, otherwise the Tipster type.
+   */
+  def assignLocation(locationName: String): String = {
+    val i = indexOf(locationName)
+    val f = flags(i)
+    if((f & Nell) != 0){
+      if(highestProbabilityIsCity(i)) "city"
+      else if(highestProbabilityIsStateOrProvince(i)) "stateorprovince"
+      else if(highestProbabilityIsCountry(i)) "country"
+      else "notLocation"
+    }
+    else{
+      // the tipster lookup is untrimmed
+      val tf = flags(indexOf(locationName, false))
+      if((tf & TipsterCity) != 0) "city"
+      else if((tf & TipsterStateOrProvince) != 0) "stateorprovince"
+      else if((tf & TipsterCountry) != 0) "country"
+      else "notLocation"
+    }
+  }
+
+}
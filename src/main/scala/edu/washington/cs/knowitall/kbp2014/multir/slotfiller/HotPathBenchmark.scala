@@ -0,0 +1,154 @@
+package edu.washington.cs.knowitall.kbp2014.multir.slotfiller
+
+import java.io._
+
+import scala.collection.JavaConverters._
+import scala.collection.mutable
+
+import edu.stanford.nlp.ling.CoreAnnotations.{DocIDAnnotation, TextAnnotation}
+import edu.stanford.nlp.pipeline.Annotation
+
+/*
+ * Benchmark of the extraction and filtering hot paths, on local fixtures only
+ * (no Solr): a directory of serialized annotations, as written by
+ * SerializeColdStartCorpus, a query file and a (small) model directory.
+ *
+ * Each round replays the pipeline over the fixture documents for the first
+ * query group of the plan which is processed, timing:
+ *  - extract: MultiModelMultirExtractor.extract
+ *  - filter: FilterExtractionResults.filterResults
+ *  - coref: FilterExtractionResults.inSameCorefChainKBPEntityMentionAndQueryName
+ *  - select: substituteKBPRelationsColdStart and SelectBestAnswers.reduceToMaxResults
+ *  - serialize and deserialize: Serializer, through a temporary file
+ *  - alias-match: SolrHelper.addAliasMatches, with the fixture texts as the corpus
+ * Each benchmark is timed once per round, over all the fixture documents, so
+ * docs/s is the documents over a round's mean time. Later stages use the
+ * output of the earlier ones in the same round, since filtering and answer
+ * selection modify the candidates. The first rounds are warm-up and not
+ * reported.
+ *
+ * Args: serializedDocDir queryFile roundID modelDir [warmupRounds] [measuredRounds]
+ */
+object HotPathBenchmark {
+
+  val benchmarks = List("extract", "filter", "coref", "select", "serialize", "deserialize", "alias-match")
+
+  class Timings {
+    val nanos = mutable.Map[String, mutable.ArrayBuffer[Long]]()
+    var record = false
+
+    def time[T](benchmark: String)(block: => T): T = {
+      val start = System.nanoTime()
+      val result = block
+      if(record) nanos.getOrElseUpdate(benchmark, mutable.ArrayBuffer[Long]()) += (System.nanoTime() - start)
+      result
+    }
+
+    def report(numDocs: Int): String = {
+      benchmarks.filter(nanos.contains).map(b => {
+        val rounds = nanos(b).sorted
+        val ms = (n: Long) => "%.2f".format(n / 1e6)
+        "%-12s rounds: %3d  mean ms: %10s  min ms: %10s  median ms: %10s  max ms: %10s  docs/s: %.1f".format(
+          b, rounds.size, ms(rounds.sum / rounds.size), ms(rounds.head), ms(rounds(rounds.size / 2)), ms(rounds.last),
+          numDocs * 1e9 / (rounds.sum / rounds.size))
+      }).mkString("\n")
+    }
+  }
+
+  def loadFixtures(serializedDocDir: String): List[Annotation] = {
+    val files = new File(serializedDocDir).listFiles().filter(_.isFile).sortBy(_.getName).toList
+    files.flatMap(f => Option(Serializer.deserialize(f.getPath)).collect({ case a: Annotation => a }))
+  }
+
+  def round(docs: List[Annotation], queryGroup: QueryPlanner.QueryGroup, queries: List[KBPQuery],
+      extractor: MultiModelMultirExtractor, timings: Timings): Long = {
+
+    val query = queryGroup.firstQuery
+    var checksum = 0L
+
+    val extractions = timings.time("extract"){ docs.map(doc => extractor.extract(doc, query).asScala.toList) }
+
+    val candidates = timings.time("filter"){
+      docs.zip(extractions).map({ case (doc, extrs) =>
+        FilterExtractionResults.filterResults(FilterExtractionResults.wrapWithCandidate(extrs), query, Some(doc)) })
+    }
+
+    val wrapped = extractions.map(FilterExtractionResults.wrapWithCandidate(_))
+    timings.time("coref"){
+      for((doc, candidates) <- docs.zip(wrapped); c <- candidates){
+        if(FilterExtractionResults.inSameCorefChainKBPEntityMentionAndQueryName(query.name,
+            c.extr.getArg1().getArgName(), c.entityOffsetInterval, doc)) checksum += 1
+      }
+    }
+
+    val allCandidates = candidates.flatten
+    timings.time("select"){
+      for(q <- queryGroup.relevantSlotQueries){
+        val kbpCandidates = FilterExtractionResults.substituteKBPRelationsColdStart(allCandidates, q)
+        for(slot <- q.slotsToFill){
+          checksum += SelectBestAnswers.reduceToMaxResults(slot, kbpCandidates.filter(_.extr.getRel() == slot.name)).size
+        }
+      }
+    }
+
+    val tmps = docs.map(doc => File.createTempFile("hotpath", ".ser"))
+    try{
+      timings.time("serialize"){
+        for((doc, tmp) <- docs.zip(tmps)) Serializer.serialize(doc, tmp.getPath)
+      }
+      timings.time("deserialize"){
+        for(tmp <- tmps) if(Serializer.deserialize(tmp.getPath) != null) checksum += 1
+      }
+    }
+    finally{ tmps.foreach(_.delete()) }
+
+    timings.time("alias-match"){
+      val queryDocMap = mutable.Map[KBPQuery, List[String]]()
+      for(doc <- docs){
+        SolrHelper.addAliasMatches(doc.get(classOf[DocIDAnnotation]), doc.get(classOf[TextAnnotation]), queries, queryDocMap)
+      }
+      checksum += queryDocMap.size
+    }
+
+    checksum + extractions.map(_.size).sum
+  }
+
+  def main(args: Array[String]){
+
+    val serializedDocDir = args(0)
+    val queryFile = args(1)
+    val roundID = args(2)
+    val modelDir = args(3)
+    val warmupRounds = if(args.length > 4) args(4).toInt else 3
+    val measuredRounds = if(args.length > 5) args(5).toInt else 10
+
+    // ---------------------------------------------------------------
+    // Fixtures
+    // ---------------------------------------------------------------
+    val docs = loadFixtures(serializedDocDir)
+    val plan = QueryPlanner.planFile(queryFile, roundID)
+    val queryGroup = plan.groups.find(_.process).getOrElse(plan.groups.head)
+
+    val extractor = new MultiModelMultirExtractorVersionColdStart {
+      modelFilePaths.set(0, modelDir)
+    }
+
+    println("Docs: " + docs.size + " query: " + queryGroup.firstQuery + " model: " + modelDir)
+    println("Warm-up rounds: " + warmupRounds + " measured rounds: " + measuredRounds)
+
+    // ---------------------------------------------------------------
+    // Rounds
+    // ---------------------------------------------------------------
+    val timings = new Timings
+    var checksum = 0L
+    for(i <- 1 to warmupRounds + measuredRounds){
+      timings.record = i > warmupRounds
+      checksum += round(docs, queryGroup, plan.queries, extractor, timings)
+    }
+
+    println
+    println(timings.report(docs.size))
+    println("checksum: " + checksum)
+  }
+
+}
@@ -0,0 +1,233 @@
+package edu.washington.cs.knowitall.kbp2014.multir.slotfiller
+
+import java.io._
+import java.nio.file.{Paths, Files}
+import java.util.concurrent.atomic.{AtomicInteger, AtomicLong}
+
+/*
+ * Streaming post-processing of KBP output files.
+ *
+ * A pipeline is a list of stages applied, in order, to the tab separated
+ * columns of each line. A stage returns the (possibly changed) columns, or
+ * None to drop the line. Each input file is read once through a buffered reader
+ * and written once through a buffered writer; the files are processed in parallel.
+ */
+object KBPOutputPipeline {
+
+  val bufferSize = 1 << 16
+
+  // ------------------------------------------------------------------------
+  // Stages
+  // ------------------------------------------------------------------------
+  trait OutputStage {
+    def name: String
+    def apply(tokens: Array[String]): Option[Array[String]]
+    def stats: String = ""
+  }
+
+  /*
+   * Drop lines which don't have the expected number of columns.
+   */
+  class RequireColumns(numColumns: Int, exact: Boolean = true) extends OutputStage {
+    val name = "require-columns"
+    val dropped = new AtomicInteger
+
+    def apply(tokens: Array[String]): Option[Array[String]] = {
+      if(tokens.size == numColumns || (!exact && tokens.size >= numColumns)) Some(tokens)
+      else {
+        dropped.incrementAndGet()
+        None
+      }
+    }
+    override def stats = "dropped: " + dropped.get
+  }
+
+  /*
+   * Split a provenance column (docid:start-end) whose span is longer than
+   * maxLength into the 150 char pieces of SplitLongProvenances.splitProvenance.
+   */
+  class SplitProvenance(column: Int = 3, maxLength: Int = 150) extends OutputStage {
+    val name = "split-provenance"
+    val tooLong = new AtomicInteger
+    val maxProvLength = new AtomicInteger
+
+    def apply(tokens: Array[String]): Option[Array[String]] = {
+      val docid = tokens(column).split(":")(0)
+      val offsets = tokens(column).split(":")(1).split("-")
+      val start = offsets(0).toInt
+      val end = offsets(1).toInt
+      val provLength = end-start+1
+      if(provLength > maxLength){
+        tooLong.incrementAndGet()
+        var max = maxProvLength.get
+        while(provLength > max && !maxProvLength.compareAndSet(max, provLength)) max = maxProvLength.get
+        val newTokens = tokens.clone()
+        newTokens(column) = SplitLongProvenances.splitProvenance(docid, start, end)
+        Some(newTokens)
+      }
+      else Some(tokens)
+    }
+    override def stats = "too long count, max prov length: " + tooLong.get + " " + maxProvLength.get
+  }
+
+  /*
+   * Move the column at index from to index to, shifting the columns in between.
+   */
+  class MoveColumn(from: Int, to: Int) extends OutputStage {
+    val name = "move-column"
+
+    def apply(tokens: Array[String]): Option[Array[String]] = {
+      val buffer = tokens.toBuffer
+      val moved = buffer.remove(from)
+      buffer.insert(to, moved)
+      Some(buffer.toArray)
+    }
+  }
+
+  /*
+   * Insert a new column at index at, computed from the existing columns.
+   */
+  class InsertColumn(at: Int, value: Array[String] => String) extends OutputStage {
+    val name = "insert-column"
+
+    def apply(tokens: Array[String]): Option[Array[String]] = {
+      val buffer = tokens.toBuffer
+      buffer.insert(at, value(tokens))
+      Some(buffer.toArray)
+    }
+  }
+
+  /*
+   * Keep the first numColumns columns, drop lines with fewer columns.
+   */
+  class StripColumns(numColumns: Int) extends OutputStage {
+    val name = "strip-columns"
+
+    def apply(tokens: Array[String]): Option[Array[String]] = {
+      if(tokens.size >= numColumns) Some(tokens.take(numColumns)) else None
+    }
+  }
+
+  /*
+   * Keep only lines whose query id (first column) is in queryIDs.
+   */
+  class QueryFilter(queryIDs: Set[String]) extends OutputStage {
+    val name = "query-filter"
+    val kept = new AtomicInteger
+    val dropped = new AtomicInteger
+
+    def apply(tokens: Array[String]): Option[Array[String]] = {
+      if(queryIDs.contains(tokens(0))){
+        kept.incrementAndGet()
+        Some(tokens)
+      }
+      else {
+        dropped.incrementAndGet()
+        None
+      }
+    }
+    override def stats = "kept, dropped: " + kept.get + " " + dropped.get
+  }
+
+  /*
+   * Pass every line through, counting those whose query id is in queryIDs.
+   */
+  class QueryCounter(queryIDs: Set[String]) extends OutputStage {
+    val name = "query-counter"
+    val count = new AtomicInteger
+
+    def apply(tokens: Array[String]): Option[Array[String]] = {
+      if(queryIDs.contains(tokens(0))) count.incrementAndGet()
+      Some(tokens)
+    }
+    override def stats = "count: " + count.get
+  }
+
+  // ------------------------------------------------------------------------
+  // Running a pipeline
+  // ------------------------------------------------------------------------
+
+  /*
+   * One input file, its output file (None to only run the stages, e.g. for
+   * counting) and the stages to apply to it.
+   */
+  case class PipelineTask(inFileName: String, outFileName: Option[String], stages: Seq[OutputStage]){
+    val lineCount = new AtomicLong
+    val outLineCount = new AtomicLong
+
+    def stats: String = inFileName + " (line count, out line count): " + lineCount.get + " " + outLineCount.get +
+      stages.filter(_.stats.nonEmpty).map(s => "\n  " + s.name + " " + s.stats).mkString
+  }
+
+  /*
+   * The stages named in a comma separated list (e.g. the "stages" key of a
+   * tool's config or -Dstages=require-columns), in the listed order; all of the
+   * available stages when there is no list. An empty list switches every stage
+   * off, so the lines are copied through unchanged.
+   */
+  def selectStages(names: Option[String], available: Seq[OutputStage]): Seq[OutputStage] = {
+    names match {
+      case None => available
+      case Some(list) => list.split(",").map(_.trim).filter(_.nonEmpty).toList.map(n =>
+        available.find(_.name == n).getOrElse(throw new IllegalArgumentException(
+          "Unknown stage " + n + ", expected one of: " + available.map(_.name).mkString(", "))))
+    }
+  }
+
+  def applyStages(tokens: Array[String], stages: Seq[OutputStage]): Option[Array[String]] = {
+    var current: Option[Array[String]] = Some(tokens)
+    val it = stages.iterator
+    while(current.isDefined && it.hasNext){
+      current = it.next().apply(current.get)
+    }
+    current
+  }
+
+  def runTask(task: PipelineTask){
+
+    // Does file exist?
+    if (!Files.exists(Paths.get(task.inFileName))) {
+      System.out.println(s"Input file ${task.inFileName} doesn't exist!  " + s"Skipping...")
+      return
+    }
+
+    val in = new BufferedReader(new InputStreamReader(new FileInputStream(task.inFileName), "UTF-8"), bufferSize)
+    val out = task.outFileName.map(f =>
+      new BufferedWriter(new OutputStreamWriter(new FileOutputStream(f), "UTF-8"), bufferSize))
+
+    try{
+      var line = in.readLine()
+      while(line != null){
+        task.lineCount.incrementAndGet()
+        try{
+          applyStages(line.trim.split("\t"), task.stages) match {
+            case Some(tokens) => {
+              task.outLineCount.incrementAndGet()
+              out.foreach(w => {
+                w.write(tokens.mkString("\t"))
+                w.newLine()
+              })
+            }
+            case None =>
+          }
+        }catch{
+          case e: Exception => println("Error: " + task.inFileName + " line " + task.lineCount.get + ": " + e.getMessage)
+        }
+        line = in.readLine()
+      }
+    }
+    finally{
+      in.close()
+      out.foreach(_.close())
+    }
+  }
+
+  /*
+   * Run the tasks, one file per task, in parallel.
+   */
+  def run(tasks: Seq[PipelineTask]): Seq[PipelineTask] = {
+    tasks.par.foreach(runTask)
+    tasks
+  }
+
+}
@@ -1,6 +1,9 @@
 package edu.washington.cs.knowitall.kbp2014.multir.slotfiller
 
-import scala.xml.XML
+import java.io.{BufferedInputStream, FileInputStream}
+import javax.xml.stream.{XMLInputFactory, XMLStreamConstants}
+
+import scala.collection.mutable
 import KBPQueryEntityType._
 
 case class KBPQuery (val id: String, var name: String, val doc: String,
@@ -19,20 +22,85 @@ object KBPQuery {
   import KBPQueryEntityType._
 
   
-  private def parseSingleKBPQueryFromXML(queryXML: scala.xml.Node, roundID: String): Option[KBPQuery] = {
+  /*
+   * One <query> element of a query file: its id attribute and the text of
+   * the elements inside it, by element name.
+   */
+  private case class QueryElement(id: Option[String], fields: scala.collection.Map[String, String]){
+    def text(name: String): String = fields.getOrElse(name, "")
+  }
+
+  /*
+   * Stream the <query> elements of a query file with StAX, calling f for each,
+   * rather than loading the whole file into a DOM.
+   */
+  private def foreachQueryElement(pathToFile: String)(f: QueryElement => Unit){
+
+    val factory = XMLInputFactory.newInstance()
+    factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false)
+    val in = new BufferedInputStream(new FileInputStream(pathToFile), 1 << 16)
+    val reader = factory.createXMLStreamReader(in)
+
+    try{
+      var depth = 0
+      var inQuery = false
+      var id: Option[String] = None
+      var openElements = List[String]()
+      val fields = mutable.HashMap[String, StringBuilder]()
+
+      while(reader.hasNext()){
+        reader.next() match {
+          case XMLStreamConstants.START_ELEMENT => {
+            depth += 1
+            val name = reader.getLocalName()
+            if(depth == 2 && name == "query"){
+              inQuery = true
+              id = Option(reader.getAttributeValue(null, "id"))
+              fields.clear()
+            }
+            else if(inQuery){
+              openElements = name :: openElements
+              fields.getOrElseUpdate(name, new StringBuilder)
+            }
+          }
+          case XMLStreamConstants.CHARACTERS | XMLStreamConstants.CDATA | XMLStreamConstants.SPACE => {
+            // as with NodeSeq.text, an element's text includes the text of nested elements
+            if(inQuery) openElements.foreach(name => fields(name).append(reader.getText()))
+          }
+          case XMLStreamConstants.END_ELEMENT => {
+            if(inQuery && depth == 2){
+              inQuery = false
+              f(QueryElement(id, fields.map({ case (k, v) => (k, v.toString) })))
+            }
+            else if(inQuery){
+              openElements = openElements.tail
+            }
+            depth -= 1
+          }
+          case _ =>
+        }
+      }
+    }
+    finally{
+      reader.close()
+      in.close()
+    }
+  }
+  
+  private def parseSingleKBPQuery(queryXML: QueryElement, roundID: String): Option[KBPQuery] = {
 
     try{
-	    val idText = queryXML.attribute("id") match 
-	    		{case Some(id) if id.length ==1 => id(0).text
+	    val idText = queryXML.id match 
+	    		{case Some(id) => id
 	    		 case None => throw new IllegalArgumentException("no id value for query in xml doc")
 	    		}
-	    val nameText = queryXML.\\("name").text
-	    val docIDText = queryXML.\\("docid").text
-	    val begText = queryXML.\\("beg").text
+	    val nameText = queryXML.text("name")
+	    val docIDText = queryXML.text("docid")
+	    val begText = queryXML.text("beg")
 	    val begInt = begText.toInt
-	    val endText = queryXML.\\("end").text
+	    val endText = queryXML.text("end")
 	    val endInt = endText.toInt
-	    val entityTypeText = queryXML.\\("enttype").text
+	    val entityTypeText = queryXML.text("enttype")
 	    val entityType = entityTypeText match {
 	      case "ORG" | "org" => ORG
 	      case "PER" | "per" => PER
@@ -46,9 +114,9 @@ object KBPQuery {
        val ignoreNames = ignoreText.split(" ").toSet
        Slot.getSlotTypesList(entityType).filter(slot => ignoreNames.contains(slot.name))
     }*/
-	    val slotText = queryXML.\\("slot").text.trim() 	            
-        val slot0Text = queryXML.\\("slot0").text.trim() 	    
-        val slot1Text = queryXML.\\("slot1").text.trim()	    
+	    val slotText = queryXML.text("slot").trim() 	            
+        val slot0Text = queryXML.text("slot0").trim() 	    
+        val slot1Text = queryXML.text("slot1").trim()	    
 	//find slotsToFill by taking the difference between the global slots set
     // and the set specified in the xml doc
     /*val slotsToFill = entityType match{
@@ -113,16 +181,16 @@ object KBPQuery {
     }      
   }
   
-  private def parseSingleKBPQueryFromXMLToGetName(queryXML: scala.xml.Node): String = {
+  private def parseSingleKBPQueryToGetName(queryXML: QueryElement): String = {
 
     var nameText = ""
     
     try{
-	    val idText = queryXML.attribute("id") match 
-	    		{case Some(id) if id.length ==1 => id(0).text
+	    val idText = queryXML.id match 
+	    		{case Some(id) => id
 	    		 case None => throw new IllegalArgumentException("no id value for query in xml doc")
 	    		}
-	    nameText = queryXML.\\("name").text
+	    nameText = queryXML.text("name")
 	    //val docIDText = queryXML.\\("docid").text
 	    //val begText = queryXML.\\("beg").text
 	    //val begInt = begText.toInt
@@ -143,22 +211,20 @@ object KBPQuery {
 
   def parseKBPQueries(pathToFile: String, roundID: String): List[KBPQuery] = {
     
-     val xml = XML.loadFile(pathToFile)
-     val queryXMLSeq = xml.\("query")
+     val kbpQueryList = mutable.ListBuffer[KBPQuery]()
      
-     val kbpQueryList = for( qXML <- queryXMLSeq) yield parseSingleKBPQueryFromXML(qXML, roundID)
+     foreachQueryElement(pathToFile)(qXML => kbpQueryList ++= parseSingleKBPQuery(qXML, roundID))
      
-     kbpQueryList.toList.flatten
+     kbpQueryList.toList
   }
   
   def parseKBPQueriesToGetNames(pathToFile: String): Set[String] = {
     
-     val xml = XML.loadFile(pathToFile)
-     val queryXMLSeq = xml.\("query")
+     val kbpQueryNameSet = mutable.HashSet[String]()
      
-     val kbpQueryNameList = for( qXML <- queryXMLSeq) yield parseSingleKBPQueryFromXMLToGetName(qXML)
+     foreachQueryElement(pathToFile)(qXML => kbpQueryNameSet += parseSingleKBPQueryToGetName(qXML))
     
-     kbpQueryNameList.toSet
+     kbpQueryNameSet.toSet
   }
   
   def getAliases(queries: List[KBPQuery]): List[KBPQuery] = {
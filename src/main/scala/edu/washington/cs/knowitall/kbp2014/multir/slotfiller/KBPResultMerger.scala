@@ -0,0 +1,163 @@
+package edu.washington.cs.knowitall.kbp2014.multir.slotfiller
+
+import java.io._
+import java.nio.file.{Paths, Files}
+
+import scala.collection.mutable
+import scala.io.Source
+
+/*
+ * Combines the KBP 2015 output (8 columns) of any number of systems.
+ *
+ * Each system's output file is read once, line by line, into a hash index
+ * keyed by (query id, relation). The systems are then merged in a single pass
+ * over the queries, so the cost is linear in the number of answers instead of
+ * (queries x answers) as with filtering the full answer lists per query.
+ */
+object KBPResultMerger {
+
+  case class KBPAnswer(id: String, rel: String, runID: String, provAll: String,
+      slotFill: String, slotFillType: String, provSF: String, confScore: String){
+
+    def toOutputString(outRunID: String): String = id + "\t" + rel + "\t" + outRunID + "\t" +
+      provAll + "\t" + slotFill + "\t" + slotFillType + "\t" + provSF + "\t" + confScore
+  }
+
+  // ------------------------------------------------------------------
+  // The answers of one system, indexed by (query id, relation)
+  // ------------------------------------------------------------------
+  class SystemIndex(val name: String, private val index: Map[(String, String), Seq[KBPAnswer]]){
+
+    def answers(queryID: String, rel: String): Seq[KBPAnswer] = index.getOrElse((queryID, rel), Nil)
+
+    def size: Int = index.values.map(_.size).sum
+  }
+
+  // -------------------------------------------------------------------
+  // Dedup rules - two answers with the same key are the same slot fill
+  // -------------------------------------------------------------------
+  val dedupOnSlotFill: KBPAnswer => String = a => a.slotFill.trim.toLowerCase
+
+  val dedupOnSlotFillAndProvenance: KBPAnswer => String = a => a.slotFill.trim.toLowerCase + "\t" + a.provSF
+
+  // the rules by their names in the combine config ("dedup-rule")
+  val dedupRules: Map[String, KBPAnswer => String] = Map(
+    "slot-fill" -> dedupOnSlotFill,
+    "slot-fill-and-provenance" -> dedupOnSlotFillAndProvenance)
+
+  def dedupRule(name: String): KBPAnswer => String = dedupRules.getOrElse(name,
+    throw new IllegalArgumentException("Unknown dedup rule: " + name + ", expected one of " + dedupRules.keys.mkString(", ")))
+
+  def parseAnswer(line: String): Option[KBPAnswer] = {
+    val tokens = line.trim.split("\t")
+    if(tokens.size >= 8){
+      Some(KBPAnswer(tokens(0), tokens(1), tokens(2), tokens(3), tokens(4), tokens(5), tokens(6), tokens(7)))
+    }
+    else None
+  }
+
+  /*
+   * Stream the file once into the (query id, relation) index.
+   * Answers within a key are sorted by confidence score, the same order
+   * CombineKBPResults used for choosing a single-value answer.
+   */
+  def indexSystem(name: String, inputFilename: String): SystemIndex = {
+
+    // Does file exist?
+    if (!Files.exists(Paths.get(inputFilename))) {
+      System.out.println(s"$name file $inputFilename doesn't exist!  " + s"Exiting...")
+      sys.exit(1)
+    }
+
+    val index = mutable.HashMap[(String, String), mutable.ArrayBuffer[KBPAnswer]]()
+
+    val source = Source.fromFile(inputFilename)
+    try{
+      source.getLines().foreach(line => {
+        parseAnswer(line) match {
+          case Some(a) => index.getOrElseUpdate((a.id, a.rel), mutable.ArrayBuffer[KBPAnswer]()) += a
+          case None =>
+        }
+      })
+    }
+    finally{
+      source.close()
+    }
+
+    new SystemIndex(name, index.map({ case (k, v) => (k, v.sortBy(a => a.confScore).toSeq) }).toMap)
+  }
+
+  /*
+   * Index the systems concurrently, each file is read by its own task.
+   * The returned list keeps the order (= priority) of the input list.
+   */
+  def indexSystems(systems: Seq[(String, String)]): Seq[SystemIndex] = {
+    systems.par.map({ case (name, fileName) => indexSystem(name, fileName) }).seq
+  }
+
+  /*
+   * Combine the answers from the systems for one (query id, relation).
+   * The systems are given in priority order.
+   *
+   * For single-value slots, such as org:city_of_HQ, take the answer from the first
+   * system which has one.
+   *
+   * For list-value slots, take all answers from all systems (for recall) with
+   * deduplication; i.e. take answers from the first system, then add the next system's
+   * slotfills that aren't already in the set, and so on.
+   */
+  def mergeSlot(queryID: String, rel: String, maxResults: Int, systems: Seq[SystemIndex],
+      dedupKey: KBPAnswer => String = dedupOnSlotFill): Seq[KBPAnswer] = {
+
+    if(maxResults == 1){
+      systems.iterator.map(s => s.answers(queryID, rel)).find(_.nonEmpty) match {
+        case Some(answers) => Seq(answers.head)
+        case None => Nil
+      }
+    }
+    else{
+      val seenSlotFills = mutable.HashSet[String]()
+      val merged = mutable.LinkedHashSet[KBPAnswer]()
+
+      for(system <- systems){
+        val newAnswers = system.answers(queryID, rel).filter(a => !seenSlotFills.contains(dedupKey(a)))
+        merged ++= newAnswers
+        newAnswers.foreach(a => seenSlotFills += dedupKey(a))
+      }
+      merged.toSeq
+    }
+  }
+
+  /*
+   * Merge the systems for every query, writing the combined answers to outStream
+   * and per query counts to outStatsStream.
+   */
+  def merge(queries: Seq[KBPQuery], systems: Seq[SystemIndex], runID: String,
+      outStream: PrintStream, outStatsStream: PrintStream,
+      dedupKey: KBPAnswer => String = dedupOnSlotFill){
+
+    queries.foreach(q => {
+
+      //There is one slot to fill
+      if(q.slotsToFill.size == 1){
+
+        val slotToFill = q.slotsToFill.head
+        val numAnswers = slotToFill.maxResults
+
+        outStatsStream.print(q.id + " " + q.name)
+        outStatsStream.print(" numAnswers: " + numAnswers + " " + slotToFill.name)
+        outStatsStream.println(" " + systems.map(_.name).mkString(" ") + " size: " +
+            systems.map(s => s.answers(q.id, slotToFill.name).size).mkString(" "))
+
+        // answer is NIL, don't need to print out for Cold Start
+        mergeSlot(q.id, slotToFill.name, numAnswers, systems, dedupKey).foreach(s =>
+          outStream.println(s.toOutputString(runID)))
+      }
+      //if Something didn't parse correctly, and we don't have exactly one slot identified to fill
+      else{
+        outStatsStream.println("ERROR: " + " " + q.name + " " + "Slots to fill: " + q.slotsToFill.size)
+      }
+    })
+  }
+
+}
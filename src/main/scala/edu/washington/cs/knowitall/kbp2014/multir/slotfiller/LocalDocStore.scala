@@ -0,0 +1,36 @@
+package edu.washington.cs.knowitall.kbp2014.multir.slotfiller
+
+import java.io.File
+import java.nio.file.Files
+
+/*
+ * A corpus in a local directory, one file per document, named by docid, in
+ * place of the Solr index: SolrHelper.setConfigurations("local", ...) selects
+ * it, -Dkbp.docstore.dir=<dir> gives the directory (default "docs"). Used by
+ * ThroughputBenchmark, and to run the drivers without the index.
+ */
+object LocalDocStore {
+
+  lazy val dir: File = new File(System.getProperty("kbp.docstore.dir", "docs"))
+
+  def docids: Seq[String] = Option(dir.list()).map(_.toSeq.sorted).getOrElse(Seq())
+
+  def getRawDoc(docId: String): String = {
+    val file = new File(dir, docId)
+    if(!file.isFile){
+      System.err.println(docId + " was not found in corpus")
+      ""
+    }
+    else new String(Files.readAllBytes(file.toPath), "UTF-8")
+  }
+
+  /*
+   * One scan of the documents, matching the queries' aliases as the index scan does.
+   */
+  def getRelevantDocuments(queries: List[KBPQuery]): Map[KBPQuery,List[String]] = {
+    val queryDocMap = scala.collection.mutable.Map[KBPQuery,List[String]]()
+    for(docid <- docids) SolrHelper.addAliasMatches(docid, getRawDoc(docid), queries, queryDocMap)
+    queryDocMap.toMap
+  }
+
+}
@@ -128,21 +128,28 @@ throw new Exception("There should only be three types of locations specified in
   }
 */  
   /**
-* Uses multiple databases to return a boolean if the string appears in any of these databases
+* Uses multiple databases to return a boolean if the string appears in any of these databases.
+* Goes through the compiled Gazetteer when there is one, otherwise the text resources.
 */
-  def isCity(str: String): Boolean = {
-    if (TipsterData.cities.contains(str.toLowerCase()) || (NellData.cityNameSet.contains(str.toLowerCase()))) true else false
+  def isCity(str: String): Boolean = Gazetteer.default match {
+    case Some(gazetteer) => gazetteer.isCity(str)
+    case None => 
+      if (TipsterData.cities.contains(str.toLowerCase()) || (NellData.cityNameSet.contains(str.toLowerCase()))) true else false
   }
   
-  def isStateOrProvince(str: String): Boolean = {
-    if ( (TipsterData.stateOrProvinces.contains(str.toLowerCase()) ||
+  def isStateOrProvince(str: String): Boolean = Gazetteer.default match {
+    case Some(gazetteer) => gazetteer.isStateOrProvince(str)
+    case None =>
+      if ( (TipsterData.stateOrProvinces.contains(str.toLowerCase()) ||
         (NellData.stateOrProvinceNameSet.contains(str.toLowerCase()))
          &&
          (!str.toLowerCase().contains("city")))) true else false
   }
   
-  def isCountry(str: String): Boolean = {
-    if ( (TipsterData.countries.contains(str.toLowerCase()) ||
+  def isCountry(str: String): Boolean = Gazetteer.default match {
+    case Some(gazetteer) => gazetteer.isCountry(str)
+    case None =>
+      if ( (TipsterData.countries.contains(str.toLowerCase()) ||
         (NellData.countryNameSet.contains(str.toLowerCase()))
          &&
          (!str.toLowerCase().contains("city")))) true else false
@@ -177,6 +184,12 @@ throw new Exception("There should only be three types of locations specified in
   def assignLocationMultipleDatabases(extr: Extraction):String = {
    
     val locationName = extr.getArg2().getArgName()
+    
+    Gazetteer.default match {
+      case Some(gazetteer) => return gazetteer.assignLocation(locationName)
+      case None =>
+    }
+    
     val extrNellData :Option[NellData] = NellData.getNellData(locationName)
     
     val location = extrNellData match {
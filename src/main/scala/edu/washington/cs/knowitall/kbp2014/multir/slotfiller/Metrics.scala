@@ -0,0 +1,332 @@
+package edu.washington.cs.knowitall.kbp2014.multir.slotfiller
+
+import java.io._
+import java.lang.management.ManagementFactory
+import java.util.concurrent.{ConcurrentHashMap, Executors, ThreadFactory, TimeUnit}
+import java.util.concurrent.atomic.{AtomicLong, AtomicLongArray}
+import javax.management._
+
+import scala.collection.JavaConverters._
+
+/*
+ * Run metrics: counters, gauges and latency histograms.
+ *
+ * Stages time themselves with startTimer / stopTimer (also from the Java
+ * extractors). Each stage's latencies are recorded in a histogram for the whole
+ * run and one for the current query group, and its time is added to the total
+ * of the current document, so the documents which dominate a run can be listed.
+ * The query group is set by the driver for the thread processing the group and
+ * is inherited by the threads it starts; the document is set by the thread
+ * processing it.
+ *
+ * A snapshot can be written periodically as JSON (overwritten) and CSV
+ * (appended) and is available over JMX as the bean
+ * edu.washington.cs.knowitall.kbp2014:type=Metrics.
+ */
+object Metrics {
+
+  // stage names
+  val DocFetch = "doc-fetch"
+  val Annotation = "annotation"
+  val ArgumentIdentification = "argument-identification"
+  val InstanceGeneration = "instance-generation"
+  val FeatureGenerationAndScoring = "feature-generation-and-scoring"
+  val Filtering = "filtering"
+  val AnswerSelection = "answer-selection"
+  val Output = "output"
+
+  // ------------------------------------------------------------------------
+  // Tags
+  // ------------------------------------------------------------------------
+  private val currentGroup = new InheritableThreadLocal[String]
+  private val currentDoc = new ThreadLocal[String]
+
+  def setGroup(group: String){ currentGroup.set(group) }
+  def setDocument(doc: String){ currentDoc.set(doc) }
+  def clearDocument(){ currentDoc.remove() }
+
+  // ------------------------------------------------------------------------
+  // Metric types
+  // ------------------------------------------------------------------------
+  class Counter {
+    private val value = new AtomicLong
+    def increment(n: Long = 1){ value.addAndGet(n) }
+    def get: Long = value.get
+  }
+
+  /*
+   * Latencies in power of 2 microsecond buckets; the percentiles are the upper
+   * bounds of the buckets they fall in.
+   */
+  class Histogram {
+    private val numBuckets = 40
+    private val buckets = new AtomicLongArray(numBuckets)
+    private val count = new AtomicLong
+    private val sumNanos = new AtomicLong
+    private val maxNanos = new AtomicLong
+
+    def record(nanos: Long){
+      val micros = math.max(1L, nanos / 1000)
+      val bucket = math.min(numBuckets - 1, 63 - java.lang.Long.numberOfLeadingZeros(micros))
+      buckets.incrementAndGet(bucket)
+      count.incrementAndGet()
+      sumNanos.addAndGet(nanos)
+      var max = maxNanos.get
+      while(nanos > max && !maxNanos.compareAndSet(max, nanos)) max = maxNanos.get
+    }
+
+    def getCount: Long = count.get
+    def totalMillis: Double = sumNanos.get / 1e6
+    def meanMillis: Double = if(count.get == 0) 0.0 else totalMillis / count.get
+    def maxMillis: Double = maxNanos.get / 1e6
+
+    def percentileMillis(p: Double): Double = {
+      val n = count.get
+      if(n == 0) return 0.0
+      val rank = math.ceil(p * n).toLong
+      var seen = 0L
+      var i = 0
+      while(i < numBuckets){
+        seen += buckets.get(i)
+        if(seen >= rank) return math.min((1L << (i + 1)) / 1000.0, maxMillis)
+        i += 1
+      }
+      maxMillis
+    }
+  }
+
+  // ------------------------------------------------------------------------
+  // Registry, keyed by metric name and tag
+  // ------------------------------------------------------------------------
+  private val counters = new ConcurrentHashMap[String, Counter]()
+  private val histograms = new ConcurrentHashMap[String, Histogram]()
+  private val gauges = new ConcurrentHashMap[String, () => Double]()
+  private val documentNanos = new ConcurrentHashMap[String, AtomicLong]()
+
+  private def key(name: String, tag: String): String = if(tag == null) name else name + "{" + tag + "}"
+
+  def counter(name: String, tag: String = null): Counter = {
+    val k = key(name, tag)
+    val c = counters.get(k)
+    if(c != null) c else { counters.putIfAbsent(k, new Counter); counters.get(k) }
+  }
+
+  def histogram(name: String, tag: String = null): Histogram = {
+    val k = key(name, tag)
+    val h = histograms.get(k)
+    if(h != null) h else { histograms.putIfAbsent(k, new Histogram); histograms.get(k) }
+  }
+
+  def gauge(name: String)(value: => Double){ gauges.put(name, () => value) }
+
+  def gaugeValue(name: String): Option[Double] = Option(gauges.get(name)).map(_())
+
+  /*
+   * Increment the counter for the run and for the current query group.
+   */
+  def increment(name: String, n: Long){
+    counter(name).increment(n)
+    val group = currentGroup.get
+    if(group != null) counter(name, "group=" + group).increment(n)
+  }
+
+  def increment(name: String){ increment(name, 1L) }
+
+  def startTimer(): Long = System.nanoTime()
+
+  /*
+   * Record the time since startNanos for the stage, returns the elapsed nanos.
+   */
+  def stopTimer(stage: String, startNanos: Long): Long = {
+    val nanos = System.nanoTime() - startNanos
+    histogram(stage).record(nanos)
+    val group = currentGroup.get
+    if(group != null) histogram(stage, "group=" + group).record(nanos)
+    val doc = currentDoc.get
+    if(doc != null){
+      val docKey = if(group == null) doc else group + "/" + doc
+      var total = documentNanos.get(docKey)
+      if(total == null){ documentNanos.putIfAbsent(docKey, new AtomicLong); total = documentNanos.get(docKey) }
+      total.addAndGet(nanos)
+    }
+    nanos
+  }
+
+  def time[T](stage: String)(block: => T): T = {
+    val start = startTimer()
+    try{ block } finally{ stopTimer(stage, start) }
+  }
+
+  // JVM heap, replacing the memory dumps
+  gauge("heap-used-bytes"){ (Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory()).toDouble }
+  gauge("heap-max-bytes"){ Runtime.getRuntime().maxMemory().toDouble }
+
+  // ------------------------------------------------------------------------
+  // Snapshots
+  // ------------------------------------------------------------------------
+
+  /*
+   * The documents with the most stage time, (group/doc, milliseconds).
+   */
+  def slowestDocuments(n: Int): Seq[(String, Double)] =
+    documentNanos.asScala.toSeq.map({ case (d, t) => (d, t.get / 1e6) }).sortBy(-_._2).take(n)
+
+  /*
+   * Each document's stage time, in milliseconds.
+   */
+  def documentMillis: Seq[Double] = documentNanos.asScala.values.toSeq.map(_.get / 1e6)
+
+  private def jsonString(s: String): String = "\"" + s.replace("\\", "\\\\").replace("\"", "\\\"") + "\""
+
+  private def sortedKeys[V](m: ConcurrentHashMap[String, V]): Seq[String] = m.keySet().asScala.toSeq.sorted
+
+  def snapshotJson: String = {
+    val sb = new StringBuilder
+    sb.append("{\"timestamp\": ").append(System.currentTimeMillis())
+    sb.append(",\n\"counters\": {")
+    sb.append(sortedKeys(counters).map(k => jsonString(k) + ": " + counters.get(k).get).mkString(", "))
+    sb.append("},\n\"gauges\": {")
+    sb.append(sortedKeys(gauges).map(k => jsonString(k) + ": " + gauges.get(k)()).mkString(", "))
+    sb.append("},\n\"histograms\": {")
+    sb.append(sortedKeys(histograms).map(k => {
+      val h = histograms.get(k)
+      jsonString(k) + ": {\"count\": " + h.getCount + ", \"totalMs\": " + h.totalMillis + ", \"meanMs\": " + h.meanMillis +
+        ", \"p50Ms\": " + h.percentileMillis(0.5) + ", \"p90Ms\": " + h.percentileMillis(0.9) +
+        ", \"p99Ms\": " + h.percentileMillis(0.99) + ", \"maxMs\": " + h.maxMillis + "}"
+    }).mkString(",\n"))
+    sb.append("},\n\"slowestDocuments\": [")
+    sb.append(slowestDocuments(20).map({ case (d, ms) => "{\"doc\": " + jsonString(d) + ", \"ms\": " + ms + "}" }).mkString(", "))
+    sb.append("]}\n")
+    sb.toString
+  }
+
+  val csvHeader = "timestamp,type,metric,count,value,mean_ms,p50_ms,p90_ms,p99_ms,max_ms"
+
+  private def csvField(s: String): String = if(s.contains(",") || s.contains("\"")) "\"" + s.replace("\"", "\"\"") + "\"" else s
+
+  def snapshotCsv: Seq[String] = {
+    val now = System.currentTimeMillis()
+    sortedKeys(counters).map(k => now + ",counter," + csvField(k) + "," + counters.get(k).get + ",,,,,,") ++
+    sortedKeys(gauges).map(k => now + ",gauge," + csvField(k) + ",," + gauges.get(k)() + ",,,,,") ++
+    sortedKeys(histograms).map(k => {
+      val h = histograms.get(k)
+      now + ",histogram," + csvField(k) + "," + h.getCount + "," + h.totalMillis + "," + h.meanMillis + "," +
+        h.percentileMillis(0.5) + "," + h.percentileMillis(0.9) + "," + h.percentileMillis(0.99) + "," + h.maxMillis
+    })
+  }
+
+  def writeSnapshot(jsonFileName: String, csvFileName: String){
+    val json = new PrintWriter(jsonFileName, "UTF-8")
+    try{ json.print(snapshotJson) } finally{ json.close() }
+
+    val newFile = !new File(csvFileName).exists()
+    val csv = new PrintWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(csvFileName, true), "UTF-8")))
+    try{
+      if(newFile) csv.println(csvHeader)
+      snapshotCsv.foreach(csv.println)
+    }
+    finally{ csv.close() }
+  }
+
+  private lazy val scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory {
+    def newThread(r: Runnable): Thread = {
+      val t = new Thread(r, "metrics-reporter")
+      t.setDaemon(true)
+      t
+    }
+  })
+
+  /*
+   * Write metrics.json and metrics.csv in dir every periodSeconds, and once more
+   * at shutdown.
+   */
+  def startReporter(dir: String, periodSeconds: Int){
+    new File(dir).mkdirs()
+    val jsonFileName = new File(dir, "metrics.json").getPath
+    val csvFileName = new File(dir, "metrics.csv").getPath
+    val report = new Runnable {
+      def run(){
+        try{ writeSnapshot(jsonFileName, csvFileName) }
+        catch{ case e: Exception => println("Metrics: could not write snapshot: " + e.getMessage) }
+      }
+    }
+    scheduler.scheduleAtFixedRate(report, periodSeconds, periodSeconds, TimeUnit.SECONDS)
+    Runtime.getRuntime().addShutdownHook(new Thread(report))
+    println("Metrics: writing " + jsonFileName + " and " + csvFileName + " every " + periodSeconds + " seconds")
+  }
+
+  /*
+   * Start the reporter if -Dkbp.metrics.dir is set (period -Dkbp.metrics.period,
+   * default 60 seconds), and register the JMX bean.
+   */
+  def startFromSystemProperties(){
+    Option(System.getProperty("kbp.metrics.dir")).foreach(dir =>
+      startReporter(dir, Option(System.getProperty("kbp.metrics.period")).map(_.toInt).getOrElse(60)))
+    registerJMX()
+  }
+
+  // ------------------------------------------------------------------------
+  // JMX - every counter, gauge and histogram statistic is an attribute
+  // ------------------------------------------------------------------------
+  private class MetricsMBean extends DynamicMBean {
+
+    private def attributes: Map[String, () => AnyRef] = {
+      val c = counters.asScala.map({ case (k, v) => (k, () => java.lang.Long.valueOf(v.get): AnyRef) })
+      val g = gauges.asScala.map({ case (k, v) => (k, () => java.lang.Double.valueOf(v()): AnyRef) })
+      val h = histograms.asScala.flatMap({ case (k, v) => Seq(
+        (k + ".count", () => java.lang.Long.valueOf(v.getCount): AnyRef),
+        (k + ".meanMs", () => java.lang.Double.valueOf(v.meanMillis): AnyRef),
+        (k + ".p99Ms", () => java.lang.Double.valueOf(v.percentileMillis(0.99)): AnyRef),
+        (k + ".maxMs", () => java.lang.Double.valueOf(v.maxMillis): AnyRef))
+      })
+      (c ++ g ++ h).toMap
+    }
+
+    def getAttribute(name: String): AnyRef = attributes.get(name) match {
+      case Some(value) => value()
+      case None => throw new AttributeNotFoundException(name)
+    }
+
+    def getAttributes(names: Array[String]): AttributeList = {
+      val list = new AttributeList()
+      val current = attributes
+      names.foreach(n => current.get(n).foreach(v => list.add(new Attribute(n, v()))))
+      list
+    }
+
+    def setAttribute(attribute: Attribute){ throw new AttributeNotFoundException("Metrics are read only") }
+    def setAttributes(attributes: AttributeList): AttributeList = new AttributeList()
+
+    def invoke(actionName: String, params: Array[AnyRef], signature: Array[String]): AnyRef = actionName match {
+      case "snapshotJson" => snapshotJson
+      case _ => throw new ReflectionException(new NoSuchMethodException(actionName))
+    }
+
+    def getMBeanInfo(): MBeanInfo = {
+      val attributeInfo = attributes.toSeq.sortBy(_._1).map({ case (name, value) =>
+        new MBeanAttributeInfo(name, value().getClass.getName, name, true, false, false)
+      }).toArray
+      val snapshotOperation = new MBeanOperationInfo("snapshotJson", "All metrics as JSON",
+        Array[MBeanParameterInfo](), "java.lang.String", MBeanOperationInfo.INFO)
+      new MBeanInfo(getClass.getName, "KBP slot filling run metrics", attributeInfo, null,
+        Array(snapshotOperation), null)
+    }
+  }
+
+  private var jmxRegistered = false
+
+  def registerJMX(){
+    synchronized {
+      if(!jmxRegistered){
+        try{
+          ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean,
+            new ObjectName("edu.washington.cs.knowitall.kbp2014:type=Metrics"))
+          jmxRegistered = true
+        }catch{
+          case e: Exception => println("Metrics: could not register JMX bean: " + e.getMessage)
+        }
+      }
+    }
+  }
+
+}
@@ -1,191 +1,52 @@
 package edu.washington.cs.knowitall.kbp2014.multir.slotfiller
 
-//import edu.knowitall.taggers.Type
-import edu.knowitall.collection.immutable.Interval
-
-
-object LocationHelper {
-  
-  /**
-* findLocationTaggedType returns the Type that should make up the trimmed
-* slot fill for a given location type specification. If the method returns None it will be assumed
-* that this extraction should be filtered out and this method should be used in the semantic
-* filter in FilterSolrREsults.scala
-*/
- /* def findLocationTaggedType(typesInSlotFill : List[Type], slotType: String): Option[Type] = {
-    val locationTypesInSlotFill = typesInSlotFill.filter(t => (t.descriptor() == "StanfordLOCATION"))
-    if(locationTypesInSlotFill.nonEmpty){
-      
-      
-if(slotType == "City"){
-val firstTag = locationTypesInSlotFill.head
-//if there is only one tag, then if the name is in NELL it should only
-//be accepted as a city if city has the highest probability
-if(locationTypesInSlotFill.length == 1){
-val nellData = NellData.getNellData(firstTag.text())
-if(nellData.isDefined){
-if(nellData.get.highestProbabilityIsCity && isCity(firstTag.text())){
-return Some(firstTag)
-}
-else{
-return None
-}
-}
-else{
-if (isCity(firstTag.text())){
-return Some(firstTag)
-}
-return None
-}
-}
-//else if more than one tag only look at the left most tag and accept it
-//as a city if it appears anywhere as a city
-else{
-//only look at leftmost tag
-if (isCity(firstTag.text())){
-return Some(firstTag)
-}
-return None
-}
-}
-
-
-else if(slotType=="Country"){
-//only look at right most tag
-val lastTag = locationTypesInSlotFill(locationTypesInSlotFill.length-1)
-
-if(locationTypesInSlotFill.length ==1){
-val nellData = NellData.getNellData(lastTag.text())
-if(nellData.isDefined){
-if(nellData.get.highestProbabilityIsCountry && isCountry(lastTag.text())){
-return Some(lastTag)
-}
-else{
-return None
-}
-}
-else{
-if(isCountry(lastTag.text())){
-return Some(lastTag)
-}
-return None
-}
-}
-else{
-if(isCountry(lastTag.text())){
-return Some(lastTag)
-}
-return None
-}
-}
-
-
+import com.typesafe.config.ConfigFactory
+
+/*
+ * Move 2014 format output to the 2015 format, which has one more column: the
+ * slot fill type (PER, ORG, GPE or STRING).
+ *
+ * The column layout is an assumption, not read from the 2015 spec: the input
+ * is taken to be the 7 column 2014 order (id, rel, runID, provRelation,
+ * slotFill, provSlotFill, confScore) and the type is inserted after the slot
+ * fill. Both can be changed in the config (in-columns, slot-fill-type-column),
+ * and the stages run can be picked with the stages key
+ * (require-columns, insert-column), e.g. -Dstages=insert-column.
+ */
+object MoveColumnsTo2015Format {
+
+  val config = ConfigFactory.load("kbp-2015-move-columns-to-2015-format.conf")
+  val inFileName = config.getString("in-file")
+  val outFileName = config.getString("out-file")
+
+  val inColumns = if(config.hasPath("in-columns")) config.getInt("in-columns") else 7
+  val slotFillTypeColumn = if(config.hasPath("slot-fill-type-column")) config.getInt("slot-fill-type-column") else 5
+  val stageNames = if(config.hasPath("stages")) Some(config.getString("stages")) else None
+
+  def slotFillType(tokens: Array[String]): String = {
+    try{
+      Slot.fromName(tokens(1)).slotfillType
+    }catch{
+      case e: Exception => "STRING"
+    }
+  }
 
+  def main(args: Array[String]) {
 
+    // --------------------------------------------------------------
+    // Lines without inColumns columns (e.g. NIL lines) are dropped
+    // --------------------------------------------------------------
+    val stages = KBPOutputPipeline.selectStages(stageNames,
+      List(new KBPOutputPipeline.RequireColumns(inColumns), 
+        new KBPOutputPipeline.InsertColumn(slotFillTypeColumn, slotFillType)))
+    
+    val task = KBPOutputPipeline.PipelineTask(inFileName, Some(outFileName), stages)
 
-else if(slotType=="Stateorprovince"){
-//if more than 2 tags look at 2nd tag only otherwise look at the only tag
-var tag = locationTypesInSlotFill.head
-if(locationTypesInSlotFill.length >1){
-tag = locationTypesInSlotFill(1)
-}
+    KBPOutputPipeline.run(List(task))
 
+    println("stages: " + stages.map(_.name).mkString(", "))
+    println(task.stats)
+    println("closed output streams")
 
-if(locationTypesInSlotFill.length ==1){
-val nellData = NellData.getNellData(tag.text())
-if(nellData.isDefined){
-if(nellData.get.highestProbabilityIsStateOrProvince && isStateOrProvince(tag.text())){
-return Some(tag)
-}
-else{
-return None
-}
-}
-else{
-if(isStateOrProvince(tag.text())){
-return Some(tag)
-}
-else{
-return None
-}	
-}
-}
-else{
-if(isStateOrProvince(tag.text())){
-return Some(tag)
-}
-else{
-return None
-}
-}
-}
-else{
-throw new Exception("There should only be three types of locations specified in the pattern, Country, Stateorprovince, and City")
-}
-    }
-    else{None }
-    
-  }
-*/  
-  /**
-* Uses multiple databases to return a boolean if the string appears in any of these databases
-*/
-  def isCity(str: String): Boolean = {
-    if (TipsterData.cities.contains(str.toLowerCase()) || (NellData.cityNameSet.contains(str.toLowerCase()))) true else false
-  }
-  
-  def isStateOrProvince(str: String): Boolean = {
-    if ( (TipsterData.stateOrProvinces.contains(str.toLowerCase()) ||
-        (NellData.stateOrProvinceNameSet.contains(str.toLowerCase()))
-         &&
-         (!str.toLowerCase().contains("city")))) true else false
-  }
-  
-  def isCountry(str: String): Boolean = {
-    if ( (TipsterData.countries.contains(str.toLowerCase()) ||
-        (NellData.countryNameSet.contains(str.toLowerCase()))
-         &&
-         (!str.toLowerCase().contains("city")))) true else false
-  }
-  
-  def assignLocationTipster(str :String):String = {
-    
-    val locationTuple = (TipsterData.cities.contains(str.toLowerCase()),
-                         TipsterData.stateOrProvinces.contains(str.toLowerCase()),
-                         TipsterData.countries.contains(str.toLowerCase()))
-                         
-    locationTuple match{
-      case t if(locationTuple._1)  => "city"
-      case t if(!locationTuple._1 & locationTuple._2) => "stateorprovince"
-      case t if(!locationTuple._1 & !locationTuple._2 & locationTuple._3) => "country"
-      case _ => "notLocation"
-    }                     
-                             
-  }
- 
-  def assignLocationNell(nd :NellData, locationName :String):String = {
-    
-    locationName match{
-            case s if(nd.highestProbabilityIsCity) => "city"
-            case s if(nd.highestProbabilityIsStateOrProvince) => "stateorprovince" 
-            case s if(nd.highestProbabilityIsCountry) => "country"
-            case _ => "notLocation" 
-      }  
-    
-  }
-   
-  def assignLocationMultipleDatabases(extr: Extraction):String = {
-   
-    val locationName = extr.getArg2().getArgName()
-    val extrNellData :Option[NellData] = NellData.getNellData(locationName)
-    
-    val location = extrNellData match {
-      case Some(x) => assignLocationNell(x, locationName)
-      case None => assignLocationTipster(locationName)
-    }    
-    
-    location
-    
   }
-  
 }
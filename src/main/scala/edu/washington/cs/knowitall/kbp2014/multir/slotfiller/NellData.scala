@@ -33,18 +33,17 @@ object NellData {
   
   private val nellResourcePath = "/edu/washington/cs/knowitall/kbp2014/multir/slotfiller/caseInsensitiveNellLocations"
   
-  private val nellURL = getClass().getResource(nellResourcePath)
-  require(nellURL != null, "Could not find resource: " + nellResourcePath)
-
-    
-  val citySet = scala.collection.mutable.Set[NellData]()
-  val stateOrProvinceSet = scala.collection.mutable.Set[NellData]()
-  val countrySet = scala.collection.mutable.Set[NellData]()
-  private var nellMap = Map[String,NellData]()
-  
+  lazy val nellFileName = {
+    val nellURL = getClass().getResource(nellResourcePath)
+    require(nellURL != null, "Could not find resource: " + nellResourcePath)
+    nellURL.getPath()
+  }
 
-  // read in tipster lines with latin encoding so as not to get errors.
-  scala.io.Source.fromFile(nellURL.getPath())(scala.io.Codec.UTF8).getLines.foreach(line => {
+  /*
+   * One line of the NELL locations file: the name, then tab separated
+   * "semantictype probability" pairs.
+   */
+  def parseLine(line: String): NellData = {
       val lineData = line.split("\t")
       val name = lineData(0).toLowerCase().trim()
       val typeProbabilityPairs = lineData.tail
@@ -54,9 +53,6 @@ object NellData {
       var countryProbability: Option[Double] = None
       var stateOrProvinceProbability: Option[Double] = None
       
-      
-      //read semantic types val firstTag = locationTypesInSlotFill.head
-
       for(tpPair <- typeProbabilityPairs){
         val tpPairData = tpPair.split(" ")
         val semanticTypeName = tpPairData(0).trim().toLowerCase()
@@ -77,23 +73,42 @@ object NellData {
         
       }
       
+      new NellData(name,cityProbability,stateOrProvinceProbability,countryProbability)
+  }
+
+  // ------------------------------------------------------------------
+  // Text resource fallback, only read when there is no compiled
+  // Gazetteer. The map is built in place rather than copying an
+  // immutable map per line.
+  // ------------------------------------------------------------------
+  lazy val (citySet, stateOrProvinceSet, countrySet, nellMap) = {
+    val citySet = scala.collection.mutable.Set[NellData]()
+    val stateOrProvinceSet = scala.collection.mutable.Set[NellData]()
+    val countrySet = scala.collection.mutable.Set[NellData]()
+    val nellMap = scala.collection.mutable.HashMap[String,NellData]()
+
+    val source = scala.io.Source.fromFile(nellFileName)(scala.io.Codec.UTF8)
+    try{
+      source.getLines.foreach(line => {
+        val nellData = parseLine(line)
+        nellMap.put(nellData.name, nellData)
       
-      val nellData = new NellData(name,cityProbability,stateOrProvinceProbability,countryProbability)
-      nellMap = nellMap + (nellData.name -> nellData)
-      
-      if(nellData.cityProbability.isDefined){
-        citySet.add(nellData)
-      }
-      if(nellData.stateOrProvinceProbability.isDefined){
-        stateOrProvinceSet.add(nellData)
-      }
-      if(nellData.countryProbability.isDefined){
-        countrySet.add(nellData)
-      }
-      
-      
-    })
-  
+        if(nellData.cityProbability.isDefined){
+          citySet.add(nellData)
+        }
+        if(nellData.stateOrProvinceProbability.isDefined){
+          stateOrProvinceSet.add(nellData)
+        }
+        if(nellData.countryProbability.isDefined){
+          countrySet.add(nellData)
+        }
+      })
+    }
+    finally{
+      source.close()
+    }
+    (citySet, stateOrProvinceSet, countrySet, nellMap)
+  }
   
   lazy val cities = citySet.toSet
   lazy val countries = countrySet.toSet
@@ -104,7 +119,10 @@ object NellData {
   lazy val stateOrProvinceNameSet = stateOrProvinces.map(f => f.name)
   
   def getNellData(str: String): Option[NellData] = {
-    if(nellMap.contains(str.toLowerCase().trim())) Some(nellMap(str.toLowerCase().trim())) else None
+    Gazetteer.default match {
+      case Some(gazetteer) => gazetteer.getNellData(str)
+      case None => nellMap.get(str.toLowerCase().trim())
+    }
   }
  
   
@@ -0,0 +1,187 @@
+package edu.washington.cs.knowitall.kbp2014.multir.slotfiller
+
+import java.io._
+import java.util.Random
+import java.util.concurrent.{Callable, Executors}
+
+import scala.collection.JavaConverters._
+import scala.collection.mutable
+
+import edu.washington.multirframework.multiralgorithm._
+
+/*
+ * Multi-threaded Multir training, by iterative parameter mixing.
+ *
+ * The train file's MILDocuments are split into numThreads shards. In each
+ * epoch every thread runs a perceptron pass over its (shuffled) shard starting
+ * from the current mixed parameters, with the same updates as Multir's
+ * AveragedPerceptron: full inference for the predicted parse, conditional
+ * inference for the parse agreeing with the document's relations, and for each
+ * mention whose relation differs, +delta on the true relation's weights and
+ * -delta on the predicted one's. The threads' parameters are then averaged
+ * into the next mixed parameters, and the mixed parameters are averaged over
+ * the epochs for the final parameters.
+ *
+ * The output is the params file which Train.train writes, so the model
+ * directory (mapping, model, params) loads in DocumentExtractor as before.
+ * Several model directories (type signatures) train concurrently, sharing the
+ * threads.
+ *
+ * Args: [-check] numThreads modelFileDir...
+ *   -check also trains each model with the serial Train.train first and
+ *   prints both models' accuracy on the training documents
+ */
+object ParallelTrainer {
+
+  val numEpochs = 50
+  val delta = 1.0
+  val seed = 1L
+
+  def readDocuments(modelFileDir: String): Array[MILDocument] = {
+    val in = new DataInputStream(new BufferedInputStream(new FileInputStream(modelFileDir + "/train"), 1 << 16))
+    val docs = mutable.ArrayBuffer[MILDocument]()
+    try{
+      var doc = new MILDocument()
+      while(doc.read(in)){
+        docs += doc
+        doc = new MILDocument()
+      }
+    }
+    finally{ in.close() }
+    docs.toArray
+  }
+
+  def readModel(modelFileDir: String): Model = {
+    val model = new Model()
+    model.read(modelFileDir + "/model")
+    model
+  }
+
+  def newParameters(model: Model): Parameters = {
+    val params = new Parameters()
+    params.model = model
+    params.init()
+    params
+  }
+
+  def copy(model: Model, from: Parameters, factor: Float = 1.0f): Parameters = {
+    val params = newParameters(model)
+    params.sum(from, factor)
+    params
+  }
+
+  private def sameY(a: Array[Int], b: Array[Int]): Boolean = java.util.Arrays.equals(a.sorted, b.sorted)
+
+  /*
+   * One perceptron pass over the documents, updating params in place.
+   */
+  def epoch(docs: Array[MILDocument], params: Parameters, random: Random){
+    val scorer = new Scorer()
+    val order = (0 until docs.length).toArray
+    var i = order.length - 1
+    while(i > 0){
+      val j = random.nextInt(i + 1)
+      val t = order(i); order(i) = order(j); order(j) = t
+      i -= 1
+    }
+    for(d <- order){
+      val doc = docs(d)
+      val predicted = FullInference.infer(doc, scorer, params)
+      if(!sameY(predicted.Y, doc.Y)){
+        val truth = ConditionalInference.infer(doc, scorer, params)
+        var m = 0
+        while(m < doc.numMentions){
+          val trueRel = truth.Z(m)
+          val predictedRel = predicted.Z(m)
+          if(trueRel != predictedRel){
+            params.relParameters(trueRel).addSparse(doc.features(m), delta)
+            params.relParameters(predictedRel).addSparse(doc.features(m), -delta)
+          }
+          m += 1
+        }
+      }
+    }
+  }
+
+  /*
+   * Train on the documents with numThreads threads of the given executor.
+   */
+  def train(model: Model, docs: Array[MILDocument], numThreads: Int, executor: java.util.concurrent.ExecutorService): Parameters = {
+    val shards = (0 until numThreads).map(t => docs.indices.filter(_ % numThreads == t).map(docs).toArray).filter(_.nonEmpty)
+    var mixed = newParameters(model)
+    val sum = newParameters(model)
+
+    for(e <- 0 until numEpochs){
+      val tasks = shards.zipWithIndex.map({ case (shard, t) => new Callable[Parameters]{
+        def call(): Parameters = {
+          val params = copy(model, mixed)
+          epoch(shard, params, new Random(seed + e * 1000 + t))
+          params
+        }
+      }})
+      val shardParams = executor.invokeAll(tasks.asJava).asScala.map(_.get)
+      val next = newParameters(model)
+      shardParams.foreach(p => next.sum(p, 1.0f / shardParams.size))
+      mixed = next
+      sum.sum(mixed, 1.0f)
+    }
+    copy(model, sum, 1.0f / numEpochs)
+  }
+
+  /*
+   * The fraction of documents whose predicted relations are exactly theirs.
+   */
+  def accuracy(docs: Array[MILDocument], params: Parameters): Double = {
+    val scorer = new Scorer()
+    if(docs.isEmpty) 0.0 else docs.count(doc => sameY(FullInference.infer(doc, scorer, params).Y, doc.Y)).toDouble / docs.length
+  }
+
+  def trainModelDir(modelFileDir: String, numThreads: Int, executor: java.util.concurrent.ExecutorService, check: Boolean){
+    val startTime = System.currentTimeMillis()
+    val model = readModel(modelFileDir)
+    val docs = readDocuments(modelFileDir)
+    println("ParallelTrainer: " + modelFileDir + " documents: " + docs.length + " relations: " + model.numRelations)
+
+    val serialAccuracy = if(check){
+      val serialStart = System.currentTimeMillis()
+      Train.train(modelFileDir)
+      val serialParams = newParameters(model)
+      serialParams.deserialize(modelFileDir + "/params")
+      val a = accuracy(docs, serialParams)
+      println("ParallelTrainer: " + modelFileDir + " serial millis: " + (System.currentTimeMillis() - serialStart))
+      Some(a)
+    } else None
+
+    val trainStart = System.currentTimeMillis()
+    val params = train(model, docs, numThreads, executor)
+    println("ParallelTrainer: " + modelFileDir + " parallel millis: " + (System.currentTimeMillis() - trainStart))
+    params.serialize(modelFileDir + "/params")
+
+    serialAccuracy.foreach(serial => {
+      val parallel = accuracy(docs, params)
+      println("ParallelTrainer: " + modelFileDir + " training accuracy serial: " + serial + " parallel: " + parallel +
+        " difference: " + (parallel - serial))
+    })
+    println("ParallelTrainer: " + modelFileDir + " done, millis: " + (System.currentTimeMillis() - startTime))
+  }
+
+  def main(Args: Array[String]){
+    val check = Args.contains("-check")
+    val args = Args.filter(_ != "-check")
+    val numThreads = args(0).toInt
+    val modelFileDirs = args.drop(1).toList
+
+    // each model trains on all the threads; the models share them
+    val executor = Executors.newFixedThreadPool(numThreads)
+    try{
+      val modelRuns = Executors.newFixedThreadPool(modelFileDirs.size)
+      val runs = modelFileDirs.map(dir => modelRuns.submit(new Runnable {
+        def run(){ trainModelDir(dir, numThreads, executor, check) }
+      }))
+      runs.foreach(_.get)
+      modelRuns.shutdown()
+    }
+    finally{ executor.shutdown() }
+  }
+
+}
@@ -0,0 +1,89 @@
+package edu.washington.cs.knowitall.kbp2014.multir.slotfiller
+
+import scala.collection.mutable
+import KBPQueryEntityType._
+
+/*
+ * Plans the processing of a query file for the drivers.
+ *
+ * Queries with the same name share their document processing, so the plan is
+ * the list of query groups, one per query name, in the order the names first
+ * appear in the query file. The groups are built in one hash pass over the
+ * queries, and each group carries what the drivers check before processing
+ * it: the queries with a slot filled by the Multir model, and whether it is a
+ * PER query with a single name, which is skipped.
+ */
+object QueryPlanner {
+
+  /*
+   * The queries sharing one (normalized) query name.
+   */
+  case class QueryGroup(name: String, queries: List[KBPQuery], relevantSlotQueries: List[KBPQuery],
+      singleQueryNamePER: Boolean){
+
+    def firstQuery: KBPQuery = queries.head
+
+    def anyRelevantSlots: Boolean = relevantSlotQueries.nonEmpty
+
+    // Proceed if this set of queries does not have a single PER name, and has relevant slots to fill
+    def process: Boolean = !singleQueryNamePER && anyRelevantSlots
+  }
+
+  case class QueryPlan(queries: List[KBPQuery], groups: List[QueryGroup]){
+
+    // If we want to run a subset of the collapsed queries, this is that subset
+    def batch(batchDrop: Int, batchDropRight: Int): List[QueryGroup] = groups.drop(batchDrop).dropRight(batchDropRight)
+
+    def numToProcess: Int = groups.count(_.process)
+
+    def summary: String = "queries: " + queries.size + " groups: " + groups.size +
+      " to process: " + numToProcess + " single name PER: " + groups.count(_.singleQueryNamePER) +
+      " no relevant slots: " + groups.count(g => !g.anyRelevantSlots)
+  }
+
+  /*
+   * Query names are compared after trimming and collapsing whitespace.
+   */
+  def normalizeName(name: String): String = name.trim.replaceAll("\\s+", " ")
+
+  def isSingleNamePER(query: KBPQuery): Boolean = query.entityType match {
+    case PER if(query.name.split(" ").size == 1) => true
+    case _ => false
+  }
+
+  def isRelevantSlot(query: KBPQuery, relevantSlots: String => Boolean): Boolean =
+    query.slotsToFill.nonEmpty && relevantSlots(query.slotsToFill.head.name)
+
+  /*
+   * Parse the query file (streamed, see KBPQuery.parseKBPQueries), add the PER
+   * aliases and plan the queries.
+   */
+  def planFile(pathToFile: String, roundID: String): QueryPlan = {
+    plan(KBPQuery.getAliases(KBPQuery.parseKBPQueries(pathToFile, roundID)))
+  }
+
+  /*
+   * Group the queries by name. The queries' names should already be final,
+   * i.e. after the single name resolution, since they decide the groups.
+   */
+  def plan(queries: List[KBPQuery], relevantSlots: String => Boolean = ColdStartSlots_Multir.slots): QueryPlan = {
+
+    val startTime = System.currentTimeMillis()
+
+    val groupsByName = mutable.LinkedHashMap[String, mutable.ListBuffer[KBPQuery]]()
+    for(query <- queries){
+      groupsByName.getOrElseUpdate(normalizeName(query.name), mutable.ListBuffer[KBPQuery]()) += query
+    }
+
+    val groups = groupsByName.toList.map({ case (name, sameQueries) => {
+      val groupQueries = sameQueries.toList
+      QueryGroup(name, groupQueries, groupQueries.filter(q => isRelevantSlot(q, relevantSlots)),
+        isSingleNamePER(groupQueries.head))
+    }})
+
+    val queryPlan = QueryPlan(queries, groups)
+    println("Query plan: " + queryPlan.summary + " millis: " + (System.currentTimeMillis() - startTime))
+    queryPlan
+  }
+
+}
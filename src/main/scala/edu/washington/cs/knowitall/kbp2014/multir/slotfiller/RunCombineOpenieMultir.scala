@@ -191,13 +191,12 @@ object RunCombineOpenIEMultir {
   
   
   def createKBPOutput(lines :List[String], divideScore :Boolean) :Seq[KBPOutput] = {
-    //var count = 0
-    for(line <- lines) yield{
+    for(line <- lines) yield createKBPOutput(line, divideScore)
+  }
+  
+  def createKBPOutput(line :String, divideScore :Boolean) :KBPOutput = {
+    
        val tokens = line.split("\t")
-
-       //println(count + " " +tokens.size)
-       //if(tokens.size < 4) println(line)
-       //count = count + 1       
        
        var queryId :String = "NIL"
        var relation :String = "NIL"
@@ -220,9 +219,7 @@ object RunCombineOpenIEMultir {
             else tokens(6)         
        }
 
-       val kbpOutput = new KBPOutput(queryId,relation,runId,provRelation,slotFill,provFill,confScore)
-       kbpOutput
-    }
+       new KBPOutput(queryId,relation,runId,provRelation,slotFill,provFill,confScore)
   }
   
   def applyFormulaToConfidenceScore(score :String) :String = {
@@ -232,13 +229,20 @@ object RunCombineOpenIEMultir {
     adjustedScore.toString    
   }
 
+  // Stream the file once, grouping the output lines by query id + relation as they are read
   def createMap(inputFile :String, divideScore :Boolean) :Map[String, Seq[KBPOutput]] = {
-    val lines = Source.fromFile(inputFile, "UTF-8").getLines.toList
-    //maybe wrap this around createKBPOutput
-    //if(lines(0).startsWith("SF") ){}
-    val kbpOutput = createKBPOutput(lines, divideScore)
-    val outputMap = kbpOutput.groupBy(_.queryIdRelation)
-    outputMap
+    val outputMap = scala.collection.mutable.HashMap[String, scala.collection.mutable.ArrayBuffer[KBPOutput]]()
+    val source = Source.fromFile(inputFile, "UTF-8")
+    try{
+      for(line <- source.getLines){
+        val kbpOutput = createKBPOutput(line, divideScore)
+        outputMap.getOrElseUpdate(kbpOutput.queryIdRelation, scala.collection.mutable.ArrayBuffer[KBPOutput]()) += kbpOutput
+      }
+    }
+    finally{
+      source.close()
+    }
+    outputMap.map({ case (k, v) => (k, v.toSeq) }).toMap
   }
 
  
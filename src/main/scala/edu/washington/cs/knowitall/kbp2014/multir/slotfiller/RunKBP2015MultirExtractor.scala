@@ -35,7 +35,11 @@ import KBPQueryEntityType._
 
 object RunKBP2015MultirExtractor {  
   
-  val annotatorHelper = new StanfordAnnotatorHelperMethods()
+  // loaded in the warm-up, concurrently with the other resources, see Warmup
+  lazy val annotatorHelper = new StanfordAnnotatorHelperMethods()
+
+  // optional last arg "twophase": parse and dcoref only the sentences which can give candidates
+  var twoPhaseAnnotation = false
 
   val cis  = new DefaultCorpusInformationSpecification()
   val javaDocInfoList = new java.util.ArrayList[DocumentInformationI]()
@@ -59,6 +63,10 @@ object RunKBP2015MultirExtractor {
       val round1QueriesFile = "queries2015_r1.xml"
       val round2QueriesFile = "queries2015_r1.xml"
       
+      val runStartTime = System.currentTimeMillis()
+      
+      // console output goes through the asynchronous run log, see RunLog
+      RunLog.install()
       println("Running KBP!")  
       
       // ---------------------------------------------------------------------
@@ -69,15 +77,22 @@ object RunKBP2015MultirExtractor {
       val corpusOldNew = Args(2)
       val relevantDocsFileName = Args(3)
       val relevantDocsFile = new File(relevantDocsFileName)      
-      val outputStream = new PrintStream(Args(4))
+      val answerSink = AsyncSink.toFile(Args(4))
+      val outputStream = answerSink.printStream
       val roundID = Args(5)
       val batchDrop = Args(6).toInt
       val batchDropRight = Args(7).toInt
       
+      twoPhaseAnnotation = Args.length > 8 && Args(8) == "twophase"
+      
       println("roundID: " + roundID)
       println("batchDrop: " + batchDrop)
       println("batchDropRight: " + batchDropRight)
       println("corpus: " + corpusOldNew)
+      println("twoPhaseAnnotation: " + twoPhaseAnnotation)
+      
+      // -Dkbp.metrics.dir=<dir> writes periodic snapshots, see Metrics
+      Metrics.startFromSystemProperties()
       
       // ---------------------------------------------------------------------
       // Select the Solr Index
@@ -106,6 +121,17 @@ object RunKBP2015MultirExtractor {
       
 	  val multirExtractor = new MultiModelMultirExtractorVersionColdStart()	  
       //val multirExtractor = new SingleModelMultirExtractorVersion1()	
+      
+      // explain mode: -Dkbp.explain.trace=<file> records the top features of each extraction,
+      // dump it with ExplainTrace <file> <modelDir>
+      val explainTrace = Option(System.getProperty("kbp.explain.trace")).map(new ExplainTrace(_))
+      explainTrace.foreach(multirExtractor.setExplainTrace)
+      
+      // -Dkbp.extraction.store=<file> records the extractions before filtering, replay them with ExtractionReplay
+      val extractionStore = Option(System.getProperty("kbp.extraction.store")).map(new ExtractionStore(_))
+      
+      // load the static resources, coref pipeline and models concurrently, printing the startup profile
+      Warmup.warmUp(Warmup.coldStartResources(Some(multirExtractor)))
 	  
 
 	  // ----------------------------------------------------------------------------
@@ -124,19 +150,11 @@ object RunKBP2015MultirExtractor {
         //println("SNR: r2 size: " + queryNameSetRound2.size)
       
         // For PER queries which have a single name, replace that name with a full name,
-        // if one can be determined
-        for(query <- queries){	    
-	      var singleQueryNamePER = false
-          
-	      singleQueryNamePER = query.entityType match{
-            case PER if(query.name.split(" ").size == 1) => {
-              val (single, qname) = SingleNameResolver.singleQueryName(query, queryNameSetRound2, queryNameSetRound1)
-              if(!single) query.name = qname 
-              single
-        	}
-	        case _ => false
-	      }          
-        }
+        // if one can be determined; the query docs are coref annotated in parallel,
+        // on -Dkbp.snr.threads pipelines (default 1, the driver's)
+        val snrThreads = Integer.getInteger("kbp.snr.threads", 1).intValue
+        SingleNameResolver.resolveAll(queries, queryNameSetRound2, queryNameSetRound1,
+          new CorefPipelinePool(annotatorHelper, snrThreads), fetchRawDoc)
 	    
 	  }catch {case e: Exception => 
 	      {e.printStackTrace()
@@ -178,27 +196,15 @@ object RunKBP2015MultirExtractor {
 	  // so that the doc processing can be shared
 	  // --------------------------------------------------------------------------------------
 	  
-      var querySet: Set[String] = Set()
-      var sameQueries : List[List[KBPQuery]] = List()
-    
-      for(query <- queries){
-        val qn = query.name
-      
-        if(!querySet.contains(qn)){
-          //add query name to the set, which indicates it has been processed
-          querySet += qn   
-          //get all matching queries for this query name
-          val matchingQueries = queries.filter(q => qn.equals(q.name))
-          sameQueries = sameQueries ++ List(matchingQueries)        
-        } 
-      }	  
+      val queryPlan = QueryPlanner.plan(queries)
+      val sameQueries = queryPlan.groups
 	
       println("sameQueries size: " + sameQueries.size)	  
 
       //--------------------------------------------------------------------------
       //If we want to run a subset of the collapsed queries, this is that subset
       //--------------------------------------------------------------------------
-      val sameQueriesBatch = sameQueries.drop(batchDrop).dropRight(batchDropRight)
+      val sameQueriesBatch = queryPlan.batch(batchDrop, batchDropRight)
       
       println("sameQueriesBatch size: " + sameQueriesBatch.size)	  
       
@@ -217,53 +223,49 @@ object RunKBP2015MultirExtractor {
 
       var queryCount = 0
       
-      for(sameQueryName <- sameQueriesBatch){        
+      // the time before the first query group (warm-up, single name resolution,
+      // relevant docs), and from the first query group to the last
+      val queryGroupsStartTime = System.currentTimeMillis()
+      Metrics.gauge("setup-millis")((queryGroupsStartTime - runStartTime).toDouble)
+      
+      for(queryGroup <- sameQueriesBatch){        
 
         queryCount += 1
         
-        val firstQuery = sameQueryName(0) 
+        val firstQuery = queryGroup.firstQuery 
         val queryName = firstQuery.name
         println
         println("query " + queryCount + ": " + firstQuery.id + " " + queryName)
         println
+        Metrics.setGroup(queryGroup.name)
+        Metrics.increment("query-groups")
         
         // -------------------------------------------------------------------
         // singleQueryNamePER -- If query entityType is PER and query name is 
         // a single name (i.e. couldn't be resolved to a full name above),
-        // set flag here to true, to use to drop it
-        // -------------------------------------------------------------------
-        
-	    var singleQueryNamePER = false
-     
-        singleQueryNamePER = firstQuery.entityType match{
-            case PER if(queryName.split(" ").size == 1) => true
-	        case _ => false
-	    }
-      
-        // -----------------------------------------------------------------------
+        // the plan has it set to true, to use to drop it
         // anyRelevantSlots -- If the query set has no slots being filled by
-        // this PERLOC Multir model, set flag here to false, to use to drop it
-        // -----------------------------------------------------------------------
-                
-        var anyRelevantSlots = false
+        // this PERLOC Multir model, the plan has it set to false, to drop it
+        // -------------------------------------------------------------------
         
-        val sameQueriesRelevantSlot = sameQueryName.filter(q => ColdStartSlots_Multir.slots.contains(q.slotsToFill.toList(0).name))
+        val singleQueryNamePER = queryGroup.singleQueryNamePER
+        val anyRelevantSlots = queryGroup.anyRelevantSlots
+        val sameQueriesRelevantSlot = queryGroup.relevantSlotQueries
         
         println("sameQueriesRelevantSlot size: " + sameQueriesRelevantSlot.size)        
-              
-        if(sameQueriesRelevantSlot.size > 0) anyRelevantSlots = true  
                 
         // ------------------------------------------------------------------------------------------------
         // Proceed if this set of queries does not have a single PER name, and has relevant slots to fill
         // ------------------------------------------------------------------------------------------------
-        if(!singleQueryNamePER && anyRelevantSlots){
+        if(queryGroup.process){
           
 	      try{
 
 	        // --------------------------------------------------------------------------
 	        // Set of Relevant Extraction Candidates from the set of relevant documents
 	        // --------------------------------------------------------------------------
-	        var allRelevantCandidates: Seq[Candidate] = Nil
+	        val allRelevantCandidates = new CandidateBuffer
+	        extractionStore.foreach(_.beginGroup(queryGroup))
 
 	        // --------------------------------------
             // Process Documents for this Query Set  
@@ -271,24 +273,36 @@ object RunKBP2015MultirExtractor {
 		        		              	      
 		    val relevantDocs = entityRelevantDocSerialization(firstQuery.id).toSet		      
 		  
-		    val documents :List[Option[Annotation]] = {		    
-		      modePreprocessed match {
-		        case 0 => processDocuments(relevantDocs)
-		        case _ => processDocuments(relevantDocs)	
-		        //case _ => processDocuments(nwDocuments)		      
-		      } 
-		    }
+		    // ---------------------------------------------------------------
+		    // Documents are annotated in windows which fit the heap budget
+		    // (see AnnotationMemoryEstimator); each window's extractions are
+		    // filtered to candidates and its annotations released before the
+		    // next window is annotated
+		    // ---------------------------------------------------------------
+		    processDocumentWindows(relevantDocs, firstQuery.aliases.toSet){ documents =>
 		    println("Getting Extractions")
 		  
             for(document <- documents){
               if(document.isDefined){
+                Metrics.setDocument(document.get.get(classOf[DocIDAnnotation]))
                 val extractions = multirExtractor.extract(document.get, firstQuery).asScala		          		          		      
-                val relevantCandidates = FilterExtractionResults.filterResults(FilterExtractionResults.wrapWithCandidate(extractions), firstQuery, document)     
-                if(relevantCandidates.size > 0) allRelevantCandidates = allRelevantCandidates ++ relevantCandidates
+                val candidates = FilterExtractionResults.wrapWithCandidate(extractions)
+                val relevantCandidates = Metrics.time(Metrics.Filtering){
+                  extractionStore match {
+                    case Some(store) => store.recordAndFilter(candidates, firstQuery, document)
+                    case None => FilterExtractionResults.filterResults(candidates, firstQuery, document)
+                  }
+                }
+                Metrics.increment("extractions", extractions.size)
+                Metrics.increment("relevant-candidates", relevantCandidates.size)
+                allRelevantCandidates ++= relevantCandidates
+                Metrics.clearDocument()
               }
             }
+		    }
 		  
-		    println("Processing Each Query in the Set")
+		    println("Processing Each Query in the Set, candidates: " + allRelevantCandidates.summary)
+		    extractionStore.foreach(_.endGroup())
   
 		    var querySetCount = 0
             for(query <- sameQueriesRelevantSlot){		      
@@ -299,17 +313,21 @@ object RunKBP2015MultirExtractor {
               
 		      val slots = query.slotsToFill
 		       	
-		      val kbpAllRelevantCandidates = FilterExtractionResults.substituteKBPRelationsColdStart(allRelevantCandidates, query)
+		      // fresh candidates per query, since the substitution changes them
+		      val kbpAllRelevantCandidates = FilterExtractionResults.substituteKBPRelationsColdStart(allRelevantCandidates.toCandidates, query)
               
-		      val bestAnswers = slots map { slot => ( slot, SelectBestAnswers.reduceToMaxResults(slot, kbpAllRelevantCandidates.filter(_.extr.getRel() == slot.name)) ) } toMap
+		      val bestAnswers = Metrics.time(Metrics.AnswerSelection){
+		        slots map { slot => ( slot, SelectBestAnswers.reduceToMaxResults(slot, kbpAllRelevantCandidates.filter(_.extr.getRel() == slot.name)) ) } toMap
+		      }
 		               	      
-		      outFmt.printAnswers(bestAnswers, query)    
+		      Metrics.time(Metrics.Output){ outFmt.printAnswers(bestAnswers, query) }
 		    }		   
 		  
 	    }
 	    catch {case e: Exception => 
 	      {e.printStackTrace()
 	         println("EXCEPTION: " + firstQuery.id + " " + firstQuery.name) 
+	         Metrics.increment("query-group-exceptions")
 	         //outFmt.printEmpty(query)
 	      }	  
 	    }		    		  	 
@@ -324,10 +342,18 @@ object RunKBP2015MultirExtractor {
       println
 	    
     } //queries
+      
+      val queryGroupsMillis = System.currentTimeMillis() - queryGroupsStartTime
+      Metrics.gauge("query-groups-millis")(queryGroupsMillis.toDouble)
 		  	  
 	  println("Finished with Queries")
+	  if(twoPhaseAnnotation) println(TwoPhaseAnnotation.report)
+	  println(AnnotationMemoryEstimator.report)
+	  println(Metrics.snapshotJson)
 	  
-	  outputStream.close()
+	  answerSink.close()
+	  explainTrace.foreach(_.close())
+	  extractionStore.foreach(_.close())
 	  
 	  println("Closed outputStreams")
 
@@ -338,6 +364,7 @@ object RunKBP2015MultirExtractor {
       println("free memory: " + Runtime.getRuntime().freeMemory())  		        
       println("computed free memory: " + (Runtime.getRuntime().maxMemory() - Runtime.getRuntime().totalMemory() + Runtime.getRuntime().freeMemory()))
       println("used memory: " + (Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory()))
+      RunLog.flush()
 	  
   } //main
   
@@ -355,37 +382,93 @@ object RunKBP2015MultirExtractor {
     }
   }
   
-  def processDocuments(documents: Set[String]): List[Option[Annotation]] = {
+  def processDocuments(documents: Set[String], queryNames: Set[String] = Set()): List[Option[Annotation]] = {
+    val annotated = scala.collection.mutable.ListBuffer[Option[Annotation]]()
+    processDocumentWindows(documents, queryNames){ window => annotated ++= window }
+    annotated.toList
+  }
+  
+  /*
+   * Annotate the documents and pass them to processWindow in windows: a
+   * document is only admitted to the current window while the heap used when
+   * the window started plus the predicted size of the window's annotations
+   * stays under the budget, otherwise the window is processed first.
+   * 
+   * The documents are processed best first, as ranked by DocumentPrioritizer
+   * on the query names, up to its document budget and deadline. Each ranked
+   * document's raw text is released once it has been annotated.
+   */
+  def processDocumentWindows(documents: Set[String], queryNames: Set[String] = Set())(processWindow: List[Option[Annotation]] => Unit){
     println("Number of docs = " + documents.size)
     var startTime :Long = 0
 	var endTime: Long = 0    	 
 	var docCount = 0
-	var docs = documents.toList
-	// Setting max number of documents to 500
-    val maxSize = 500
-    //val maxSize = 5
-    if(docs.size > maxSize){docs = docs.dropRight(docs.size-maxSize)}
-    println("Docs.size: " + docs.size)
-    //for(doc <- documents.toList) yield{
-    for(doc <- docs) yield{
+	val queryStartTime = System.currentTimeMillis()
+	val deadline = DocumentPrioritizer.deadline(queryStartTime)
+	val remaining = scala.collection.mutable.Queue(DocumentPrioritizer.rank(documents, queryNames, fetchRawDoc,
+	  DocumentPrioritizer.fetchDeadline(queryStartTime)).take(DocumentPrioritizer.maxDocs): _*)
+	val numDocs = remaining.size
+    println("Docs.size: " + numDocs)
+    
+    val window = scala.collection.mutable.ListBuffer[Option[Annotation]]()
+    var windowBytes = 0L
+    var baselineBytes = AnnotationMemoryEstimator.usedBytes
+    
+    def flushWindow(){
+      println("Processing window of " + window.size + " docs, predicted bytes: " + windowBytes)
+      Metrics.increment("document-windows")
+      processWindow(window.toList)
+      window.clear()
+      windowBytes = 0L
+      // no gc here, only the sampled documents force one
+      baselineBytes = AnnotationMemoryEstimator.usedBytes
+    }
+    
+    while(remaining.nonEmpty && System.currentTimeMillis() < deadline){
+      val ranked = remaining.dequeue()
+      val doc = ranked.docid
+      val rawDoc = ranked.rawDoc
       docCount = docCount + 1
-      println("Processing Doc # :" + docCount + " " + doc)
+      println("Processing Doc # :" + docCount + " " + doc + " score: " + ranked.score)
+      
+      val predictedBytes = AnnotationMemoryEstimator.predictFromChars(rawDoc.length)
+      if(window.nonEmpty && !AnnotationMemoryEstimator.admit(baselineBytes, windowBytes, predictedBytes)) flushWindow()
+      
+      val sample = AnnotationMemoryEstimator.nextIsSample()
+      val usedBefore = if(sample) AnnotationMemoryEstimator.measuredUsedBytes else 0L
+      
       var a :Option[Annotation] = None
       val t = new Thread {
         override def run() {    
           startTime = System.currentTimeMillis()
           //a =processDocument(doc)
-          a = stanfordProcessDocument(doc)
+          Metrics.setDocument(doc)
+          a = stanfordProcessRawDocument(doc, rawDoc, queryNames)
+          Metrics.clearDocument()
           endTime = System.currentTimeMillis()
           println("Thread: Document took " + (endTime-startTime) + " milliseconds")      
         }
       }                                              
       t.start()
       //t.join(10000)
-      t.join(180000) 
+      // at most 180 s, and not past the query's deadline
+      t.join(math.max(1L, math.min(180000L, deadline - System.currentTimeMillis()))) 
+      if(t.isAlive()) Metrics.increment("document-timeouts")
       t.stop()
-      a
+      
+      if(a.isDefined){
+        val tokens = AnnotationMemoryEstimator.numTokens(a.get)
+        if(sample) AnnotationMemoryEstimator.calibrate(rawDoc.length, tokens,
+          AnnotationMemoryEstimator.measuredUsedBytes - usedBefore)
+        windowBytes += AnnotationMemoryEstimator.predictFromTokens(tokens)
+      }
+      window += a
+    }
+    if(remaining.nonEmpty){
+      println("Deadline: stopped after " + docCount + " of " + numDocs + " docs")
+      Metrics.increment("query-deadline-stops")
     }
+    if(window.nonEmpty) flushWindow()
   }
   
   def cjParseDocument(docName: String): Option[Annotation] = {
@@ -450,22 +533,61 @@ object RunKBP2015MultirExtractor {
     cjParsedDoc
   }
   
-  def stanfordProcessDocument(docName: String) : Option[Annotation] = {
+  // Long docs (WindowedAnnotation.maxDocLength chars or more) are annotated in chunks,
+  // with coref merged across chunks on queryNames; in two-phase mode only the
+  // sentences relevant to queryNames are parsed (see TwoPhaseAnnotation)
+  def stanfordProcessDocument(docName: String, queryNames: Set[String] = Set()) : Option[Annotation] = {
     try{
-      val rawDoc = SolrHelper.getRawDoc(docName)
-      if(rawDoc.length < 20000){
-        val processedDoc = new Annotation(rawDoc)
-        annotatorHelper.getCorefPipeline().annotate(processedDoc)
-        //need to set below when not running CJ
-        processedDoc.set(classOf[DocIDAnnotation], docName)
-        println("Document was Stanford Annotated: " + processedDoc.get(classOf[DocIDAnnotation]))
-        //this is null below, comes from CJ call
-        //println("DwSA SentDocName: " + processedDoc.get(classOf[SentDocName]))
-        Some(processedDoc)
+      val rawDoc = Metrics.time(Metrics.DocFetch){ fetchRawDoc(docName) }
+      stanfordProcessRawDocument(docName, rawDoc, queryNames)
+    }
+    catch{
+      case e: Exception => e.printStackTrace()
+      None
+    }
+  }
+  
+  /*
+   * The raw document, from the StageCache when on (see StageCache).
+   */
+  def fetchRawDoc(docName: String): String = {
+    val key = if(StageCache.enabled) StageCache.sha1(SolrHelper.corpusName, docName) else null
+    StageCache.getOrNull("raw", key) match {
+      case rawDoc: String => rawDoc
+      case _ => {
+        val rawDoc = SolrHelper.getRawDoc(docName)
+        // not found is "", left uncached
+        if(rawDoc.nonEmpty) StageCache.put("raw", key, rawDoc)
+        rawDoc
       }
-      else{
-        None
-      }  
+    }
+  }
+  
+  def stanfordProcessRawDocument(docName: String, rawDoc: String, queryNames: Set[String] = Set()) : Option[Annotation] = {
+    try{
+      val twoPhase = twoPhaseAnnotation && queryNames.nonEmpty
+      // the names only change the annotation of two-phase and windowed documents, so
+      // a short document shared by several query groups is annotated once
+      val keyNames = if(twoPhase || rawDoc.length >= WindowedAnnotation.maxDocLength) queryNames.toList.sorted.mkString("\t") else ""
+      val annotationKey = if(StageCache.enabled) StageCache.sha1(StageCache.sha1(rawDoc), keyNames,
+        twoPhase.toString, StageCache.classVersion(WindowedAnnotation.getClass, TwoPhaseAnnotation.getClass,
+          classOf[StanfordAnnotatorHelperMethods])) else null
+      val processedDoc = StageCache.memoize("annotation", annotationKey){
+        Metrics.time(Metrics.Annotation){
+          if(twoPhase) TwoPhaseAnnotation.annotate(rawDoc, queryNames, annotatorHelper)
+          else WindowedAnnotation.annotate(rawDoc, annotatorHelper.getCorefPipeline(), queryNames)
+        }
+      }
+      // the extraction stage's keys are made from it
+      if(annotationKey != null) processedDoc.set(classOf[StageKeyAnnotation], annotationKey)
+      Metrics.increment("documents-annotated")
+      Metrics.increment("document-chars", rawDoc.length)
+      //need to set below when not running CJ
+      processedDoc.set(classOf[DocIDAnnotation], docName)
+      println("Document was Stanford Annotated: " + processedDoc.get(classOf[DocIDAnnotation]))
+      //this is null below, comes from CJ call
+      //println("DwSA SentDocName: " + processedDoc.get(classOf[SentDocName]))
+      Some(processedDoc)
     }
     catch{
       case e: Exception => e.printStackTrace()
@@ -226,33 +226,15 @@ object RunKBP2015MultirExtractorCorpusSerialized {
 	  // so that the doc processing can be shared
 	  // --------------------------------------------------------------------------------------
 	  
-      var querySet: Set[String] = Set()
-      var sameQueries : List[List[KBPQuery]] = List()
-    
-      for(query <- queries){
-        val qn = query.name
-      
-        if(!querySet.contains(qn)){
-          //add query name to the set, which indicates it has been processed
-          querySet += qn   
-          //get all matching queries for this query name
-          val matchingQueries = queries.filter(q => qn.equals(q.name))
-          sameQueries = sameQueries ++ List(matchingQueries)        
-        } 
-      }	  
+      val queryPlan = QueryPlanner.plan(queries)
+      val sameQueries = queryPlan.groups
 	
       println("sameQueries size: " + sameQueries.size)	  
 
-      //var qcount = 0
-      //sameQueries.foreach(q => { qcount +=1 
-      //                           println("query " + qcount + ": " + q(0).name)
-      //                         })
-      //return
-      
       //--------------------------------------------------------------------------
       //If we want to run a subset of the collapsed queries, this is that subset
       //--------------------------------------------------------------------------
-      val sameQueriesBatch = sameQueries.drop(batchDrop).dropRight(batchDropRight)
+      val sameQueriesBatch = queryPlan.batch(batchDrop, batchDropRight)
       
       println("sameQueriesBatch size: " + sameQueriesBatch.size)	  
       
@@ -273,11 +255,11 @@ object RunKBP2015MultirExtractorCorpusSerialized {
       var queryCount = 0
       var docCount = 0
       
-      for(sameQueryName <- sameQueriesBatch){        
+      for(queryGroup <- sameQueriesBatch){        
 
         queryCount += 1
         
-        val firstQuery = sameQueryName(0) 
+        val firstQuery = queryGroup.firstQuery 
         val queryName = firstQuery.name
         println
         println("query " + queryCount + ": " + firstQuery.id + " " + queryName)
@@ -286,33 +268,21 @@ object RunKBP2015MultirExtractorCorpusSerialized {
         // -------------------------------------------------------------------
         // singleQueryNamePER -- If query entityType is PER and query name is 
         // a single name (i.e. couldn't be resolved to a full name above),
-        // set flag here to true, to use to drop it
-        // -------------------------------------------------------------------
-        
-	    var singleQueryNamePER = false
-     
-        singleQueryNamePER = firstQuery.entityType match{
-            case PER if(queryName.split(" ").size == 1) => true
-	        case _ => false
-	    }
-      
-        // -----------------------------------------------------------------------
+        // the plan has it set to true, to use to drop it
         // anyRelevantSlots -- If the query set has no slots being filled by
-        // this PERLOC Multir model, set flag here to false, to use to drop it
-        // -----------------------------------------------------------------------
-                
-        var anyRelevantSlots = false
+        // this PERLOC Multir model, the plan has it set to false, to drop it
+        // -------------------------------------------------------------------
         
-        val sameQueriesRelevantSlot = sameQueryName.filter(q => ColdStartSlots_Multir.slots.contains(q.slotsToFill.toList(0).name))
+        val singleQueryNamePER = queryGroup.singleQueryNamePER
+        val anyRelevantSlots = queryGroup.anyRelevantSlots
+        val sameQueriesRelevantSlot = queryGroup.relevantSlotQueries
         
         println("sameQueriesRelevantSlot size: " + sameQueriesRelevantSlot.size)        
-              
-        if(sameQueriesRelevantSlot.size > 0) anyRelevantSlots = true  
                 
         // ------------------------------------------------------------------------------------------------
         // Proceed if this set of queries does not have a single PER name, and has relevant slots to fill
         // ------------------------------------------------------------------------------------------------
-        if(!singleQueryNamePER && anyRelevantSlots){
+        if(queryGroup.process){
           
 	      try{
 
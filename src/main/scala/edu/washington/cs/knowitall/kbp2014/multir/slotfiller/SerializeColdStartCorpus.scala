@@ -193,20 +193,15 @@ object SerializeColdStartCorpus {
   def stanfordProcessDocument(docName: String) : Option[Annotation] = { 	     
     try{
       val rawDoc = SolrHelper.getRawDoc(docName)
-      if(rawDoc.length < 20000){
-        //println("Processing Doc # :" + docName)
-        val processedDoc = new Annotation(rawDoc)
-        annotatorHelper.getCorefPipeline().annotate(processedDoc)
-        //need to set below when not running CJ
-        processedDoc.set(classOf[DocIDAnnotation], docName)
-        println("Document was Stanford Annotated: " + processedDoc.get(classOf[DocIDAnnotation]))
-        //this is null below, comes from CJ call
-        //println("DwSA SentDocName: " + processedDoc.get(classOf[SentDocName]))
-        Some(processedDoc)
-      }
-      else{
-        None
-      }  
+      //println("Processing Doc # :" + docName)
+      // long docs are annotated in chunks; there is no query here, so no coref is merged across chunks
+      val processedDoc = WindowedAnnotation.annotate(rawDoc, annotatorHelper.getCorefPipeline())
+      //need to set below when not running CJ
+      processedDoc.set(classOf[DocIDAnnotation], docName)
+      println("Document was Stanford Annotated: " + processedDoc.get(classOf[DocIDAnnotation]))
+      //this is null below, comes from CJ call
+      //println("DwSA SentDocName: " + processedDoc.get(classOf[SentDocName]))
+      Some(processedDoc)
     }
     catch{
       case e: Exception => e.printStackTrace()
@@ -1,6 +1,8 @@
 package edu.washington.cs.knowitall.kbp2014.multir.slotfiller
 
 import scala.collection.JavaConverters._
+import scala.collection.parallel.ForkJoinTaskSupport
+import KBPQueryEntityType._
 import edu.stanford.nlp.pipeline.Annotation
 import edu.knowitall.collection.immutable.Interval
 import edu.washington.cs.knowitall.kbp2014.multir.slotfiller.util.DocUtils
@@ -12,6 +14,15 @@ object SingleNameResolver {
     
     val names = DocUtils.stanfordHelper.getNamesFromCorefMentions(q.doc, Interval.closed(q.begOffset,q.endOffset)).asScala
 
+    singleQueryName(q, names, queryNameSetRound2, queryNameSetRound1)
+  }
+  
+  /*
+   * The choice of full name from the names in the query mention's coref
+   * chain, leaving out the names of other queries.
+   */
+  def singleQueryName(q: KBPQuery, names: Seq[String], queryNameSetRound2: Set[String], queryNameSetRound1: Set[String]): (Boolean,String) = {
+    
     //fullName has to have 2 or more names, has to overlap with the query name, dedupe same name, 
     //sort by number of names in the full name
     var fullNames = names.filter(n => n.split(" ").size >= 2).
@@ -111,6 +122,65 @@ object SingleNameResolver {
     
   }
   
+  // ---------------------------------------------------------------------
+  // Batch resolution
+  // ---------------------------------------------------------------------
+  
+  def isSingleNamePER(q: KBPQuery): Boolean = q.entityType == PER && q.name.split(" ").size == 1
+  
+  /*
+   * Resolves all single name PER queries at once, in place of calling
+   * singleQueryName(q, queryNameSetRound2, queryNameSetRound1) per query:
+   * the queries' source documents are deduplicated and coref annotated in
+   * parallel on the pool, through the StageCache ("snr" stage) when it is
+   * on, then each query's name is chosen from its document's chains. A
+   * query whose document fails to annotate keeps its single name.
+   *
+   * Replaces the names of the resolved queries; returns how many.
+   */
+  def resolveAll(queries: Seq[KBPQuery], queryNameSetRound2: Set[String], queryNameSetRound1: Set[String],
+      pool: CorefPipelinePool, fetch: String => String): Int = {
+    
+    val singleQueries = queries.filter(isSingleNamePER)
+    val docs = singleQueries.map(_.doc).distinct
+    println("SingleNameResolver: single name queries: " + singleQueries.size + " docs: " + docs.size)
+    
+    val startTime = System.currentTimeMillis()
+    val parDocs = docs.par
+    // twice as many threads as pipelines, so fetching a document overlaps annotating another;
+    // shut down after the batch, as the service resolves once per batch
+    val forkJoinPool = new scala.concurrent.forkjoin.ForkJoinPool(2 * pool.getSize())
+    parDocs.tasksupport = new ForkJoinTaskSupport(forkJoinPool)
+    val annotations = try parDocs.flatMap(docid => {
+      try{
+        val rawDoc = fetch(docid)
+        val key = if(StageCache.enabled) StageCache.sha1(StageCache.sha1(rawDoc),
+          StageCache.classVersion(classOf[StanfordAnnotatorHelperMethods])) else null
+        Some((docid, StageCache.memoize("snr", key){ pool.annotate(docid, rawDoc) }))
+      }catch{
+        case e: Exception => {
+          e.printStackTrace()
+          println("EXCEPTION: SingleNameResolver " + docid)
+          None
+        }
+      }
+    }).seq.toMap
+    finally{ forkJoinPool.shutdown() }
+    println("SingleNameResolver: annotated " + annotations.size + " docs, millis: " + (System.currentTimeMillis() - startTime))
+    
+    var resolved = 0
+    for(q <- singleQueries; doc <- annotations.get(q.doc)){
+      val names = pool.getFirst().getFullNamesFromCorefMentions(doc, Interval.closed(q.begOffset,q.endOffset)).asScala
+      val (single, qname) = singleQueryName(q, names, queryNameSetRound2, queryNameSetRound1)
+      if(!single){
+        q.name = qname
+        resolved += 1
+      }
+    }
+    println("SingleNameResolver: resolved " + resolved + " of " + singleQueries.size)
+    resolved
+  }
+  
   def toNameCase(name: String): String = {
     val nameCase = name.toLowerCase.split(" ").map(n => n.charAt(0).toUpper + n.drop(1)).mkString(" ")    
     nameCase
@@ -0,0 +1,281 @@
+package edu.washington.cs.knowitall.kbp2014.multir.slotfiller
+
+import java.io._
+import java.net.{InetSocketAddress, URLDecoder}
+import java.nio.file.Files
+import java.util.concurrent.{ConcurrentHashMap, CountDownLatch, LinkedBlockingQueue, TimeUnit}
+
+import scala.collection.JavaConverters._
+import scala.collection.mutable
+
+import com.sun.net.httpserver.{HttpExchange, HttpHandler, HttpServer}
+import edu.stanford.nlp.ling.CoreAnnotations.DocIDAnnotation
+import KBPQueryEntityType._
+
+/*
+ * Resident slot filling service, so that ad-hoc and incremental query runs
+ * don't pay the startup cost (CoreNLP coref pipeline, Multir models, slot
+ * tables) each time.
+ *
+ * Endpoints, on a local HTTP port:
+ *   POST /queries?roundID=...   the body is a query XML file
+ *   GET  /query?id=...&name=...&enttype=PER|ORG|GPE&docid=...&beg=...&end=...&slot=...
+ *                               one KBPQuery; without slot, all of the entity type's slots
+ *   GET  /metrics               Metrics.snapshotJson
+ * The answers come back in OutputFormatter's format, streamed per query. The
+ * queries which are not answered are listed in the X-Skipped-Queries header,
+ * as id=reason: single-name-PER (a single name PER query which could not be
+ * resolved to a full name) or no-relevant-slots, and in the log.
+ *
+ * Requests are batched: the batcher takes the first waiting request and
+ * whatever arrives within batchMillis after it, and plans their queries
+ * together, so queries with the same name, from any request, share one
+ * relevant document search and one pass of document annotation and extraction
+ * (RunKBP2015MultirExtractor.processDocumentWindows), as the query groups do
+ * in a batch run. As there, the batch's single name PER queries are first
+ * resolved to full names (SingleNameResolver.resolveAll). The relevant
+ * documents of a query name are found with one index scan for all of the
+ * batch's new names, and kept for later requests.
+ *
+ * Args: port corpus [roundID] [batchMillis]
+ */
+object SlotFillingService {
+
+  val runID = "UWashington4"
+
+  case class Request(queries: List[KBPQuery], exchange: HttpExchange){
+    val done = new CountDownLatch(1)
+    @volatile var outFmt: OutputFormatter = null
+
+    /*
+     * Sends the response headers, with the skipped queries, and opens the
+     * answer stream; once the batch is planned.
+     */
+    def start(skipped: Seq[(KBPQuery, String)]){
+      if(skipped.nonEmpty) exchange.getResponseHeaders.set("X-Skipped-Queries", skipped.map(s => s._1.id + "=" + s._2).mkString(","))
+      // 0: chunked, the answers are written as each query is done
+      exchange.sendResponseHeaders(200, 0)
+      outFmt = OutputFormatter.formattedAnswersOnly(new PrintStream(exchange.getResponseBody, true, "UTF-8"), runID)
+    }
+  }
+
+  private val pending = new LinkedBlockingQueue[Request]()
+  private val relevantDocsByName = new ConcurrentHashMap[String, List[String]]()
+
+  lazy val multirExtractor = new MultiModelMultirExtractorVersionColdStart()
+
+  // the batcher's, on the driver's coref pipeline
+  lazy val corefPool = new CorefPipelinePool(RunKBP2015MultirExtractor.annotatorHelper, 1)
+
+  // ----------------------------------------------------------------------------
+  // Requests
+  // ----------------------------------------------------------------------------
+
+  def parseParameters(query: String): Map[String, String] = {
+    if(query == null) Map()
+    else query.split("&").toList.filter(_.contains("=")).map(p => {
+      val kv = p.split("=", 2)
+      (URLDecoder.decode(kv(0), "UTF-8"), URLDecoder.decode(kv(1), "UTF-8"))
+    }).toMap
+  }
+
+  def singleQuery(params: Map[String, String]): KBPQuery = {
+    val entityType = params.getOrElse("enttype", "") match {
+      case "ORG" | "org" => ORG
+      case "PER" | "per" => PER
+      case "GPE" | "gpe" => GPE
+      case _ => throw new IllegalArgumentException("improper 'enttype' value")
+    }
+    val slots = Slot.getSlotTypesList(entityType)
+    val slotsToFill = params.get("slot") match {
+      case Some(name) => slots.filter(_.name == name)
+      case None => slots
+    }
+    KBPQuery(params("id"), params("name"), params.getOrElse("docid", ""), params.getOrElse("beg", "0").toInt,
+      params.getOrElse("end", "0").toInt, entityType, slotsToFill)
+  }
+
+  def xmlQueries(body: InputStream, roundID: String): List[KBPQuery] = {
+    val file = Files.createTempFile("queries", ".xml")
+    try{
+      Files.copy(body, file, java.nio.file.StandardCopyOption.REPLACE_EXISTING)
+      KBPQuery.parseKBPQueries(file.toString, roundID)
+    }
+    finally{ Files.delete(file) }
+  }
+
+  class QueryHandler(defaultRoundID: String) extends HttpHandler {
+    def handle(exchange: HttpExchange){
+      try{
+        val params = parseParameters(exchange.getRequestURI.getRawQuery)
+        val queries = KBPQuery.getAliases(exchange.getRequestURI.getPath match {
+          case "/queries" => xmlQueries(exchange.getRequestBody, params.getOrElse("roundID", defaultRoundID))
+          case _ => List(singleQuery(params))
+        })
+        exchange.getResponseHeaders.set("Content-Type", "text/plain; charset=UTF-8")
+        val request = Request(queries, exchange)
+        pending.put(request)
+        request.done.await()
+        // the batch failed before it was planned
+        if(request.outFmt == null) exchange.sendResponseHeaders(500, -1)
+      }catch{
+        case e: Exception => {
+          e.printStackTrace()
+          println("EXCEPTION: request " + exchange.getRequestURI)
+          try{ exchange.sendResponseHeaders(400, -1) }catch{ case _: IOException => }
+        }
+      }
+      finally{ exchange.close() }
+    }
+  }
+
+  class MetricsHandler extends HttpHandler {
+    def handle(exchange: HttpExchange){
+      val bytes = Metrics.snapshotJson.getBytes("UTF-8")
+      exchange.getResponseHeaders.set("Content-Type", "application/json")
+      exchange.sendResponseHeaders(200, bytes.length)
+      exchange.getResponseBody.write(bytes)
+      exchange.close()
+    }
+  }
+
+  // ----------------------------------------------------------------------------
+  // Batches
+  // ----------------------------------------------------------------------------
+
+  def nextBatch(batchMillis: Long): List[Request] = {
+    val batch = mutable.ListBuffer[Request](pending.take())
+    val deadline = System.currentTimeMillis() + batchMillis
+    var waitMillis = batchMillis
+    while(waitMillis > 0){
+      val request = pending.poll(waitMillis, TimeUnit.MILLISECONDS)
+      if(request != null) batch += request
+      waitMillis = deadline - System.currentTimeMillis()
+    }
+    pending.drainTo(batch.asJava)
+    batch.toList
+  }
+
+  /*
+   * The relevant documents of each group, searching the index once for the
+   * names not seen before.
+   */
+  def relevantDocs(groups: List[QueryPlanner.QueryGroup]): Map[String, List[String]] = {
+    val newGroups = groups.filter(g => !relevantDocsByName.containsKey(g.name))
+    if(newGroups.nonEmpty){
+      val found = SolrHelper.getRelevantDocuments(newGroups.map(_.firstQuery))
+      for(group <- newGroups){
+        relevantDocsByName.put(group.name, found.getOrElse(group.firstQuery, Nil))
+      }
+    }
+    groups.map(g => (g.name, relevantDocsByName.get(g.name))).toMap
+  }
+
+  def processBatch(batch: List[Request]){
+    val startTime = System.currentTimeMillis()
+    val owner = new java.util.IdentityHashMap[KBPQuery, Request]()
+    for(request <- batch; query <- request.queries) owner.put(query, request)
+
+    val queries = batch.flatMap(_.queries)
+    try{
+      val queryNames = queries.map(_.name).toSet
+      SingleNameResolver.resolveAll(queries, queryNames, queryNames, corefPool, RunKBP2015MultirExtractor.fetchRawDoc)
+    }catch{
+      case e: Exception => {
+        e.printStackTrace()
+        println("EXCEPTION: SingleNameResolver")
+      }
+    }
+
+    val queryPlan = QueryPlanner.plan(queries)
+    val groups = queryPlan.groups.filter(_.process)
+
+    val skipped = for(group <- queryPlan.groups; if(!group.process); query <- group.queries) yield {
+      val reason = if(group.singleQueryNamePER) "single-name-PER" else "no-relevant-slots"
+      println("Skipping query " + query.id + " " + query.name + ": " + reason)
+      (query, reason)
+    }
+    Metrics.increment("service-skipped-queries", skipped.size)
+    for(request <- batch){
+      try{ request.start(skipped.filter(s => owner.get(s._1) eq request)) }
+      catch{ case e: IOException => e.printStackTrace() }
+    }
+
+    val docsByName = relevantDocs(groups)
+
+    for(queryGroup <- groups){
+      val firstQuery = queryGroup.firstQuery
+      Metrics.setGroup(queryGroup.name)
+      Metrics.increment("service-query-groups")
+      try{
+        val allRelevantCandidates = new CandidateBuffer
+        RunKBP2015MultirExtractor.processDocumentWindows(docsByName(queryGroup.name).toSet, firstQuery.aliases.toSet){ documents =>
+          for(document <- documents; if(document.isDefined)){
+            Metrics.setDocument(document.get.get(classOf[DocIDAnnotation]))
+            val extractions = multirExtractor.extract(document.get, firstQuery).asScala
+            allRelevantCandidates ++= Metrics.time(Metrics.Filtering){
+              FilterExtractionResults.filterResults(FilterExtractionResults.wrapWithCandidate(extractions), firstQuery, document)
+            }
+            Metrics.clearDocument()
+          }
+        }
+        for(query <- queryGroup.relevantSlotQueries){
+          val kbpAllRelevantCandidates = FilterExtractionResults.substituteKBPRelationsColdStart(allRelevantCandidates.toCandidates, query)
+          val bestAnswers = Metrics.time(Metrics.AnswerSelection){
+            query.slotsToFill map { slot => ( slot, SelectBestAnswers.reduceToMaxResults(slot, kbpAllRelevantCandidates.filter(_.extr.getRel() == slot.name)) ) } toMap
+          }
+          val request = owner.get(query)
+          if(request.outFmt != null) Metrics.time(Metrics.Output){ request.synchronized { request.outFmt.printAnswers(bestAnswers, query) } }
+        }
+      }catch{
+        case e: Exception => {
+          e.printStackTrace()
+          println("EXCEPTION: " + firstQuery.id + " " + firstQuery.name)
+          Metrics.increment("query-group-exceptions")
+        }
+      }
+    }
+    batch.foreach(_.done.countDown())
+    println("Batch of " + batch.size + " requests, " + queryPlan.summary + " millis: " + (System.currentTimeMillis() - startTime))
+  }
+
+  def main(Args: Array[String]){
+
+    RunLog.install()
+
+    val port = Args(0).toInt
+    val corpus = Args(1)
+    val roundID = if(Args.length > 2) Args(2) else "round1"
+    val batchMillis = if(Args.length > 3) Args(3).toLong else 200L
+
+    Metrics.startFromSystemProperties()
+    SolrHelper.setConfigurations(corpus, false)
+
+    // ---------------------------------------------------------------------
+    // Warm up before accepting requests
+    // ---------------------------------------------------------------------
+    Warmup.warmUp(Warmup.coldStartResources(Some(multirExtractor)))
+
+    val server = HttpServer.create(new InetSocketAddress("localhost", port), 0)
+    server.createContext("/queries", new QueryHandler(roundID))
+    server.createContext("/query", new QueryHandler(roundID))
+    server.createContext("/metrics", new MetricsHandler)
+    server.setExecutor(java.util.concurrent.Executors.newCachedThreadPool())
+    server.start()
+    println("SlotFillingService: listening on localhost:" + port)
+
+    // one batcher: the documents of a batch are processed in turn, as in a run
+    while(true){
+      val batch = nextBatch(batchMillis)
+      try{ processBatch(batch) }
+      catch{
+        case e: Exception => {
+          e.printStackTrace()
+          batch.foreach(_.done.countDown())
+        }
+      }
+      RunLog.flush()
+    }
+  }
+
+}
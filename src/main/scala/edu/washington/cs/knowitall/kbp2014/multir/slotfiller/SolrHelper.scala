@@ -13,9 +13,12 @@ object SolrHelper {
   var solrXMLDocsClient : Option[SolrClient] = None
   var solrDocID = "docid";
   var solrDocString = "xml";
+  // the configured corpus, part of the StageCache key of raw documents
+  var corpusName = ""
     
   
   def setConfigurations(oldOrNew: String, corefOn: Boolean){
+    corpusName = oldOrNew
     oldOrNew match{
       case "old" => {solrXMLDocsClient = Some(new SolrClient(solrUrlForXMLDocsFromOldCorpus)) }
       case "new" => {solrXMLDocsClient = Some(new SolrClient(solrUrlForXMLDocsFromNewCorpus)) }
@@ -23,12 +26,41 @@ object SolrHelper {
                          solrDocString="docstring"
                         }
       case "cs" => {solrXMLDocsClient = Some(new SolrClient(solrUrlForXMLDocsFromCSCorpus)) }
+      // documents in a local directory, see LocalDocStore
+      case "local" => {solrXMLDocsClient = None }
     }
     
   }
   
+  /*
+   * The alias matching shared by the relevant document searches: add docid to
+   * the list of each query with an alias in the document.
+   */
+  def addAliasMatches(docid: String, docString: String, queries: List[KBPQuery],
+      queryDocMap: scala.collection.mutable.Map[KBPQuery,List[String]]){
+    val noNewLineDocString = docString.replaceAll("\n+", " ")
+    for(q <- queries){
+      for(alias <- q.aliases){
+        if(noNewLineDocString.contains(alias)){
+          println(docid + " contains string " + alias)
+          val r = queryDocMap.get(q)
+          if(r.isDefined){
+            val currentList = r.get
+            if(!currentList.contains(docid)) queryDocMap.put(q,docid :: currentList)
+          }
+          else{
+            val newList = List[String](docid)
+            queryDocMap.put(q,newList)
+          }
+        }
+      }
+    }
+  }
+
   def getRelevantDocuments(queries: List[KBPQuery]): Map[KBPQuery,List[String]] = {
 
+    if(corpusName == "local") return LocalDocStore.getRelevantDocuments(queries)
+    
     val query = solrXMLDocsClient.get.query("*:*").fields(solrDocID, solrDocString);
     
     var result = query.rows(1000).getResultAsMap()
@@ -38,24 +70,7 @@ object SolrHelper {
     while(result.documents.size > 0){
     for( doc <- result.documents){
       val docString = doc.get(solrDocString).toString()
-      val noNewLineDocString = docString.replaceAll("\n+", " ");
-      for(q <- queries){
-        for(alias <- q.aliases){
-          if(noNewLineDocString.contains(alias)){
-            val docid = doc.get(solrDocID).get.toString
-            println(docid + " contains string " + alias)
-            val r = queryDocMap.get(q)
-            if(r.isDefined){
-              val currentList = r.get
-              if(!currentList.contains(docid)) queryDocMap.put(q,docid :: currentList)
-            }
-            else{
-              val newList = List[String](docid)
-              queryDocMap.put(q,newList)
-            }
-          }
-        }
-      }
+      addAliasMatches(doc.get(solrDocID).get.toString, docString, queries, queryDocMap)
       count+=1
       if(count % 100 == 0){
         println(count + " docs processed")
@@ -77,23 +92,7 @@ object SolrHelper {
     ColdStartCorpus.documents.foreach(d => {
       count += 1
       val docString = SolrHelper.getRawDoc(d)
-      val noNewLineDocString = docString.replaceAll("\n+", " ")
-      for(q <- queries){
-      for(alias <- q.aliases){
-        if(noNewLineDocString.contains(alias)){
-          println(d + " contains string " + alias)
-          val r = queryDocMap.get(q)
-            if(r.isDefined){
-              val currentList = r.get
-                if(!currentList.contains(d)) queryDocMap.put(q,d :: currentList)
-              }
-            else{
-              val newList = List[String](d)
-              queryDocMap.put(q,newList)
-            }
-        }      
-      }
-      }
+      addAliasMatches(d, docString, queries, queryDocMap)
       if(count % 1000 == 0){
         println("--------------------------")
         println(count + " docs processed")
@@ -119,24 +118,7 @@ object SolrHelper {
       //val csDocId = doc.get(solrDocID).get.toString
       if(ColdStartCorpus.documents.contains(docid)){
         val docString = doc.get(solrDocString).toString()
-        val noNewLineDocString = docString.replaceAll("\n+", " ");
-        for(q <- queries){
-          for(alias <- q.aliases){
-            if(noNewLineDocString.contains(alias)){
-              //val docid = doc.get(solrDocID).get.toString
-              println(docid + " contains string " + alias)
-              val r = queryDocMap.get(q)
-              if(r.isDefined){
-                val currentList = r.get
-                if(!currentList.contains(docid)) queryDocMap.put(q,docid :: currentList)
-              }
-              else{
-                val newList = List[String](docid)
-                queryDocMap.put(q,newList)
-              }
-            }
-          }
-        }
+        addAliasMatches(docid, docString, queries, queryDocMap)
       }//if in cold start corpus
       count+=1
       if(count % 100 == 0){
@@ -152,21 +134,24 @@ object SolrHelper {
     queryDocMap.toMap
   }
   
+  /*
+   * The documents matching each query alias in the Chinese index, paged
+   * 1000 at a time, as in getRelevantDocuments.
+   */
   def getRelevantChineseDocuments(queries: List[KBPQuery]): Map[KBPQuery,List[String]] = {
     
       val queryDocMap = scala.collection.mutable.Map[KBPQuery,List[String]]()
-      //var count = 0
       
       for(q <- queries){
                
         for(alias <- q.aliases){
 
-           val query = solrXMLDocsClient.get.query(alias).fields(solrDocString);
-           var result = query.getResultAsMap()
+           val query = solrXMLDocsClient.get.query(alias).fields(solrDocID)
+           var start = 0
+           var result = query.start(start).rows(1000).getResultAsMap()
            
            while(result.documents.size > 0){
               for( doc <- result.documents){           
-                 //var start = 0
                  val docid = doc.get(solrDocID).get.toString
                  println(docid + " contains string " + alias)
                  val r = queryDocMap.get(q)
@@ -178,26 +163,18 @@ object SolrHelper {
                     val newList = List[String](docid)
                     queryDocMap.put(q,newList)
                  }
-              
-             }
-          } 
-      }  
-      
-      //count+=1
-      //if(count % 100 == 0){
-      //  println(count + " docs processed")
-      //}
-      //if(count % 1000 == 0){
-      //  start += 1000
-      //  result = query.start(start).rows(1000).getResultAsMap()
-     //}
-    
-    }
-    queryDocMap.toMap
+              }
+              start += 1000
+              result = query.start(start).rows(1000).getResultAsMap()
+           } 
+        }  
+      }
+      queryDocMap.toMap
   }
   
   
   def getRawDoc(docId: String): String = {
+    if(corpusName == "local") return LocalDocStore.getRawDoc(docId)
     val query = solrXMLDocsClient.get.query("docid:\""+ docId + "\"")
     val result = query.getResultAsMap()
     if(result.documents.length != 1){
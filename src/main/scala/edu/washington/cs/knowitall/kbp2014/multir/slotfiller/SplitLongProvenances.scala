@@ -13,360 +13,73 @@ object SplitLongProvenances {
 
   val config = ConfigFactory.load("kbp-2015-split-long-provenances.conf")
 
-  val inFileName_combine_r1 = config.getString("in-file-combine_r1")
-  val inFileName_combine_r2 = config.getString("in-file-combine_r2")
-
-  val inFileName_multir_r1 = config.getString("in-file-multir_r1")
-  val inFileName_multir_r2 = config.getString("in-file-multir_r2")
-  
-  val inFileName_implie_r1 = config.getString("in-file-implie_r1")
-  val inFileName_implie_r2 = config.getString("in-file-implie_r2")
-  
-  val inFileName_openie_r1 = config.getString("in-file-openie_r1")
-  val inFileName_openie_r2 = config.getString("in-file-openie_r2")
-  
-  val outFileName_combine_r1 = config.getString("out-file-combine_r1")
-  val outFileName_combine_r2 = config.getString("out-file-combine_r2")
-  
-  val outFileName_multir_r1 = config.getString("out-file-multir_r1")
-  val outFileName_multir_r2 = config.getString("out-file-multir_r2")
-  
-  val outFileName_implie_r1 = config.getString("out-file-implie_r1")
-  val outFileName_implie_r2 = config.getString("out-file-implie_r2")
-  
-  val outFileName_openie_r1 = config.getString("out-file-openie_r1")
-  val outFileName_openie_r2 = config.getString("out-file-openie_r2")
-  
   val outStatsFileName = config.getString("out-stats-file")
+
+  val maxProvLength = if(config.hasPath("max-prov-length")) config.getInt("max-prov-length") else 150
+  val stageNames = if(config.hasPath("stages")) Some(config.getString("stages")) else None
+
+  val systems = List("combine", "multir", "implie", "openie")
+  val rounds = List("r1", "r2")
+
+  /*
+   * (system, round, input file, output file) for each file to split, from, in
+   * order of preference:
+   *   - the arguments, as input/output file pairs,
+   *   - the config's files list, entries "system round in-file out-file",
+   *   - the config's in-file-<system>_<round>/out-file-<system>_<round> keys,
+   *     only the pairs which are set.
+   */
+  def files(args: Array[String]): List[(String, String, String, String)] = {
+    if(args.nonEmpty){
+      require(args.size % 2 == 0, "Expected input/output file pairs, got: " + args.mkString(" "))
+      args.grouped(2).map(pair => (pair(0), "", pair(0), pair(1))).toList
+    }
+    else if(config.hasPath("files")){
+      config.getStringList("files").toList.map(entry => entry.trim.split("\\s+") match {
+        case Array(system, round, in, out) => (system, round, in, out)
+        case _ => throw new IllegalArgumentException("Expected \"system round in-file out-file\", got: " + entry)
+      })
+    }
+    else{
+      for(system <- systems; round <- rounds 
+          if config.hasPath("in-file-" + system + "_" + round) && config.hasPath("out-file-" + system + "_" + round)) 
+        yield (system, round, config.getString("in-file-" + system + "_" + round), 
+          config.getString("out-file-" + system + "_" + round))
+    }
+  }
       
   def main(args: Array[String]) {
     
-    val outCombineR1Stream = new PrintStream(outFileName_combine_r1)
-    val outCombineR2Stream = new PrintStream(outFileName_combine_r2)
-    
-    val outMultirR1Stream = new PrintStream(outFileName_multir_r1)
-    val outMultirR2Stream = new PrintStream(outFileName_multir_r2)
-    
-    val outImplieR1Stream = new PrintStream(outFileName_implie_r1)
-    val outImplieR2Stream = new PrintStream(outFileName_implie_r2)
-    
-    val outOpenieR1Stream = new PrintStream(outFileName_openie_r1)
-    val outOpenieR2Stream = new PrintStream(outFileName_openie_r2)    
+    val files = this.files(args)
+    println("files to split: " + files.size)
     
     val outStatsStream = new PrintStream(outStatsFileName)
     
     // ---------------------------------------------------------------------------
-    // Check the lines for provenance offset spans which are > 150 chars
+    // Check the lines for provenance offset spans which are > maxProvLength chars,
+    // one buffered pass over each file, the files are processed in parallel
     // ---------------------------------------------------------------------------
     
-    //---------------------
-    // Combine - R1
-    //---------------------
-    var lineCountCombine_r1 = 0
-    var tooLongCombine_r1 = 0
-    var maxProvLengthCombine_r1 = 0
-    Source.fromFile(inFileName_combine_r1).getLines().foreach(line => {
-      try{
-        lineCountCombine_r1 += 1
-        val tokens = line.trim.split("\t")
-        tokens.size match {
-          case s if s == 8 => {               
-            
-            val docid = tokens(3).split(":")(0)
-            val start = tokens(3).split(":")(1).split("-")(0).toInt
-            val end = tokens(3).split(":")(1).split("-")(1).toInt
-            val provLength = end-start+1
-            //println(lineCountCombine_r1 + " " + provLength)
-            if(provLength > 150){ 
-             tooLongCombine_r1 += 1 
-             if(provLength > maxProvLengthCombine_r1) maxProvLengthCombine_r1 = provLength                                  
-
-             val splitProv = splitProvenance(docid,start,end)
-               outCombineR1Stream.println(tokens(0)+ "\t" + tokens(1) + "\t" + tokens(2) + "\t" + splitProv + "\t" + tokens(4) + "\t" + tokens(5) + 
-                 "\t" + tokens(6) + "\t" + tokens(7))
-            }
-            else{
-              outCombineR1Stream.println(line)
-            }
-          }
-          case _ => println("Error: found " + tokens.size + " tokens")  
-        }
-      }catch{
-        case e: Exception =>
-      }  
-    })   
-
-    //---------------------
-    // Combine - R2
-    //---------------------
-    var lineCountCombine_r2 = 0
-    var tooLongCombine_r2 = 0
-    var maxProvLengthCombine_r2 = 0
-    Source.fromFile(inFileName_combine_r2).getLines().foreach(line => {
-      try{
-        lineCountCombine_r2 += 1
-        val tokens = line.trim.split("\t")
-        tokens.size match {
-          case s if s == 8 => {               
-            
-            val docid = tokens(3).split(":")(0)
-            val start = tokens(3).split(":")(1).split("-")(0).toInt
-            val end = tokens(3).split(":")(1).split("-")(1).toInt
-            val provLength = end-start+1
-            //println(lineCountCombine_r2 + " " + provLength)
-            if(provLength > 150){ 
-              tooLongCombine_r2 += 1 
-              if(provLength > maxProvLengthCombine_r2) maxProvLengthCombine_r2 = provLength                                  
-              val splitProv = splitProvenance(docid,start,end)
-                outCombineR2Stream.println(tokens(0)+ "\t" + tokens(1) + "\t" + tokens(2) + "\t" + splitProv + "\t" + tokens(4) + "\t" + tokens(5) + 
-                  "\t" + tokens(6) + "\t" + tokens(7))
-            }
-            else{
-              outCombineR2Stream.println(line)
-            }
-          }
-          case _ => println("Error: found " + tokens.size + " tokens")  
-        }
-      }catch{
-        case e: Exception =>
-      }  
-    })   
-    
-    //---------------------
-    // Multir - R1
-    //---------------------
-    var lineCountMultir_r1 = 0
-    var tooLongMultir_r1 = 0
-    var maxProvLengthMultir_r1 = 0
-    Source.fromFile(inFileName_multir_r1).getLines().foreach(line => {
-      try{
-        lineCountMultir_r1 += 1
-        val tokens = line.trim.split("\t")
-        tokens.size match {
-          case s if s == 8 => {               
-            
-            val docid = tokens(3).split(":")(0)
-            val start = tokens(3).split(":")(1).split("-")(0).toInt
-            val end = tokens(3).split(":")(1).split("-")(1).toInt
-            val provLength = end-start+1
-            //println(lineCountMultir_r1 + " " + provLength)
-            if(provLength > 150){ 
-              tooLongMultir_r1 += 1 
-              if(provLength > maxProvLengthMultir_r1) maxProvLengthMultir_r1 = provLength
-              val splitProv = splitProvenance(docid,start,end)
-                outMultirR1Stream.println(tokens(0)+ "\t" + tokens(1) + "\t" + tokens(2) + "\t" + splitProv + "\t" + tokens(4) + "\t" + tokens(5) + 
-                  "\t" + tokens(6) + "\t" + tokens(7))
-            }
-            else{
-              outMultirR1Stream.println(line)
-            }
-          }
-          case _ => println("Error: found " + tokens.size + " tokens")  
-        }
-      }catch{
-        case e: Exception =>
-      }  
-    })   
-
-    //---------------------
-    // Multir - R2
-    //---------------------
-    var lineCountMultir_r2 = 0
-    var tooLongMultir_r2 = 0
-    var maxProvLengthMultir_r2 = 0
-    Source.fromFile(inFileName_multir_r2).getLines().foreach(line => {
-      try{
-        lineCountMultir_r2 += 1
-        val tokens = line.trim.split("\t")
-        tokens.size match {
-          case s if s == 8 => {               
-            
-            val docid = tokens(3).split(":")(0)
-            val start = tokens(3).split(":")(1).split("-")(0).toInt
-            val end = tokens(3).split(":")(1).split("-")(1).toInt
-            val provLength = end-start+1
-            //println(lineCountMultir_r2 + " " + provLength)
-            if(provLength > 150){ 
-              tooLongMultir_r2 += 1 
-              if(provLength > maxProvLengthMultir_r2) maxProvLengthMultir_r2 = provLength                                  
-              val splitProv = splitProvenance(docid,start,end)
-                outMultirR2Stream.println(tokens(0)+ "\t" + tokens(1) + "\t" + tokens(2) + "\t" + splitProv + "\t" + tokens(4) + "\t" + tokens(5) + 
-                  "\t" + tokens(6) + "\t" + tokens(7))
-            }
-            else{
-              outMultirR2Stream.println(line)
-            }
-          }
-          case _ => println("Error: found " + tokens.size + " tokens")  
-        }
-      }catch{
-        case e: Exception =>
-      }  
-    })   
-    
-    //---------------------
-    // Implie - R1
-    //---------------------
-    var lineCountImplie_r1 = 0
-    var tooLongImplie_r1 = 0
-    var maxProvLengthImplie_r1 = 0
-    Source.fromFile(inFileName_implie_r1).getLines().foreach(line => {
-      try{
-        lineCountImplie_r1 += 1
-        val tokens = line.trim.split("\t")
-        tokens.size match {
-          case s if s == 8 => {               
-            
-            val docid = tokens(3).split(":")(0)
-            val start = tokens(3).split(":")(1).split("-")(0).toInt
-            val end = tokens(3).split(":")(1).split("-")(1).toInt
-            val provLength = end-start+1
-            //println(lineCountImplie_r1 + " " + provLength)
-            if(provLength > 150){ 
-              tooLongImplie_r1 += 1 
-              if(provLength > maxProvLengthImplie_r1) maxProvLengthImplie_r1 = provLength                                  
-              val splitProv = splitProvenance(docid,start,end)
-                outImplieR1Stream.println(tokens(0)+ "\t" + tokens(1) + "\t" + tokens(2) + "\t" + splitProv + "\t" + tokens(4) + "\t" + tokens(5) + 
-                  "\t" + tokens(6) + "\t" + tokens(7))
-            }
-            else{
-              outImplieR1Stream.println(line)
-            }
-          }
-          case _ => println("Error: found " + tokens.size + " tokens")  
-        }
-      }catch{
-        case e: Exception =>
-      }  
-    })   
-
-    //---------------------
-    // Implie - R2
-    //---------------------
-    var lineCountImplie_r2 = 0
-    var tooLongImplie_r2 = 0
-    var maxProvLengthImplie_r2 = 0
-    Source.fromFile(inFileName_implie_r2).getLines().foreach(line => {
-      try{
-        lineCountImplie_r2 += 1
-        val tokens = line.trim.split("\t")
-        tokens.size match {
-          case s if s == 8 => {               
-            
-            val docid = tokens(3).split(":")(0)
-            val start = tokens(3).split(":")(1).split("-")(0).toInt
-            val end = tokens(3).split(":")(1).split("-")(1).toInt
-            val provLength = end-start+1
-            //println(lineCountImplie_r2 + " " + provLength)
-            if(provLength > 150){ 
-              tooLongImplie_r2 += 1 
-              if(provLength > maxProvLengthImplie_r2) maxProvLengthImplie_r2 = provLength                                  
-              val splitProv = splitProvenance(docid,start,end)
-                outImplieR2Stream.println(tokens(0)+ "\t" + tokens(1) + "\t" + tokens(2) + "\t" + splitProv + "\t" + tokens(4) + "\t" + tokens(5) + 
-                  "\t" + tokens(6) + "\t" + tokens(7))
-            }
-            else{
-              outImplieR2Stream.println(line)
-            }
-          }
-          case _ => println("Error: found " + tokens.size + " tokens")  
-        }
-      }catch{
-        case e: Exception =>
-      }  
-    })   
+    val tasks = for((system, round, inFileName, outFileName) <- files) yield {
+      val splitStage = new KBPOutputPipeline.SplitProvenance(3, maxProvLength)
+      val stages = KBPOutputPipeline.selectStages(stageNames, List(new KBPOutputPipeline.RequireColumns(8), splitStage))
+      (system, round, splitStage, KBPOutputPipeline.PipelineTask(inFileName, Some(outFileName), stages))
+    }
     
-    //---------------------
-    // Openie - R1
-    //---------------------
-    var lineCountOpenie_r1 = 0
-    var tooLongOpenie_r1 = 0
-    var maxProvLengthOpenie_r1 = 0
-    Source.fromFile(inFileName_openie_r1).getLines().foreach(line => {
-      try{
-        lineCountOpenie_r1 += 1
-        val tokens = line.trim.split("\t")
-        tokens.size match {
-          case s if s == 8 => {               
-            
-            val docid = tokens(3).split(":")(0)
-            val start = tokens(3).split(":")(1).split("-")(0).toInt
-            val end = tokens(3).split(":")(1).split("-")(1).toInt
-            val provLength = end-start+1
-            //println(lineCountOpenie_r1 + " " + provLength)
-            if(provLength > 150){ 
-              tooLongOpenie_r1 += 1 
-              if(provLength > maxProvLengthOpenie_r1) maxProvLengthOpenie_r1 = provLength                                  
-              val splitProv = splitProvenance(docid,start,end)
-                outOpenieR1Stream.println(tokens(0)+ "\t" + tokens(1) + "\t" + tokens(2) + "\t" + splitProv + "\t" + tokens(4) + "\t" + tokens(5) + 
-                  "\t" + tokens(6) + "\t" + tokens(7))
-            }
-            else{
-              outOpenieR1Stream.println(line)
-            }
-          }
-          case _ => println("Error: found " + tokens.size + " tokens")  
-        }
-      }catch{
-        case e: Exception =>
-      }  
-    })   
-
-    //---------------------
-    // Openie - R2
-    //---------------------
-    var lineCountOpenie_r2 = 0
-    var tooLongOpenie_r2 = 0
-    var maxProvLengthOpenie_r2 = 0
-    Source.fromFile(inFileName_openie_r2).getLines().foreach(line => {
-      try{
-        lineCountOpenie_r2 += 1
-        val tokens = line.trim.split("\t")
-        tokens.size match {
-          case s if s == 8 => {               
-            
-            val docid = tokens(3).split(":")(0)
-            val start = tokens(3).split(":")(1).split("-")(0).toInt
-            val end = tokens(3).split(":")(1).split("-")(1).toInt
-            val provLength = end-start+1
-            //println(lineCountOpenie_r2 + " " + provLength)
-            if(provLength > 150){ 
-              tooLongOpenie_r2 += 1 
-              if(provLength > maxProvLengthOpenie_r2) maxProvLengthOpenie_r2 = provLength                                  
-              val splitProv = splitProvenance(docid,start,end)
-                outOpenieR2Stream.println(tokens(0)+ "\t" + tokens(1) + "\t" + tokens(2) + "\t" + splitProv + "\t" + tokens(4) + "\t" + tokens(5) + 
-                  "\t" + tokens(6) + "\t" + tokens(7))
-            }
-            else{
-              outOpenieR2Stream.println(line)
-            }
-          }
-          case _ => println("Error: found " + tokens.size + " tokens")  
-        }
-      }catch{
-        case e: Exception =>
-      }  
-    })   
+    KBPOutputPipeline.run(tasks.map(_._4))
     
     // ---------------------------------------
     // Write stats to file
     // ---------------------------------------
 
-    outStatsStream.println("combine r1 (line count, too long count, max prov length): " + lineCountCombine_r1 + " " + tooLongCombine_r1 + " " + maxProvLengthCombine_r1)
-    outStatsStream.println("combine r2 (line count, too long count, max prov length): " + lineCountCombine_r2 + " " + tooLongCombine_r2 + " " + maxProvLengthCombine_r2)
-    outStatsStream.println("combine (line count, too long count): " + (lineCountCombine_r1+lineCountCombine_r2) + " " + (tooLongCombine_r1+tooLongCombine_r2))
-    
-    outStatsStream.println("multir r1 (line count, too long count, max prov length): " + lineCountMultir_r1 + " " + tooLongMultir_r1 + " " + maxProvLengthMultir_r1)
-    outStatsStream.println("multir r2 (line count, too long count, max prov length): " + lineCountMultir_r2 + " " + tooLongMultir_r2 + " " + maxProvLengthMultir_r2)
-    outStatsStream.println("multir (line count, too long count): " + (lineCountMultir_r1+lineCountMultir_r2) + " " + (tooLongMultir_r1+tooLongMultir_r2))
-    
-    outStatsStream.println("implie r1 (line count, too long count, max prov length): " + lineCountImplie_r1 + " " + tooLongImplie_r1 + " " + maxProvLengthImplie_r1)
-    outStatsStream.println("implie r2 (line count, too long count, max prov length): " + lineCountImplie_r2 + " " + tooLongImplie_r2 + " " + maxProvLengthImplie_r2)
-    outStatsStream.println("implie (line count, too long count): " + (lineCountImplie_r1+lineCountImplie_r2) + " " + (tooLongImplie_r1+tooLongImplie_r2))
-    
-    outStatsStream.println("openie r1 (line count, too long count, max prov length): " + lineCountOpenie_r1 + " " + tooLongOpenie_r1 + " " + maxProvLengthOpenie_r1)
-    outStatsStream.println("openie r2 (line count, too long count, max prov length): " + lineCountOpenie_r2 + " " + tooLongOpenie_r2 + " " + maxProvLengthOpenie_r2)
-    outStatsStream.println("openie (line count, too long count): " + (lineCountOpenie_r1+lineCountOpenie_r2) + " " + (tooLongOpenie_r1+tooLongOpenie_r2))
+    for((system, systemTasks) <- tasks.groupBy(_._1).toList.sortBy(s => files.indexWhere(_._1 == s._1))){
+      for((_, round, splitStage, task) <- systemTasks){
+        outStatsStream.println(system + " " + round + " (line count, too long count, max prov length): " + task.lineCount.get + 
+          " " + splitStage.tooLong.get + " " + splitStage.maxProvLength.get)
+      }
+      outStatsStream.println(system + " (line count, too long count): " + systemTasks.map(_._4.lineCount.get).sum + 
+        " " + systemTasks.map(_._3.tooLong.get).sum)
+    }
     
     // ---------------------------------------
     // Close output streams
@@ -0,0 +1,143 @@
+package edu.washington.cs.knowitall.kbp2014.multir.slotfiller
+
+import java.io._
+import java.security.MessageDigest
+import java.util.concurrent.ConcurrentHashMap
+
+/*
+ * Content-addressed cache of pipeline stage outputs, for reruns after a
+ * change to one stage: -Dkbp.cache.dir=<dir> turns it on.
+ *
+ * An output is stored under its stage and a key hashing the stage's inputs
+ * with the stage's version, so a rerun recomputes only the stages whose
+ * inputs or version changed:
+ *   raw          the corpus and docid
+ *   annotation   the raw document's content, the query names (for two-phase
+ *                and windowed documents only, the others don't use them), the
+ *                annotation mode and the annotation classes' bytecode
+ *   extraction   the annotation key, the model files' content, the query's
+ *                entity type and the extractor classes' bytecode (see
+ *                MultiModelMultirExtractor); this covers argument
+ *                identification, which is only run for models which miss
+ * Filtering and answer selection are not cached: they are cheap, and their
+ * candidates are mutated in place, so changing the scoreThreshold
+ * reruns just them on the cached extractions.
+ *
+ * Versions from bytecode and file contents change by themselves when the
+ * code or a model does. Entries are Java serialized, one file each, written
+ * to a temporary file and renamed, so concurrent runs can share a cache.
+ */
+object StageCache {
+
+  lazy val dir: Option[File] = Option(System.getProperty("kbp.cache.dir")).map(new File(_))
+
+  def enabled: Boolean = dir.isDefined
+
+  private val versions = new ConcurrentHashMap[String, String]()
+
+  private def hex(bytes: Array[Byte]): String = bytes.map(b => "%02x".format(b & 0xff)).mkString
+
+  @scala.annotation.varargs
+  def sha1(parts: String*): String = {
+    val digest = MessageDigest.getInstance("SHA-1")
+    for(part <- parts){
+      digest.update(part.getBytes("UTF-8"))
+      digest.update(0.toByte)
+    }
+    hex(digest.digest())
+  }
+
+  private def sha1(in: InputStream): String = {
+    val digest = MessageDigest.getInstance("SHA-1")
+    val buffer = new Array[Byte](1 << 16)
+    try{
+      var n = in.read(buffer)
+      while(n >= 0){
+        digest.update(buffer, 0, n)
+        n = in.read(buffer)
+      }
+    }
+    finally{ in.close() }
+    hex(digest.digest())
+  }
+
+  /*
+   * The hash of the files' contents, computed once per run.
+   */
+  @scala.annotation.varargs
+  def fileVersion(paths: String*): String = {
+    val name = paths.mkString(",")
+    val cached = versions.get(name)
+    if(cached != null) cached
+    else{
+      val version = sha1(paths.map(p => if(new File(p).exists) sha1(new FileInputStream(p)) else "missing"): _*)
+      versions.put(name, version)
+      version
+    }
+  }
+
+  /*
+   * The hash of the classes' bytecode, computed once per run.
+   */
+  @scala.annotation.varargs
+  def classVersion(classes: Class[_]*): String = {
+    val name = classes.map(_.getName).mkString(",")
+    val cached = versions.get(name)
+    if(cached != null) cached
+    else{
+      val version = sha1(classes.map(c => {
+        val in = c.getResourceAsStream("/" + c.getName.replace('.', '/') + ".class")
+        if(in == null) c.getName else sha1(in)
+      }): _*)
+      versions.put(name, version)
+      version
+    }
+  }
+
+  private def file(stage: String, key: String): File = new File(new File(new File(dir.get, stage), key.substring(0, 2)), key)
+
+  /*
+   * The cached output, or null on a miss or when the cache is off.
+   */
+  def getOrNull(stage: String, key: String): AnyRef = {
+    if(!enabled || key == null) null
+    else{
+      val f = file(stage, key)
+      val value = if(f.exists) Serializer.deserialize(f.getPath) else null
+      Metrics.increment("cache-" + (if(value == null) "misses-" else "hits-") + stage)
+      value
+    }
+  }
+
+  def put(stage: String, key: String, value: java.io.Serializable){
+    if(enabled && key != null){
+      val f = file(stage, key)
+      f.getParentFile.mkdirs()
+      val tmp = File.createTempFile(key, ".tmp", f.getParentFile)
+      try{
+        val out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16))
+        try{ out.writeObject(value) }
+        finally{ out.close() }
+        if(!tmp.renameTo(f)) tmp.delete()
+      }catch{
+        case e: IOException => {
+          e.printStackTrace()
+          println("EXCEPTION: StageCache " + stage + " " + key)
+          tmp.delete()
+        }
+      }
+    }
+  }
+
+  def memoize[T <: java.io.Serializable](stage: String, key: String)(compute: => T): T = {
+    getOrNull(stage, key) match {
+      case null => {
+        val value = compute
+        if(value != null) put(stage, key, value)
+        value
+      }
+      case value => value.asInstanceOf[T]
+    }
+  }
+
+}
@@ -0,0 +1,310 @@
+package edu.washington.cs.knowitall.kbp2014.multir.slotfiller
+
+import java.io._
+import java.nio.file.{FileSystems, Files, Path, StandardWatchEventKinds}
+import java.util.concurrent.TimeUnit
+
+import scala.collection.JavaConverters._
+import scala.collection.mutable
+
+/*
+ * Streaming slot filling over a watched directory of documents, for standing
+ * queries, in place of batch reruns over a fixed index.
+ *
+ * Each new file in the directory is a document, its file name the docid
+ * (writers should move a finished file in, names starting with "." or ending
+ * in ".tmp" are skipped). A document is routed to the query groups one of
+ * whose aliases it contains, annotated once with those groups' names, and
+ * extracted and filtered per group as in the batch run. Its candidates are
+ * then added to each of the groups' queries' answers: as the relation
+ * substitution is per candidate, and SelectBestAnswers keeps the best
+ * candidate (a single valued slot) or the best candidate per fill (a list
+ * slot), the best answers of the old best answers with the new candidates
+ * are the best answers of all the documents so far.
+ *
+ * State, in the state directory, rewritten (to a temporary file, then
+ * renamed) after each batch of documents:
+ *   state.bin    the processed docids and each query's best answers, as a CandidateBuffer
+ *   deltas/      one file per batch which changed answers, numbered, in
+ *                OutputFormatter's format: the new answers of each query and
+ *                slot which changed, replacing that query's answers for the slot
+ * A restart picks up the state, and the documents which arrived meanwhile;
+ * when the watch loses events, the directory is rescanned the same way.
+ *
+ * The stream-latency stage (Metrics) is the time from a document's arrival to
+ * its deltas being written.
+ *
+ * Args: queryFile roundID watchDir stateDir [runID] [corpus]; with a corpus,
+ * the single name PER queries are resolved against it, as in the batch run.
+ */
+object StreamingSlotFiller {
+
+  val MAGIC = 0x4B425053
+  val VERSION = 1
+
+  val pollMillis = 500L
+
+  lazy val multirExtractor = new MultiModelMultirExtractorVersionColdStart()
+
+  // ----------------------------------------------------------------------------
+  // State
+  // ----------------------------------------------------------------------------
+
+  class State(val dir: File){
+    val processed = mutable.HashSet[String]()
+    // best answers by query id, by slot
+    val answers = mutable.HashMap[String, Map[Slot, Seq[Candidate]]]()
+    var numDeltas = 0
+
+    def file = new File(dir, "state.bin")
+    def deltaDir = new File(dir, "deltas")
+
+    def load(){
+      if(file.exists){
+        val in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))
+        try{
+          require(in.readInt() == MAGIC, "Not a streaming state file: " + file)
+          require(in.readInt() == VERSION, "Unknown streaming state version: " + file)
+          numDeltas = in.readInt()
+          for(i <- 0 until in.readInt()) processed += in.readUTF()
+          for(i <- 0 until in.readInt()){
+            val queryId = in.readUTF()
+            val buffer = CandidateBuffer.read(in)
+            answers(queryId) = buffer.rowsByRelation.map({ case (rel, rows) => (Slot.fromName(rel), buffer.candidates(rows)) })
+          }
+        }
+        finally{ in.close() }
+        println("StreamingSlotFiller: state: " + processed.size + " docs, " + answers.size + " queries, " + numDeltas + " deltas")
+      }
+    }
+
+    def save(){
+      dir.mkdirs()
+      val tmp = File.createTempFile("state", ".tmp", dir)
+      val out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16))
+      try{
+        out.writeInt(MAGIC)
+        out.writeInt(VERSION)
+        out.writeInt(numDeltas)
+        out.writeInt(processed.size)
+        processed.foreach(out.writeUTF(_))
+        out.writeInt(answers.size)
+        for((queryId, slotAnswers) <- answers){
+          out.writeUTF(queryId)
+          val buffer = new CandidateBuffer
+          slotAnswers.values.foreach(buffer ++= _)
+          buffer.writeTo(out)
+        }
+      }
+      finally{ out.close() }
+      if(!tmp.renameTo(file)){
+        file.delete()
+        tmp.renameTo(file)
+      }
+    }
+
+    /*
+     * Writes the changed answers as the next delta file.
+     */
+    def writeDelta(changed: Seq[(KBPQuery, Map[Slot, Seq[Candidate]])], runID: String){
+      deltaDir.mkdirs()
+      numDeltas += 1
+      val tmp = File.createTempFile("delta", ".tmp", deltaDir)
+      val out = new PrintStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16))
+      try{
+        val outFmt = OutputFormatter.formattedAnswersOnly(out, runID)
+        for((query, slotAnswers) <- changed) outFmt.printAnswers(slotAnswers, query)
+      }
+      finally{ out.close() }
+      tmp.renameTo(new File(deltaDir, "%08d.txt".format(numDeltas)))
+    }
+  }
+
+  // ----------------------------------------------------------------------------
+  // Incremental answers
+  // ----------------------------------------------------------------------------
+
+  // what a delta compares: the answers' fills, provenance and scores
+  def signature(answers: Seq[Candidate]): Seq[(String, String, String, Int, Double)] =
+    answers.map(c => (c.extr.getArg1().getArgName(), c.extr.getArg2().getArgName(), c.extr.getDocName(),
+      c.extr.getArg2().getStartOffset(), c.extr.getScore()))
+
+  /*
+   * Adds the query's (substituted) new candidates to its best answers;
+   * returns the slots whose answers changed.
+   */
+  def update(state: State, query: KBPQuery, candidates: Seq[Candidate]): Map[Slot, Seq[Candidate]] = {
+    val old = state.answers.getOrElse(query.id, Map[Slot, Seq[Candidate]]())
+    val changed = for(slot <- query.slotsToFill.toSeq; newCandidates = candidates.filter(_.extr.getRel() == slot.name);
+        if newCandidates.nonEmpty) yield {
+      val oldAnswers = old.getOrElse(slot, Seq())
+      // reduceToMaxResults changes the duplicates it drops, so it gets copies of the old answers
+      val copies = { val buffer = new CandidateBuffer; buffer ++= oldAnswers; buffer.toCandidates }
+      val answers = SelectBestAnswers.reduceToMaxResults(slot, copies ++ newCandidates)
+      (slot, answers, signature(answers) != signature(oldAnswers))
+    }
+    state.answers(query.id) = old ++ changed.map(c => (c._1, c._2))
+    changed.filter(_._3).map(c => (c._1, c._2)).toMap
+  }
+
+  // ----------------------------------------------------------------------------
+  // Documents
+  // ----------------------------------------------------------------------------
+
+  def isDocument(path: Path): Boolean = {
+    val name = path.getFileName.toString
+    !name.startsWith(".") && !name.endsWith(".tmp") && Files.isRegularFile(path)
+  }
+
+  /*
+   * All the files in the directory, as arrived at nanos; the batch skips
+   * those already processed.
+   */
+  def scan(watchDir: Path, nanos: Long): List[(Path, Long)] = {
+    val stream = Files.newDirectoryStream(watchDir)
+    try{ stream.asScala.toList.map(p => (p, nanos)) }
+    finally{ stream.close() }
+  }
+
+  def matchingGroups(rawDoc: String, groups: Seq[QueryPlanner.QueryGroup]): Seq[QueryPlanner.QueryGroup] =
+    groups.filter(_.firstQuery.aliases.exists(alias => alias.nonEmpty && rawDoc.contains(alias)))
+
+  /*
+   * Processes a batch of arrived documents (path, arrival nanos): returns the
+   * changed answers, in the order the queries first changed.
+   */
+  def processBatch(state: State, batch: Seq[(Path, Long)], groups: Seq[QueryPlanner.QueryGroup]): Seq[(KBPQuery, Map[Slot, Seq[Candidate]])] = {
+    val changed = mutable.LinkedHashMap[KBPQuery, Map[Slot, Seq[Candidate]]]()
+    for((path, arrivalNanos) <- batch){
+      val docid = path.getFileName.toString
+      try{
+        val rawDoc = new String(Files.readAllBytes(path), "UTF-8")
+        val matched = matchingGroups(rawDoc, groups)
+        println("StreamingSlotFiller: " + docid + " query groups: " + matched.size)
+        Metrics.increment("stream-documents")
+        if(matched.nonEmpty){
+          Metrics.setDocument(docid)
+          val document = RunKBP2015MultirExtractor.stanfordProcessRawDocument(docid, rawDoc, matched.flatMap(_.firstQuery.aliases).toSet)
+          for(ann <- document; group <- matched){
+            Metrics.setGroup(group.name)
+            val extractions = multirExtractor.extract(ann, group.firstQuery).asScala
+            val relevantCandidates = Metrics.time(Metrics.Filtering){
+              FilterExtractionResults.filterResults(FilterExtractionResults.wrapWithCandidate(extractions), group.firstQuery, document)
+            }
+            if(relevantCandidates.nonEmpty){
+              val buffer = new CandidateBuffer
+              buffer ++= relevantCandidates
+              for(query <- group.relevantSlotQueries){
+                // fresh candidates per query, since the substitution changes them
+                val kbpCandidates = FilterExtractionResults.substituteKBPRelationsColdStart(buffer.toCandidates, query)
+                val slotAnswers = Metrics.time(Metrics.AnswerSelection){ update(state, query, kbpCandidates) }
+                if(slotAnswers.nonEmpty) changed(query) = changed.getOrElse(query, Map()) ++ slotAnswers
+              }
+            }
+          }
+          Metrics.clearDocument()
+        }
+      }catch{
+        case e: Exception => {
+          e.printStackTrace()
+          println("EXCEPTION: StreamingSlotFiller " + docid)
+        }
+      }
+      state.processed += docid
+    }
+    changed.toList
+  }
+
+  def main(Args: Array[String]){
+
+    RunLog.install()
+
+    val queryFile = Args(0)
+    val roundID = Args(1)
+    val watchDir = new File(Args(2)).toPath
+    val state = new State(new File(Args(3)))
+    val runID = if(Args.length > 4) Args(4) else "UWashington4"
+    val corpus = if(Args.length > 5) Some(Args(5)) else None
+
+    Metrics.startFromSystemProperties()
+
+    // ---------------------------------------------------------------------
+    // Standing queries
+    // ---------------------------------------------------------------------
+    val queries = KBPQuery.getAliases(KBPQuery.parseKBPQueries(queryFile, roundID))
+    Warmup.warmUp(Warmup.coldStartResources(Some(multirExtractor)))
+
+    for(c <- corpus){
+      try{
+        SolrHelper.setConfigurations(c, false)
+        val queryNames = KBPQuery.parseKBPQueriesToGetNames(queryFile)
+        SingleNameResolver.resolveAll(queries, queryNames, queryNames,
+          new CorefPipelinePool(RunKBP2015MultirExtractor.annotatorHelper, 1), RunKBP2015MultirExtractor.fetchRawDoc)
+      }catch{
+        case e: Exception => {
+          e.printStackTrace()
+          println("EXCEPTION: SingleNameResolver")
+        }
+      }
+    }
+
+    val queryPlan = QueryPlanner.plan(queries)
+    val groups = queryPlan.groups.filter(_.process)
+    println("StreamingSlotFiller: " + queryPlan.summary)
+
+    state.load()
+
+    // ---------------------------------------------------------------------
+    // Watch: the documents already there which are new, then each arrival
+    // ---------------------------------------------------------------------
+    val watcher = FileSystems.getDefault().newWatchService()
+    watchDir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE)
+    val startNanos = System.nanoTime()
+    var arrived = scan(watchDir, startNanos)
+    println("StreamingSlotFiller: watching " + watchDir)
+
+    while(true){
+      val batch = arrived.filter({ case (path, nanos) =>
+        isDocument(path) && !state.processed.contains(path.getFileName.toString) }).groupBy(_._1).map(_._2.head).toList.sortBy(_._1.toString)
+      arrived = Nil
+      if(batch.nonEmpty){
+        val startTime = System.currentTimeMillis()
+        val changed = processBatch(state, batch, groups)
+        if(changed.nonEmpty) state.writeDelta(changed, runID)
+        state.save()
+        batch.foreach({ case (path, nanos) => Metrics.stopTimer("stream-latency", nanos) })
+        println("StreamingSlotFiller: batch of " + batch.size + " docs, changed queries: " + changed.size +
+          " millis: " + (System.currentTimeMillis() - startTime))
+        RunLog.flush()
+      }
+
+      val key = watcher.poll(pollMillis, TimeUnit.MILLISECONDS)
+      if(key != null){
+        val now = System.nanoTime()
+        val events = key.pollEvents().asScala.toList
+        arrived = events.flatMap(event => event.context() match {
+          case name: Path => Some((watchDir.resolve(name), now))
+          case _ => None
+        })
+        // events were lost (during a long batch), or the key is no longer
+        // valid: rescan the directory, as at startup
+        val overflow = events.exists(_.kind == StandardWatchEventKinds.OVERFLOW)
+        val valid = key.reset()
+        if(!valid || overflow){
+          println("StreamingSlotFiller: " + (if(overflow) "events lost" else "watch key invalid") + ", rescanning " + watchDir)
+          Metrics.increment("stream-rescans")
+          try{
+            if(!valid) watchDir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE)
+            arrived = scan(watchDir, now)
+          }catch{
+            case e: IOException => {
+              e.printStackTrace()
+              println("EXCEPTION: StreamingSlotFiller rescanning " + watchDir)
+            }
+          }
+        }
+      }
+    }
+  }
+
+}
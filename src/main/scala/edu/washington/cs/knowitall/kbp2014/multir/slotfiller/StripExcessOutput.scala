@@ -26,29 +26,13 @@ object StripExcessOutput {
       
   def main(args: Array[String]) {
   
-    val outStream = new PrintStream(outFileName)
-
     // --------------------------------------------------------------
-    // Read the input file - if a line has 7 or more columns, 
-    // print out the first seven cols
-    // Ignore all other lines (if there are any w/o 7+ cols)
+    // Read the input file - if a line has 8 or more columns, 
+    // print out the first eight cols
+    // Ignore all other lines (if there are any w/o 8+ cols)
     // --------------------------------------------------------------
-    Source.fromFile(inFileName).getLines().foreach(line => {
-      try{
-        val tokens = line.trim.split("\t")
-        tokens.size match {
-          case s if s >= 8 => outStream.println(tokens(0) + "\t" + tokens(1) + "\t" + 
-              tokens(2) + "\t" + tokens(3) + "\t" + tokens(4) + "\t" + tokens(5) + 
-              "\t" + tokens(6) + "\t" + tokens(7))
-          case _ =>   
-        }
-      }catch{
-        case e: Exception =>
-      }  
-    })   
-  
-      
-    outStream.close()
+    KBPOutputPipeline.run(List(KBPOutputPipeline.PipelineTask(inFileName, Some(outFileName), 
+      List(new KBPOutputPipeline.StripColumns(8)))))
    
     println("closed output streams")
     
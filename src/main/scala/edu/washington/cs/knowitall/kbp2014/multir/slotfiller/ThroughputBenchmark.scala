@@ -0,0 +1,274 @@
+package edu.washington.cs.knowitall.kbp2014.multir.slotfiller
+
+import java.io._
+import java.lang.management.{ManagementFactory, MemoryType}
+import java.util.Random
+import java.util.concurrent.Executors
+
+import scala.collection.JavaConverters._
+import scala.collection.mutable
+
+/*
+ * End-to-end throughput benchmark, offline: a synthetic corpus in a
+ * LocalDocStore and a stand-in Multir model, in place of the Solr index and
+ * the /projects/WebWare6 model, run through RunKBP2015MultirExtractor.
+ *
+ *   generate dir [numDocs] [sentencesPerDoc] [aliasDensity] [numQueries] [seed]
+ *     writes dir/docs (KBP style newswire documents), dir/queries.xml (PER
+ *     queries with full names, one slot each) and dir/model, trained on
+ *     synthetic instances of the corpus' relation sentences with
+ *     TrainingPreprocessor and ParallelTrainer. aliasDensity is the fraction
+ *     of sentences which mention a query entity, the others are filler.
+ *   run dir [maxCores] [heap]
+ *     measures the driver on 1, 2, 4, ... and maxCores cores, each in its own
+ *     JVM, bound to the cores with taskset (or -XX:ActiveProcessorCount
+ *     without it), and prints the reports as a table
+ *   measure dir runDir
+ *     one measurement in this JVM; writes runDir/report.tsv
+ *
+ * A report has the setup time (the driver's time before its first query
+ * group: warm-up, single name resolution and the relevant document scan),
+ * the documents annotated per second from the first query group to the last,
+ * the p50 and p99 of the documents' stage time (Metrics, per document and
+ * query group), the peak heap, and each stage's total time.
+ *
+ * The stand-in model's features imitate the lexical features of the feature
+ * generator, so it costs what a model does to score, but its extractions
+ * depend on how many of the generated features it knows; throughput, not
+ * answers, is what it is for.
+ */
+object ThroughputBenchmark {
+
+  val firstNames = Seq("James", "Maria", "Robert", "Linda", "Michael", "Susan", "David", "Karen", "Thomas", "Nancy",
+    "Daniel", "Helen", "Paul", "Sandra", "Mark", "Donna", "George", "Carol", "Steven", "Ruth")
+  val lastNames = Seq("Whitaker", "Okafor", "Lindqvist", "Moreau", "Castillo", "Hargrove", "Nakamura", "Petrov", "Adeyemi", "Brennan",
+    "Kowalski", "Ferreira", "Holloway", "Suzuki", "Delgado", "Fitzgerald", "Novak", "Ramirez", "Sorensen", "Thornton")
+  val cities = Seq("Seattle", "Chicago", "Boston", "Denver", "Atlanta", "Paris", "London", "Berlin", "Madrid", "Toronto")
+
+  // (Freebase relation, KBP slot, sentence) for the PERLOC model
+  val relationTemplates = Seq(
+    ("/people/person/place_of_birth", "per:city_of_birth", "%s was born in %s ."),
+    ("/people/person/places_lived", "per:cities_of_residence", "%s has lived in %s for many years ."),
+    ("/people/deceased_person/place_of_death", "per:city_of_death", "%s died in %s on Sunday ."))
+  val negativeTemplates = Seq("%s flew to %s for a meeting .", "%s spoke about %s at the conference .")
+
+  val fillers = Seq("Officials said the new plan would take effect next year .",
+    "The committee met on Tuesday to discuss the budget .",
+    "Shares rose sharply in early trading after the announcement .",
+    "The report was released late on Friday afternoon .",
+    "Local residents gathered outside the building to protest .",
+    "Analysts expect the decision to be reviewed by the court .",
+    "The company declined to comment on the matter .",
+    "Heavy rain caused delays across the region on Monday .")
+
+  case class Entity(name: String, cities: Map[String, String])
+
+  case class Mention(docid: String, beg: Int, end: Int)
+
+  // ----------------------------------------------------------------------------
+  // Corpus, queries and model
+  // ----------------------------------------------------------------------------
+
+  def entities(numQueries: Int, random: Random): IndexedSeq[Entity] = {
+    require(numQueries <= firstNames.size * lastNames.size, "At most " + firstNames.size * lastNames.size + " queries")
+    (0 until numQueries).map(i => Entity(firstNames(i % firstNames.size) + " " + lastNames(i / firstNames.size),
+      relationTemplates.map(t => (t._1, cities(random.nextInt(cities.size)))).toMap))
+  }
+
+  /*
+   * Writes the documents; returns each entity's first mention.
+   */
+  def writeDocuments(docsDir: File, numDocs: Int, sentencesPerDoc: Int, aliasDensity: Double,
+      queryEntities: IndexedSeq[Entity], random: Random): Map[String, Mention] = {
+    docsDir.mkdirs()
+    val firstMentions = mutable.HashMap[String, Mention]()
+    for(d <- 0 until numDocs){
+      val docid = "SYN_ENG_%08d".format(d)
+      val doc = new StringBuilder
+      doc.append("<DOC id=\"" + docid + "\" type=\"story\">\n<HEADLINE>\n")
+      doc.append(fillers(random.nextInt(fillers.size))).append("\n</HEADLINE>\n<TEXT>\n<P>\n")
+      for(s <- 0 until sentencesPerDoc){
+        if(random.nextDouble() < aliasDensity){
+          val entity = queryEntities(random.nextInt(queryEntities.size))
+          val (rel, slot, template) = relationTemplates(random.nextInt(relationTemplates.size))
+          val beg = doc.length + template.indexOf("%s")
+          if(!firstMentions.contains(entity.name)) firstMentions(entity.name) = Mention(docid, beg, beg + entity.name.length - 1)
+          doc.append(template.format(entity.name, entity.cities(rel)))
+        }
+        else doc.append(fillers(random.nextInt(fillers.size)))
+        doc.append(if(s % 5 == 4) "\n</P>\n<P>\n" else " ")
+      }
+      doc.append("\n</P>\n</TEXT>\n</DOC>\n")
+      val out = new OutputStreamWriter(new FileOutputStream(new File(docsDir, docid)), "UTF-8")
+      try{ out.write(doc.toString) } finally{ out.close() }
+    }
+    firstMentions.toMap
+  }
+
+  def writeQueries(file: File, queryEntities: IndexedSeq[Entity], firstMentions: Map[String, Mention]): Int = {
+    val out = new PrintWriter(file, "UTF-8")
+    var numQueries = 0
+    try{
+      out.println("<?xml version='1.0' encoding='UTF-8'?>")
+      out.println("<kbpslotfill>")
+      for((entity, i) <- queryEntities.zipWithIndex; mention <- firstMentions.get(entity.name)){
+        numQueries += 1
+        out.println("  <query id=\"SYN_" + "%04d".format(i) + "\">")
+        out.println("    <name>" + entity.name + "</name>")
+        out.println("    <docid>" + mention.docid + "</docid>")
+        out.println("    <beg>" + mention.beg + "</beg>")
+        out.println("    <end>" + mention.end + "</end>")
+        out.println("    <enttype>PER</enttype>")
+        out.println("    <slot0>" + relationTemplates(i % relationTemplates.size)._2 + "</slot0>")
+        out.println("  </query>")
+      }
+      out.println("</kbpslotfill>")
+    }
+    finally{ out.close() }
+    numQueries
+  }
+
+  // in the style of the feature generator's lexical features: the words between the arguments
+  def features(template: String): Seq[String] = {
+    val middle = template.substring(template.indexOf("%s") + 2, template.lastIndexOf("%s")).trim
+    Seq("inverse_false|PERSON|" + middle + "|LOCATION", "inverse_false|B_-1 PERSON|" + middle + "|LOCATION B_1",
+      "str:" + middle)
+  }
+
+  /*
+   * A training feature file of instances for each entity and template, in
+   * TrainingPreprocessor's format, then the model trained from it.
+   */
+  def trainModel(modelDir: File, trainingEntities: IndexedSeq[Entity]){
+    modelDir.mkdirs()
+    val featureFile = new File(modelDir, "features.tsv")
+    val out = new PrintWriter(featureFile, "UTF-8")
+    try{
+      for(entity <- trainingEntities){
+        val instances = relationTemplates.map(t => (t._1, t._3, entity.cities(t._1))) ++
+          negativeTemplates.map(t => ("neg", t, entity.cities(relationTemplates.head._1)))
+        for((rel, template, city) <- instances){
+          val sentence = template.format(entity.name, city)
+          val columns = Seq(entity.name, "0", entity.name.length.toString, city, "0", city.length.toString,
+            "0", rel, "0", "0", "0", sentence) ++ features(template)
+          out.println(columns.mkString("\t"))
+        }
+      }
+    }
+    finally{ out.close() }
+    TrainingPreprocessor.run(featureFile.getPath, modelDir.getPath)
+    val numThreads = Runtime.getRuntime().availableProcessors()
+    val executor = Executors.newFixedThreadPool(numThreads)
+    try{ ParallelTrainer.trainModelDir(modelDir.getPath, numThreads, executor, false) }
+    finally{ executor.shutdown() }
+  }
+
+  def generate(dir: File, numDocs: Int, sentencesPerDoc: Int, aliasDensity: Double, numQueries: Int, seed: Long){
+    val random = new Random(seed)
+    val queryEntities = entities(numQueries, random)
+    val firstMentions = writeDocuments(new File(dir, "docs"), numDocs, sentencesPerDoc, aliasDensity, queryEntities, random)
+    val written = writeQueries(new File(dir, "queries.xml"), queryEntities, firstMentions)
+    trainModel(new File(dir, "model"), entities(100, new Random(seed + 1)))
+    println("ThroughputBenchmark: " + numDocs + " docs of " + sentencesPerDoc + " sentences, alias density " + aliasDensity +
+      ", " + written + " queries (of " + numQueries + ", the others are not mentioned), in " + dir)
+  }
+
+  // ----------------------------------------------------------------------------
+  // Measurement
+  // ----------------------------------------------------------------------------
+
+  val stages = Seq(Metrics.DocFetch, Metrics.Annotation, Metrics.ArgumentIdentification, Metrics.InstanceGeneration,
+    Metrics.FeatureGenerationAndScoring, Metrics.Filtering, Metrics.AnswerSelection, Metrics.Output)
+
+  val reportHeader = (Seq("cores", "docs", "setupSec", "seconds", "docs/sec", "p50Ms", "p99Ms", "peakHeapMB") ++ stages.map(_ + "Ms")).mkString("\t")
+
+  def percentile(sorted: Seq[Double], p: Double): Double =
+    if(sorted.isEmpty) 0.0 else sorted(math.max(0, math.ceil(p * sorted.size).toInt - 1))
+
+  def measure(dir: File, runDir: File){
+    runDir.mkdirs()
+    if(System.getProperty("kbp.docstore.dir") == null) System.setProperty("kbp.docstore.dir", new File(dir, "docs").getPath)
+    if(System.getProperty("kbp.model.path") == null) System.setProperty("kbp.model.path", new File(dir, "model").getPath)
+    val relevantDocs = new File(runDir, "relevant-docs")
+    relevantDocs.delete()
+
+    val heapPools = ManagementFactory.getMemoryPoolMXBeans().asScala.filter(_.getType == MemoryType.HEAP)
+    heapPools.foreach(_.resetPeakUsage())
+    val startTime = System.nanoTime()
+    RunKBP2015MultirExtractor.main(Array(new File(dir, "queries.xml").getPath, "0", "local", relevantDocs.getPath,
+      new File(runDir, "answers.txt").getPath, "round1", "0", "0"))
+    val totalSeconds = (System.nanoTime() - startTime) / 1e9
+    // the query groups only, so the setup does not hide the scaling
+    val setupSeconds = Metrics.gaugeValue("setup-millis").getOrElse(0.0) / 1000
+    val seconds = Metrics.gaugeValue("query-groups-millis").map(_ / 1000).getOrElse(totalSeconds - setupSeconds)
+
+    val docs = Metrics.counter("documents-annotated").get
+    val latencies = Metrics.documentMillis.sorted
+    val peakHeap = heapPools.map(_.getPeakUsage().getUsed()).sum
+    val report = Seq(Runtime.getRuntime().availableProcessors().toString, docs.toString, "%.1f".format(setupSeconds), "%.1f".format(seconds),
+      "%.2f".format(docs / seconds), "%.1f".format(percentile(latencies, 0.5)), "%.1f".format(percentile(latencies, 0.99)),
+      (peakHeap >> 20).toString) ++ stages.map(s => "%.0f".format(Metrics.histogram(s).totalMillis))
+
+    val out = new PrintWriter(new File(runDir, "report.tsv"), "UTF-8")
+    try{
+      out.println(reportHeader)
+      out.println(report.mkString("\t"))
+    }
+    finally{ out.close() }
+    println(reportHeader)
+    println(report.mkString("\t"))
+    RunLog.flush()
+  }
+
+  /*
+   * Measures on each number of cores in its own JVM; returns the reports.
+   */
+  def run(dir: File, maxCores: Int, heap: String): Seq[String] = {
+    val java = new File(new File(System.getProperty("java.home"), "bin"), "java").getPath
+    val taskset = new File("/usr/bin/taskset")
+    val coreCounts = (Iterator.iterate(1)(_ * 2).takeWhile(_ < maxCores).toList :+ maxCores).distinct
+    for(cores <- coreCounts) yield {
+      val runDir = new File(dir, "run-" + cores)
+      runDir.mkdirs()
+      val binding = if(taskset.exists) Seq(taskset.getPath, "-c", "0-" + (cores - 1), java) else Seq(java, "-XX:ActiveProcessorCount=" + cores)
+      val command = binding ++ Seq("-Xmx" + heap, "-Dkbp.docstore.dir=" + new File(dir, "docs").getPath,
+        "-Dkbp.model.path=" + new File(dir, "model").getPath, "-cp", System.getProperty("java.class.path"),
+        getClass.getName.stripSuffix("$"), "measure", dir.getPath, runDir.getPath)
+      println("ThroughputBenchmark: " + cores + " cores, log in " + new File(runDir, "log.txt"))
+      val process = new ProcessBuilder(command.asJava).redirectErrorStream(true).redirectOutput(new File(runDir, "log.txt")).start()
+      val exitCode = process.waitFor()
+      val reportFile = new File(runDir, "report.tsv")
+      if(exitCode != 0 || !reportFile.exists) cores + "\tfailed, exit code " + exitCode
+      else{
+        val source = scala.io.Source.fromFile(reportFile, "UTF-8")
+        try{ source.getLines().drop(1).next() } finally{ source.close() }
+      }
+    }
+  }
+
+  def main(Args: Array[String]){
+    val dir = new File(Args(1))
+    Args(0) match {
+      case "generate" => generate(dir,
+        if(Args.length > 2) Args(2).toInt else 200,
+        if(Args.length > 3) Args(3).toInt else 40,
+        if(Args.length > 4) Args(4).toDouble else 0.1,
+        if(Args.length > 5) Args(5).toInt else 20,
+        if(Args.length > 6) Args(6).toLong else 1L)
+      case "run" => {
+        val maxCores = if(Args.length > 2) Args(2).toInt else Runtime.getRuntime().availableProcessors()
+        val heap = if(Args.length > 3) Args(3) else "8g"
+        val reports = run(dir, math.min(maxCores, Runtime.getRuntime().availableProcessors()), heap)
+        println(reportHeader)
+        reports.foreach(println)
+      }
+      case "measure" => {
+        measure(dir, new File(Args(2)))
+        // the driver's pools and sinks are not all daemon threads
+        System.exit(0)
+      }
+      case mode => throw new IllegalArgumentException("Unknown mode: " + mode)
+    }
+  }
+
+}
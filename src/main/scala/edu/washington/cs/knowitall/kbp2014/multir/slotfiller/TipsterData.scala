@@ -1,46 +1,58 @@
 package edu.washington.cs.knowitall.kbp2014.multir.slotfiller
 
+/*
+ * The Tipster gazetteer text resource. Lookups go through the compiled
+ * Gazetteer when there is one (see LocationHelper), so this is only read
+ * as the fallback, or by the Gazetteer compiler.
+ */
 object TipsterData {
   
   private val tipsterResourcePath = "/edu/washington/cs/knowitall/kbp2014/multir/slotfiller/TipsterGazetteer.txt"
   
-  private val tipsterURL = getClass().getResource(tipsterResourcePath)
-  require(tipsterURL != null, "Could not find resource: " + tipsterResourcePath)
+  lazy val tipsterFileName = {
+    val tipsterURL = getClass().getResource(tipsterResourcePath)
+    require(tipsterURL != null, "Could not find resource: " + tipsterResourcePath)
+    tipsterURL.getPath()
+  }
 
-    
-  val citySet = scala.collection.mutable.Set[String]()
-  val stateOrProvinceSet = scala.collection.mutable.Set[String]()
-  val countrySet = scala.collection.mutable.Set[String]()
-
-  // read in tipster lines with latin encoding so as not to get errors.
-  scala.io.Source.fromFile(tipsterURL.getPath())(scala.io.Codec.ISO8859).getLines.foreach(line => {
+  /*
+   * The (lowercased name, location type) pairs on one line,
+   * e.g. "Seattle (CITY ...) Washington (PROVINCE ...)".
+   */
+  def parseLine(line: String): Seq[(String, String)] = {
       val pairs = line.split("\\)")
       val pairSplits = { for(p <- pairs) yield p.split("\\(")}
-      for(nameAndLocationType <- pairSplits){
-        if(nameAndLocationType.size ==2){
-val name = nameAndLocationType(0).trim().toLowerCase()
-val locationType = nameAndLocationType(1).split(" ")(0).trim()	
-locationType match {
-case "CITY" => { if(!citySet.contains(name)) {
-citySet.add(name)
-}
-}
-case "COUNTRY" => { if(!countrySet.contains(name)) {
-countrySet.add(name)
-}
-}
-case "PROVINCE" => { if(!stateOrProvinceSet.contains(name)){
-stateOrProvinceSet.add(name)
-}
-}
-case _ => {}
-}
-        }
+      for(nameAndLocationType <- pairSplits.toSeq if nameAndLocationType.size == 2) yield {
+        val name = nameAndLocationType(0).trim().toLowerCase()
+        val locationType = nameAndLocationType(1).split(" ")(0).trim()
+        (name, locationType)
       }
-      
-      
-    })
-  
+  }
+
+  lazy val (citySet, stateOrProvinceSet, countrySet) = {
+    val citySet = scala.collection.mutable.Set[String]()
+    val stateOrProvinceSet = scala.collection.mutable.Set[String]()
+    val countrySet = scala.collection.mutable.Set[String]()
+
+    // read in tipster lines with latin encoding so as not to get errors.
+    val source = scala.io.Source.fromFile(tipsterFileName)(scala.io.Codec.ISO8859)
+    try{
+      source.getLines.foreach(line => {
+        parseLine(line).foreach({ case (name, locationType) =>
+          locationType match {
+            case "CITY" => citySet.add(name)
+            case "COUNTRY" => countrySet.add(name)
+            case "PROVINCE" => stateOrProvinceSet.add(name)
+            case _ => {}
+          }
+        })
+      })
+    }
+    finally{
+      source.close()
+    }
+    (citySet, stateOrProvinceSet, countrySet)
+  }
   
   lazy val cities = citySet.toSet
   lazy val countries = countrySet.toSet
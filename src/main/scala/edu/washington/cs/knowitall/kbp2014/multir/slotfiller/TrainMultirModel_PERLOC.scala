@@ -32,10 +32,17 @@ object TrainMultirModel_PERLOC {
     //println("Preprocess: writing files: mapping, model, and train")        
     //Preprocess.run(newFeatureFile, modelFileDir, null);             
     
+    // or both steps in one parallel pass, see TrainingPreprocessor
+    //println("TrainingPreprocessor: writing files: mapping, model, and train")        
+    //TrainingPreprocessor.run(featureFile, modelFileDir)
+    
     println("Train: writing file: params")        
     //Train.train(modelFileDir, null);             
-    Train.train(modelFileDir)               
-    
+    Train.train(modelFileDir)
+
+    // or on several threads, see ParallelTrainer
+    //ParallelTrainer.main(Array(Runtime.getRuntime().availableProcessors().toString, modelFileDir))
+
     //val featureFiles = List(newFeatureFile).asJava
     //val modelFiles = List(modelFileDir).asJava
 
@@ -62,22 +69,17 @@ object TrainMultirModel_PERLOC {
       sys.exit(1)
     }    
 
-    val outStream = new PrintStream(outputFilename)
+    val outStream = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(outputFilename), "UTF-8"), 1 << 16)
     
     val lines = Source.fromFile(inputFilename).getLines()
 
     lines.foreach(l => {
     
-      val line = l.split("\t")
-      val sentence = line(11)  
-      val arg1 = line(0)
-      val arg2 = line(3)
-      var relation = line(7)
-      if(relation.contains("neg")) relation = "NA"
-      val features = line.drop(12).filter(f => f != "0").mkString("\t")
-      
-      outStream.println(sentence + "\t" + arg1 + "\t" + arg2 + "\t" + relation + "\t" + features)      
-      
+      TrainingPreprocessor.parseLine(l).foreach(instance => {
+        outStream.write(instance.sentence + "\t" + instance.arg1 + "\t" + instance.arg2 + "\t" + instance.relation + "\t" +
+          instance.features.mkString("\t"))
+        outStream.newLine()
+      })
       
     })
     
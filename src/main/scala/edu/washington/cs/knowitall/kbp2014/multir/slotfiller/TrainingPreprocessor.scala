@@ -0,0 +1,209 @@
+package edu.washington.cs.knowitall.kbp2014.multir.slotfiller
+
+import java.io._
+import java.nio.file.{Paths, Files}
+
+import scala.collection.mutable
+import scala.io.Source
+import scala.collection.parallel.ForkJoinTaskSupport
+
+import edu.washington.multirframework.multiralgorithm.{Mappings, MILDocument, Model, SparseBinaryVector}
+
+/*
+ * Parallel, streaming preprocessing of a training feature file into a Multir
+ * model directory (mapping, model and train files), replacing
+ * reformatFeaturesFile followed by Preprocess.run, so that Train.train reads
+ * the instances without another pass over text.
+ *
+ * Input lines are the featurized training data read by reformatFeaturesFile:
+ * tab separated, arg1 in column 0, arg2 in column 3, the relation in column 7
+ * (containing "neg" for negative examples), the sentence in column 11 and the
+ * features from column 12, "0" for none.
+ *
+ * 1. The file is read in chunks of chunkSize lines; each chunk's lines are
+ *    split in parallel, then the relations and features are given ids, in
+ *    order of first appearance, as Mappings does. Each instance goes as
+ *    (arg1, arg2, relation id, sorted feature ids) to one of numPartitions
+ *    temporary files, by entity pair.
+ * 2. The partitions are grouped by entity pair in parallel, each pair
+ *    becoming one MILDocument (its mentions' feature vectors, and the ids of
+ *    its relations other than NA). numThreads partitions at a time are
+ *    serialized in parallel, then appended to the train file in partition
+ *    order, so the same feature file always gives the same train file.
+ */
+object TrainingPreprocessor {
+
+  val chunkSize = 100000
+  val numPartitions = 64
+  val numThreads = Runtime.getRuntime().availableProcessors()
+
+  private lazy val taskSupport = new ForkJoinTaskSupport(new scala.concurrent.forkjoin.ForkJoinPool(numThreads))
+
+  case class Instance(sentence: String, arg1: String, arg2: String, relation: String, features: Array[String])
+
+  /*
+   * Split the line once; None if it has too few columns.
+   */
+  def parseLine(l: String): Option[Instance] = {
+    val line = l.split("\t")
+    if(line.length < 12) None
+    else{
+      var relation = line(7)
+      if(relation.contains("neg")) relation = "NA"
+      val features = mutable.ArrayBuffer[String]()
+      var i = 12
+      while(i < line.length){
+        if(line(i) != "0") features += line(i)
+        i += 1
+      }
+      Some(Instance(line(11), line(0), line(3), relation, features.toArray))
+    }
+  }
+
+  /*
+   * Ids in order of first appearance, starting at 0, as Mappings assigns them.
+   */
+  class Dictionary {
+    val ids = mutable.HashMap[String, Int]()
+    val names = mutable.ArrayBuffer[String]()
+    def id(name: String): Int = ids.getOrElseUpdate(name, { names += name; names.size - 1 })
+  }
+
+  private def partitionFile(dir: File, p: Int) = new File(dir, "partition-" + p)
+
+  /*
+   * The partition's entity pairs as serialized MILDocuments, and their number;
+   * deletes the partition file.
+   */
+  private def serializePartition(tmpDir: File, p: Int): (ByteArrayOutputStream, Int) = {
+    val file = partitionFile(tmpDir, p)
+    val in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))
+    val pairs = mutable.LinkedHashMap[(String, String), mutable.ArrayBuffer[(Int, Array[Int])]]()
+    try{
+      while(in.available() > 0){
+        val arg1 = in.readUTF()
+        val arg2 = in.readUTF()
+        val relationID = in.readInt()
+        val featureIDs = Array.fill(in.readInt())(in.readInt())
+        pairs.getOrElseUpdate((arg1, arg2), mutable.ArrayBuffer[(Int, Array[Int])]()) += ((relationID, featureIDs))
+      }
+    }
+    finally{
+      in.close()
+      file.delete()
+    }
+
+    val bytes = new ByteArrayOutputStream()
+    val partitionOut = new DataOutputStream(bytes)
+    for(((arg1, arg2), mentions) <- pairs){
+      val doc = new MILDocument()
+      doc.arg1 = arg1
+      doc.arg2 = arg2
+      doc.Y = mentions.map(_._1).filter(_ != 0).distinct.sorted.toArray
+      doc.setCapacity(mentions.size)
+      doc.numMentions = mentions.size
+      for(((_, featureIDs), m) <- mentions.zipWithIndex){
+        doc.mentionIDs(m) = m
+        val sv = new SparseBinaryVector()
+        sv.ids = featureIDs
+        sv.num = featureIDs.length
+        doc.features(m) = sv
+      }
+      doc.write(partitionOut)
+    }
+    partitionOut.flush()
+    (bytes, pairs.size)
+  }
+
+  def run(featureFile: String, modelFileDir: String){
+
+    if (!Files.exists(Paths.get(featureFile))) {
+      System.out.println(s"features file $featureFile doesn't exist!  " + s"Exiting...")
+      sys.exit(1)
+    }
+    new File(modelFileDir).mkdirs()
+    val tmpDir = Files.createTempDirectory(Paths.get(modelFileDir), "partitions").toFile
+
+    val startTime = System.currentTimeMillis()
+
+    // ------------------------------------------------------------
+    // 1. Parse in parallel chunks, assign ids, partition
+    // ------------------------------------------------------------
+    val relations = new Dictionary
+    relations.id("NA")
+    val features = new Dictionary
+
+    val partitions = (0 until numPartitions).map(p =>
+      new DataOutputStream(new BufferedOutputStream(new FileOutputStream(partitionFile(tmpDir, p)), 1 << 16)))
+
+    var numInstances = 0L
+    val source = Source.fromFile(featureFile)
+    try{
+      for(chunk <- source.getLines().grouped(chunkSize)){
+        val parChunk = chunk.par
+        parChunk.tasksupport = taskSupport
+        val instances = parChunk.flatMap(parseLine).seq
+
+        for(instance <- instances){
+          val relationID = relations.id(instance.relation)
+          val featureIDs = instance.features.map(features.id).distinct.sorted
+          val out = partitions(math.abs((instance.arg1 + "\t" + instance.arg2).hashCode % numPartitions))
+          out.writeUTF(instance.arg1)
+          out.writeUTF(instance.arg2)
+          out.writeInt(relationID)
+          out.writeInt(featureIDs.length)
+          featureIDs.foreach(out.writeInt)
+        }
+        numInstances += instances.size
+        println("TrainingPreprocessor: " + numInstances + " instances, " + features.names.size + " features")
+      }
+    }
+    finally{
+      source.close()
+      partitions.foreach(_.close())
+    }
+
+    // ------------------------------------------------------------
+    // 2. Group each partition by entity pair, in parallel
+    // ------------------------------------------------------------
+    val train = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(modelFileDir + "/train"), 1 << 16))
+    var numDocuments = 0L
+
+    for(batch <- (0 until numPartitions).grouped(numThreads)){
+      val parBatch = batch.par
+      parBatch.tasksupport = taskSupport
+      // map keeps the partitions' order
+      for((bytes, numPairs) <- parBatch.map(serializePartition(tmpDir, _)).seq){
+        bytes.writeTo(train)
+        numDocuments += numPairs
+      }
+    }
+    train.close()
+    tmpDir.delete()
+
+    // ------------------------------------------------------------
+    // Mapping and model files, as Preprocess writes them
+    // ------------------------------------------------------------
+    val mapping = new Mappings()
+    relations.names.foreach(r => mapping.getRelationID(r, true))
+    features.names.foreach(f => mapping.getFeatureID(f, true))
+    mapping.write(modelFileDir + "/mapping")
+
+    val model = new Model()
+    model.numRelations = mapping.numRelations()
+    model.numFeaturesPerRelation = Array.fill(model.numRelations)(mapping.numFeatures())
+    model.write(modelFileDir + "/model")
+
+    println("TrainingPreprocessor: instances: " + numInstances + " entity pairs: " + numDocuments +
+      " relations: " + relations.names.size + " features: " + features.names.size +
+      " millis: " + (System.currentTimeMillis() - startTime))
+  }
+
+  /*
+   * Args: featureFile modelFileDir
+   */
+  def main(Args: Array[String]){
+    run(Args(0), Args(1))
+  }
+
+}
@@ -0,0 +1,121 @@
+package edu.washington.cs.knowitall.kbp2014.multir.slotfiller
+
+import java.util.concurrent.atomic.AtomicLong
+
+import scala.collection.JavaConverters._
+
+import edu.stanford.nlp.dcoref.CorefChain
+import edu.stanford.nlp.dcoref.CorefCoreAnnotations.CorefChainAnnotation
+import edu.stanford.nlp.ling.CoreAnnotations._
+import edu.stanford.nlp.ling.CoreLabel
+import edu.stanford.nlp.pipeline.Annotation
+import edu.stanford.nlp.util.CoreMap
+
+/*
+ * Two-phase annotation of a relevant document.
+ *
+ * Only sentences with the query name, or with a mention coreferent with it,
+ * and a second argument of a type a relation can take can give a candidate
+ * which survives filtering. So the first phase runs the cheap annotators
+ * (tokenize, cleanxml, ssplit, pos, lemma, ner) on the whole document and keeps:
+ *  - the sentences which contain a query alias, and
+ *  - within corefWindow sentences of those, the sentences with a pronoun or a
+ *    part of the query name (possible coreferent mentions),
+ * if they have a named entity of one of the arg2 types. The second phase runs
+ * parse and dcoref on the kept sentences only.
+ *
+ * The returned annotation has only the kept sentences, re-indexed, with their
+ * character offsets still in whole document coordinates.
+ */
+object TwoPhaseAnnotation {
+
+  val corefWindow = 3
+
+  val arg2NerTypes = Set("PERSON", "ORGANIZATION", "LOCATION", "DATE", "MISC", "NUMBER")
+
+  private val pronounTags = Set("PRP", "PRP$", "WP", "WP$")
+
+  // totals over all documents, for the report at the end of a run
+  val totalSentences = new AtomicLong
+  val skippedSentences = new AtomicLong
+  val totalDocuments = new AtomicLong
+
+  def report: String = {
+    val total = totalSentences.get
+    val skipped = skippedSentences.get
+    "Two-phase annotation: documents: " + totalDocuments.get + " sentences: " + total + " skipped: " + skipped +
+      (if(total > 0) " (" + (100 * skipped / total) + "%)" else "")
+  }
+
+  private def tokens(sentence: CoreMap): Seq[CoreLabel] = sentence.get(classOf[TokensAnnotation]).asScala
+
+  private def hasArg2Type(sentence: CoreMap): Boolean =
+    tokens(sentence).exists(t => arg2NerTypes.contains(t.get(classOf[NamedEntityTagAnnotation])))
+
+  private def hasPossibleCorefMention(sentence: CoreMap, nameParts: Set[String]): Boolean =
+    tokens(sentence).exists(t => pronounTags.contains(t.get(classOf[PartOfSpeechAnnotation])) ||
+      nameParts.contains(t.originalText().toLowerCase))
+
+  /*
+   * The indices of the sentences which go to the second phase.
+   */
+  def relevantSentences(sentences: Seq[CoreMap], rawDoc: String, aliases: Set[String]): Seq[Int] = {
+
+    val lowerAliases = aliases.map(_.trim.toLowerCase).filter(_.nonEmpty)
+    val nameParts = lowerAliases.flatMap(_.split(" ")).filter(_.length > 1)
+
+    val sentenceTexts = sentences.map(s => {
+      val begin = s.get(classOf[CharacterOffsetBeginAnnotation])
+      val end = s.get(classOf[CharacterOffsetEndAnnotation])
+      if(begin != null && end != null && end.intValue <= rawDoc.length) rawDoc.substring(begin, end).toLowerCase
+      else tokens(s).map(_.originalText()).mkString(" ").toLowerCase
+    })
+
+    val anchors = sentences.indices.filter(i => lowerAliases.exists(a => sentenceTexts(i).contains(a))).toSet
+    val inWindow = anchors.flatMap(i => (i - corefWindow) to (i + corefWindow)).
+      filter(i => i >= 0 && i < sentences.size).toSet
+
+    sentences.indices.filter(i => inWindow.contains(i) && hasArg2Type(sentences(i)) &&
+      (anchors.contains(i) || hasPossibleCorefMention(sentences(i), nameParts)))
+  }
+
+  def annotate(rawDoc: String, aliases: Set[String], annotatorHelper: StanfordAnnotatorHelperMethods): Annotation = {
+
+    // -----------------------------------------------------------
+    // Phase 1 - tokenize, ssplit, ner on the whole document
+    // -----------------------------------------------------------
+    val lightDoc = new Annotation(rawDoc)
+    annotatorHelper.getLightPipeline().annotate(lightDoc)
+    val sentences = lightDoc.get(classOf[SentencesAnnotation]).asScala.toIndexedSeq
+
+    val kept = relevantSentences(sentences, rawDoc, aliases).map(sentences)
+
+    totalDocuments.incrementAndGet()
+    totalSentences.addAndGet(sentences.size)
+    skippedSentences.addAndGet(sentences.size - kept.size)
+    println("Two-phase annotation: sentences: " + sentences.size + " skipped: " + (sentences.size - kept.size))
+
+    // -----------------------------------------------------------
+    // Phase 2 - parse and dcoref on the kept sentences
+    // -----------------------------------------------------------
+    val document = new Annotation(rawDoc)
+    val keptTokens = new java.util.ArrayList[CoreLabel]()
+    for((sentence, index) <- kept.zipWithIndex){
+      sentence.set(classOf[SentenceIndexAnnotation], Integer.valueOf(index))
+      sentence.set(classOf[TokenBeginAnnotation], Integer.valueOf(keptTokens.size))
+      for(token <- tokens(sentence)){
+        token.set(classOf[SentenceIndexAnnotation], Integer.valueOf(index))
+        keptTokens.add(token)
+      }
+      sentence.set(classOf[TokenEndAnnotation], Integer.valueOf(keptTokens.size))
+    }
+    document.set(classOf[SentencesAnnotation], new java.util.ArrayList[CoreMap](kept.asJava))
+    document.set(classOf[TokensAnnotation], keptTokens)
+
+    if(kept.nonEmpty) annotatorHelper.getParseCorefPipeline().annotate(document)
+    else document.set(classOf[CorefChainAnnotation], new java.util.HashMap[Integer, CorefChain]())
+
+    document
+  }
+
+}
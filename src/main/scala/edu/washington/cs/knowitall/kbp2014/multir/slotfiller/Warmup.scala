@@ -0,0 +1,109 @@
+package edu.washington.cs.knowitall.kbp2014.multir.slotfiller
+
+import java.lang.management.ManagementFactory
+import java.util.concurrent.{Callable, Executors}
+
+import scala.collection.JavaConverters._
+
+/*
+ * Startup warm-up: loads the static resources which are otherwise loaded
+ * lazily, one after another, on first touch in the hot path, concurrently on
+ * a thread pool before the first query, so that the time to the first query
+ * is about the time of the slowest resource.
+ *
+ * The resources are independent: the slot tables (with their SlotPatterns),
+ * the FBToKBPRelations maps, the location Gazetteer (or, without one, the
+ * NellData and TipsterData text resources it replaces), the ColdStartCorpus doc
+ * list (for the "cs" corpus, or when it is prebuilt, as building it reads the
+ * whole document list), the CoreNLP coref pipeline and each Multir model. The
+ * corpus is SolrHelper's, so it is set first. A resource which
+ * fails to load is reported and left to load (and fail) on first touch as
+ * before.
+ *
+ * The startup profile has each resource's load time and the bytes its thread
+ * allocated loading it, and the retained heap after the warm-up.
+ */
+object Warmup {
+
+  case class Resource(name: String, millis: Long, allocatedBytes: Long, error: Option[String])
+
+  private lazy val threadBean = ManagementFactory.getThreadMXBean() match {
+    case bean: com.sun.management.ThreadMXBean if(bean.isThreadAllocatedMemorySupported()) => Some(bean)
+    case _ => None
+  }
+
+  private def allocatedBytes(): Long = threadBean.map(_.getThreadAllocatedBytes(Thread.currentThread().getId())).getOrElse(0L)
+
+  /*
+   * The resources the cold start drivers use; the coref pipeline unless
+   * annotation is elsewhere, and the extractor's models.
+   */
+  def coldStartResources(multirExtractor: Option[MultiModelMultirExtractor], corefPipeline: Boolean = true): List[(String, () => Any)] = {
+    val resources = List[(String, () => Any)](
+      ("Slot/SlotPattern", () => Slot.allSlots),
+      ("FBToKBPRelations", () => { FBToKBPRelations.personRelations; FBToKBPRelations.organizationRelations }),
+      ("Gazetteer", () => Gazetteer.default))
+    // the text resources are only read when there is no compiled gazetteer
+    val locations = if(Gazetteer.default.isEmpty) List[(String, () => Any)](
+      ("NellData", () => { NellData.nellMap; NellData.cityNameSet; NellData.countryNameSet; NellData.stateOrProvinceNameSet }),
+      ("TipsterData", () => { TipsterData.cities; TipsterData.countries; TipsterData.stateOrProvinces })) else Nil
+    val corpus = if(SolrHelper.corpusName == "cs" || ColdStartCorpus.prebuilt) List[(String, () => Any)](
+      ("ColdStartCorpus", () => ColdStartCorpus.documents)) else Nil
+    val coref = if(corefPipeline) List[(String, () => Any)](
+      ("coref pipeline", () => RunKBP2015MultirExtractor.annotatorHelper.getCorefPipeline())) else Nil
+    val models = multirExtractor.toList.flatMap(extractor => (0 until extractor.getNumModels()).map(i =>
+      ("Multir model " + i, () => extractor.loadModel(i)): (String, () => Any)))
+    resources ++ locations ++ corpus ++ coref ++ models
+  }
+
+  /*
+   * Load the resources on numThreads threads; returns the profile, in the
+   * order given.
+   */
+  def run(resources: List[(String, () => Any)], numThreads: Int): List[Resource] = {
+    val pool = Executors.newFixedThreadPool(math.max(1, math.min(numThreads, resources.size)))
+    try{
+      val tasks = resources.map({ case (name, load) => new Callable[Resource]{
+        def call(): Resource = {
+          val startTime = System.currentTimeMillis()
+          val startBytes = allocatedBytes()
+          val error = try{ load(); None }
+            catch{ case e: Throwable => {
+              e.printStackTrace()
+              println("EXCEPTION: Warmup " + name)
+              Some(e.toString)
+            }}
+          Resource(name, System.currentTimeMillis() - startTime, allocatedBytes() - startBytes, error)
+        }
+      }})
+      pool.invokeAll(tasks.asJava).asScala.map(_.get).toList
+    }
+    finally{ pool.shutdown() }
+  }
+
+  def report(profile: List[Resource], wallMillis: Long, retainedBytes: Long): String = {
+    val sb = new StringBuilder("Startup profile:\n")
+    for(r <- profile){
+      sb.append("  %-20s millis: %8d allocated MB: %8.1f%s\n".format(r.name, r.millis, r.allocatedBytes / 1e6,
+        r.error.map(" FAILED: " + _).getOrElse("")))
+    }
+    sb.append("  wall millis: " + wallMillis + " sum of millis: " + profile.map(_.millis).sum +
+      " slowest: " + (if(profile.isEmpty) 0 else profile.map(_.millis).max) +
+      " retained MB: " + "%.1f".format(retainedBytes / 1e6))
+    sb.toString
+  }
+
+  /*
+   * Warm up and print the startup profile.
+   */
+  def warmUp(resources: List[(String, () => Any)], numThreads: Int = Runtime.getRuntime().availableProcessors()): List[Resource] = {
+    val usedBefore = AnnotationMemoryEstimator.measuredUsedBytes
+    val startTime = System.currentTimeMillis()
+    val profile = run(resources, numThreads)
+    val wallMillis = System.currentTimeMillis() - startTime
+    println(report(profile, wallMillis, AnnotationMemoryEstimator.measuredUsedBytes - usedBefore))
+    Metrics.gauge("startup-millis")(wallMillis.toDouble)
+    profile
+  }
+
+}
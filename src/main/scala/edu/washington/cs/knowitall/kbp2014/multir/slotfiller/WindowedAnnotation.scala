@@ -0,0 +1,233 @@
+package edu.washington.cs.knowitall.kbp2014.multir.slotfiller
+
+import scala.collection.JavaConverters._
+import scala.collection.mutable
+
+import edu.stanford.nlp.dcoref.CorefChain
+import edu.stanford.nlp.dcoref.CorefChain.CorefMention
+import edu.stanford.nlp.dcoref.CorefCoreAnnotations.{CorefChainAnnotation, CorefClusterIdAnnotation}
+import edu.stanford.nlp.ling.CoreAnnotations._
+import edu.stanford.nlp.ling.CoreLabel
+import edu.stanford.nlp.pipeline.{Annotation, StanfordCoreNLP}
+import edu.stanford.nlp.util.{CoreMap, IntPair, IntTuple, TypesafeMap}
+
+/*
+ * Windowed annotation of long documents.
+ *
+ * Parsing and dcoref cost grows faster than linearly with document length, so
+ * documents of maxDocLength characters or more used to be dropped. Here such a
+ * document is split into chunks of at most maxChunkLength characters, on
+ * </post> or </p> boundaries where there are any, else on blank lines or line
+ * ends, and the chunks are annotated one after another, on the caller's thread:
+ * the pipeline is not thread safe, and the driver's per document timeout stops
+ * the thread it runs on. The chunk annotations are then joined into one
+ * annotation of the whole document:
+ *  - token and sentence character offsets are shifted back to document offsets,
+ *  - sentence and token indices run over the whole document,
+ *  - coref chains are renumbered; chains from different chunks are only merged
+ *    when they contain a mention of one of the given names (the query name and
+ *    its aliases), since dcoref never saw the two chunks together.
+ */
+object WindowedAnnotation {
+
+  // documents shorter than this are annotated whole, as before
+  val maxDocLength = 20000
+  val maxChunkLength = 10000
+
+  private val boundaryTags = List("</post>", "</p>")
+
+  case class Chunk(offset: Int, text: String)
+
+  // ------------------------------------------------------------------------
+  // Splitting
+  // ------------------------------------------------------------------------
+
+  /*
+   * The end of the chunk starting at start: just after the last boundary tag in
+   * (start, start + maxLength], else the last blank line, else the last line
+   * end, else start + maxLength.
+   */
+  private def chunkEnd(rawDoc: String, lowerDoc: String, start: Int, maxLength: Int): Int = {
+    val limit = start + maxLength
+    if(limit >= rawDoc.length) return rawDoc.length
+
+    val tagEnds = boundaryTags.map(tag => {
+      val i = lowerDoc.lastIndexOf(tag, limit - tag.length)
+      if(i > start) i + tag.length else -1
+    })
+    val tagEnd = tagEnds.max
+    if(tagEnd > start) return tagEnd
+
+    val blankLine = rawDoc.lastIndexOf("\n\n", limit - 2)
+    if(blankLine > start) return blankLine + 2
+
+    val lineEnd = rawDoc.lastIndexOf('\n', limit - 1)
+    if(lineEnd > start) return lineEnd + 1
+
+    limit
+  }
+
+  def split(rawDoc: String, maxLength: Int = maxChunkLength): List[Chunk] = {
+    val lowerDoc = rawDoc.toLowerCase
+    val chunks = mutable.ListBuffer[Chunk]()
+    var start = 0
+    while(start < rawDoc.length){
+      val end = chunkEnd(rawDoc, lowerDoc, start, maxLength)
+      chunks += Chunk(start, rawDoc.substring(start, end))
+      start = end
+    }
+    chunks.toList
+  }
+
+  // ------------------------------------------------------------------------
+  // Annotating
+  // ------------------------------------------------------------------------
+
+  /*
+   * Annotate the raw document with the pipeline, windowed if it is long.
+   * mergeNames are the names whose coref chains are merged across chunks.
+   */
+  def annotate(rawDoc: String, pipeline: StanfordCoreNLP, mergeNames: Set[String] = Set()): Annotation = {
+
+    if(rawDoc.length < maxDocLength){
+      val document = new Annotation(rawDoc)
+      pipeline.annotate(document)
+      return document
+    }
+
+    val startTime = System.currentTimeMillis()
+
+    val chunks = split(rawDoc)
+    val chunkAnnotations = chunks.map(chunk => {
+      val annotation = new Annotation(chunk.text)
+      pipeline.annotate(annotation)
+      (chunk, annotation)
+    })
+
+    val document = join(rawDoc, chunkAnnotations, mergeNames.map(_.trim.toLowerCase))
+
+    println("Windowed annotation: " + rawDoc.length + " chars, " + chunks.size + " chunks, " +
+      document.get(classOf[SentencesAnnotation]).size + " sentences, " + (System.currentTimeMillis() - startTime) + " milliseconds")
+
+    document
+  }
+
+  // ------------------------------------------------------------------------
+  // Joining the chunk annotations
+  // ------------------------------------------------------------------------
+
+  private def shift(annotation: CoreMap, key: Class[_ <: TypesafeMap.Key[Integer]], offset: Int){
+    val value: Integer = annotation.get(key)
+    if(value != null) annotation.set(key, Integer.valueOf(value.intValue + offset))
+  }
+
+  private def remapMention(m: CorefMention, clusterID: Int, mentionOffset: Int, sentenceOffset: Int): CorefMention = {
+    val position = new IntTuple(2)
+    position.set(0, m.position.get(0) + sentenceOffset)
+    position.set(1, m.position.get(1))
+    new CorefMention(m.mentionType, m.number, m.gender, m.animacy, m.startIndex, m.endIndex, m.headIndex,
+      clusterID, m.mentionID + mentionOffset, m.sentNum + sentenceOffset, position, m.mentionSpan)
+  }
+
+  def join(rawDoc: String, chunkAnnotations: List[(Chunk, Annotation)], mergeNames: Set[String]): Annotation = {
+
+    val sentences = new java.util.ArrayList[CoreMap]()
+    val tokens = new java.util.ArrayList[CoreLabel]()
+
+    // remapped chains: (new cluster id, mentions, representative)
+    val chains = mutable.LinkedHashMap[Int, (mutable.ListBuffer[CorefMention], CorefMention)]()
+    // new cluster ids of the chains with a mention of one of the merge names
+    val nameChains = mutable.ListBuffer[Int]()
+
+    var nextClusterID = 1
+    var mentionOffset = 0
+
+    for((chunk, annotation) <- chunkAnnotations){
+
+      val sentenceOffset = sentences.size
+      val tokenOffset = tokens.size
+
+      // cluster ids of this chunk -> document cluster ids
+      val clusterIDs = mutable.HashMap[Int, Int]()
+      val chunkChains = annotation.get(classOf[CorefChainAnnotation])
+      var maxMentionID = 0
+
+      if(chunkChains != null){
+        for((id, chain) <- chunkChains.asScala){
+          val clusterID = nextClusterID
+          nextClusterID += 1
+          clusterIDs(id.intValue) = clusterID
+
+          val mentions = chain.getMentionsInTextualOrder().asScala.map(m => {
+            maxMentionID = math.max(maxMentionID, m.mentionID)
+            remapMention(m, clusterID, mentionOffset, sentenceOffset)
+          })
+          val representative = remapMention(chain.getRepresentativeMention(), clusterID, mentionOffset, sentenceOffset)
+          chains(clusterID) = (mutable.ListBuffer(mentions: _*), representative)
+
+          if(mentions.exists(m => mergeNames.contains(m.mentionSpan.trim.toLowerCase))) nameChains += clusterID
+        }
+      }
+      mentionOffset += maxMentionID + 1
+
+      for(sentence <- annotation.get(classOf[SentencesAnnotation]).asScala){
+        shift(sentence, classOf[CharacterOffsetBeginAnnotation], chunk.offset)
+        shift(sentence, classOf[CharacterOffsetEndAnnotation], chunk.offset)
+        shift(sentence, classOf[TokenBeginAnnotation], tokenOffset)
+        shift(sentence, classOf[TokenEndAnnotation], tokenOffset)
+        sentence.set(classOf[SentenceIndexAnnotation], Integer.valueOf(sentences.size))
+
+        for(token <- sentence.get(classOf[TokensAnnotation]).asScala){
+          token.setBeginPosition(token.beginPosition() + chunk.offset)
+          token.setEndPosition(token.endPosition() + chunk.offset)
+          token.set(classOf[SentenceIndexAnnotation], Integer.valueOf(sentences.size))
+          val clusterID = token.get(classOf[CorefClusterIdAnnotation])
+          if(clusterID != null && clusterIDs.contains(clusterID.intValue)){
+            token.set(classOf[CorefClusterIdAnnotation], Integer.valueOf(clusterIDs(clusterID.intValue)))
+          }
+          tokens.add(token)
+        }
+        sentences.add(sentence)
+      }
+    }
+
+    // ------------------------------------------------------------
+    // Merge the chains which mention one of the names into the
+    // first of them
+    // ------------------------------------------------------------
+    val mergedIDs = mutable.HashMap[Int, Int]()
+    if(nameChains.size > 1){
+      val target = nameChains.head
+      val (targetMentions, targetRepresentative) = chains(target)
+      for(id <- nameChains.tail){
+        val (mentions, _) = chains.remove(id).get
+        targetMentions ++= mentions.map(m => remapMention(m, target, 0, 0))
+        mergedIDs(id) = target
+      }
+      for(token <- tokens.asScala){
+        val clusterID = token.get(classOf[CorefClusterIdAnnotation])
+        if(clusterID != null && mergedIDs.contains(clusterID.intValue)){
+          token.set(classOf[CorefClusterIdAnnotation], Integer.valueOf(target))
+        }
+      }
+    }
+
+    val corefChains = new java.util.HashMap[Integer, CorefChain]()
+    for((id, (mentions, representative)) <- chains){
+      val mentionMap = new java.util.HashMap[IntPair, java.util.Set[CorefMention]]()
+      for(m <- mentions){
+        val key = new IntPair(m.sentNum, m.headIndex)
+        if(!mentionMap.containsKey(key)) mentionMap.put(key, new java.util.HashSet[CorefMention]())
+        mentionMap.get(key).add(m)
+      }
+      corefChains.put(Integer.valueOf(id), new CorefChain(id, mentionMap, representative))
+    }
+
+    val document = new Annotation(rawDoc)
+    document.set(classOf[SentencesAnnotation], sentences)
+    document.set(classOf[TokensAnnotation], tokens)
+    document.set(classOf[CorefChainAnnotation], corefChains)
+    document
+  }
+
+}
@@ -26,18 +26,6 @@ object CreateLocationLists {
   // alias mids:
   // ------------------------------------------------------------------------
   case class AliasInputLine(mid: String, name: String)
-  // ------------------------------------------------------------------------
-  // city mids:
-  // ------------------------------------------------------------------------
-  case class CityInputLine(mid: String)
-  // ------------------------------------------------------------------------
-  // stateorprovince mids:
-  // ------------------------------------------------------------------------
-  case class StateOrProvinceInputLine(mid: String)
-  // ------------------------------------------------------------------------
-  // country mids:
-  // ------------------------------------------------------------------------
-  case class CountryInputLine(mid: String)
                            
   // ----------------------------------------------------------
   // Configuration File - specifies input and output files
@@ -54,6 +42,40 @@ object CreateLocationLists {
   val stateorprovincezhFile = config.getString("chinese-stateorprovince-file")
   val countryzhFile = config.getString("chinese-country-file") 
   
+  // Alias lines read and matched per parallel chunk
+  val chunkSize = 100000
+
+  /*
+   * Read the mids (first column) of a city, stateorprovince or country mids file
+   * into a hash set. These files are small, a few tens of thousands of mids.
+   */
+  def readMids(inputFilename: String): HashSet[String] = {
+
+    // Does file exist?
+    if (!Files.exists(Paths.get(inputFilename))) {
+      System.out.println(s"File $inputFilename doesn't exist!  " + s"Exiting...")
+      sys.exit(1)
+    }
+
+    val mids = HashSet[String]()
+    val source = Source.fromFile(inputFilename)
+    try{
+      source.getLines().foreach(line => {
+        val tokens = line.trim.split("\t")
+        if(tokens(0).nonEmpty) mids.add(tokens(0))
+      })
+    }
+    finally{
+      source.close()
+    }
+    mids
+  }
+
+  def parseAlias(line: String): Option[AliasInputLine] = {
+    val tokens = line.trim.split("\t")
+    if(tokens.size >= 2) Some(AliasInputLine(tokens(0), tokens(1))) else None
+  }
+  
   // -----------------------------------------------------------------
   // -----------------------------------------------------------------
   // Main - 
@@ -65,115 +87,25 @@ object CreateLocationLists {
     println("Reading mids Files")
 
     // -------------------------------------------------------
-    // Aliases
-    // -------------------------------------------------------
-    val aliases = {
-
-      val inputFilename = aliasFile
-
-      // Does file exist?
-      if (!Files.exists(Paths.get(inputFilename))) {
-        System.out.println(s"File $inputFilename doesn't exist!  " + s"Exiting...")
-        sys.exit(1)
-      }
-
-      Source.fromFile(inputFilename).getLines().map(line => {
-        val tokens = line.trim.split("\t")
-        try{
-          AliasInputLine(tokens(0), tokens(1))
-        }catch{
-          case e: Exception => AliasInputLine("ignoreThisLine", "tokens(1)")
-        }
-        
-      }).toList.filter(l => l.mid != "ignoreThisLine")
-    }
-
-    //340837 alias.zh
-    println("Aliases size: " + aliases.size)
-
-    // -------------------------------------------------------
-    // City mids
+    // City, StateOrProvince and Country mids
     // -------------------------------------------------------
-    val cityMIDS = {
-
-      val inputFilename = cityFile
-
-      // Does file exist?
-      if (!Files.exists(Paths.get(inputFilename))) {
-        System.out.println(s"File $inputFilename doesn't exist!  " + s"Exiting...")
-        sys.exit(1)
-      }
-
-      Source.fromFile(inputFilename).getLines().map(line => {
-        val tokens = line.trim.split("\t")
-        try{
-          CityInputLine(tokens(0))
-        }catch{
-          case e: Exception => CityInputLine("ignoreThisLine")
-        }
-        
-      }).toList.filter(l => l.mid != "ignoreThisLine")
-    }
-
+    val cityMIDS = readMids(cityFile)
     //77472 city.mids
     println("City mids size: " + cityMIDS.size)
-    
-    // -------------------------------------------------------
-    // StateOrProvince mids
-    // -------------------------------------------------------
-    val stateorprovinceMIDS = {
-
-      val inputFilename = stateorprovinceFile
-
-      // Does file exist?
-      if (!Files.exists(Paths.get(inputFilename))) {
-        System.out.println(s"File $inputFilename doesn't exist!  " + s"Exiting...")
-        sys.exit(1)
-      }
-
-      Source.fromFile(inputFilename).getLines().map(line => {
-        val tokens = line.trim.split("\t")
-        try{
-          StateOrProvinceInputLine(tokens(0))
-        }catch{
-          case e: Exception => StateOrProvinceInputLine("ignoreThisLine")
-        }
-        
-      }).toList.filter(l => l.mid != "ignoreThisLine")
-    }
 
+    val stateorprovinceMIDS = readMids(stateorprovinceFile)
     //506 stateorprovince.mids
     println("StateorProvince mids size: " + stateorprovinceMIDS.size)
-    
-    // -------------------------------------------------------
-    // Country mids
-    // -------------------------------------------------------
-    val countryMIDS = {
-
-      val inputFilename = countryFile
-
-      // Does file exist?
-      if (!Files.exists(Paths.get(inputFilename))) {
-        System.out.println(s"File $inputFilename doesn't exist!  " + s"Exiting...")
-        sys.exit(1)
-      }
-
-      Source.fromFile(inputFilename).getLines().map(line => {
-        val tokens = line.trim.split("\t")
-        try{
-          CountryInputLine(tokens(0))
-        }catch{
-          case e: Exception => CountryInputLine("ignoreThisLine")
-        }
-        
-      }).toList.filter(l => l.mid != "ignoreThisLine")
-    }
 
+    val countryMIDS = readMids(countryFile)
     //545 country.mids
     println("Country mids size: " + countryMIDS.size)
-    
-    
 
+    // Does alias file exist?
+    if (!Files.exists(Paths.get(aliasFile))) {
+      System.out.println(s"File $aliasFile doesn't exist!  " + s"Exiting...")
+      sys.exit(1)
+    }
 
     // --------------------------------------------------------
     // --------------------------------------------------------
@@ -205,34 +137,49 @@ object CreateLocationLists {
     
     // ------------------------------------------------------------
     // ------------------------------------------------------------
-    // Scoring Report - write out
-    //   1) the extractions and their score (correct or incorrect)
-    //   2) summary of results, overall and by relation
-    //      -- # correct, # incorrect, precision
+    // Stream the alias file once, a chunk of lines at a time.
+    // Each chunk is joined against the mid sets in parallel and
+    // the matching names are written before reading the next
+    // chunk, so memory is bounded by the mid sets and one chunk
+    // rather than by the alias file.
     // ------------------------------------------------------------
     // ------------------------------------------------------------
 
     val cityzh = new PrintWriter(cityzhFile)    
-    cityMIDS.foreach(c => {
-      val cities = aliases.filter(a => a.mid == c.mid)
-      cities.foreach(c => cityzh.append(c.name + "\n"))
-      }
-    )
-   
     val stateorprovincezh = new PrintWriter(stateorprovincezhFile)
-    stateorprovinceMIDS.foreach(s => {
-      val stateorprovinces = aliases.filter(a => a.mid == s.mid)
-      stateorprovinces.foreach(s => stateorprovincezh.append(s.name + "\n"))
-      }
-    )   
-    
     val countryzh = new PrintWriter(countryzhFile)
-    countryMIDS.foreach(c => {
-      val countries = aliases.filter(a => a.mid == c.mid)
-      countries.foreach(c => countryzh.append(c.name + "\n"))
-      }
-    )
 
+    var aliasCount = 0L
+    var cityCount = 0L
+    var stateorprovinceCount = 0L
+    var countryCount = 0L
+
+    val source = Source.fromFile(aliasFile)
+    try{
+      source.getLines().grouped(chunkSize).foreach(chunk => {
+
+        val aliases = chunk.par.flatMap(parseAlias)
+        val cities = aliases.filter(a => cityMIDS.contains(a.mid)).seq
+        val stateorprovinces = aliases.filter(a => stateorprovinceMIDS.contains(a.mid)).seq
+        val countries = aliases.filter(a => countryMIDS.contains(a.mid)).seq
+
+        cities.foreach(c => cityzh.append(c.name + "\n"))
+        stateorprovinces.foreach(s => stateorprovincezh.append(s.name + "\n"))
+        countries.foreach(c => countryzh.append(c.name + "\n"))
+
+        aliasCount += aliases.size
+        cityCount += cities.size
+        stateorprovinceCount += stateorprovinces.size
+        countryCount += countries.size
+      })
+    }
+    finally{
+      source.close()
+    }
+
+    //340837 alias.zh
+    println("Aliases size: " + aliasCount)
+    println("City, StateOrProvince, Country names: " + cityCount + " " + stateorprovinceCount + " " + countryCount)
 
     println("es: Closing PrintWriters")
 